@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * A batch of LIGHT messages for the protocol benchmarks, plus the same batch
+ * already encoded for the decode side. Encoding goes through ClientProtocol
+ * exactly as the connections do; decoding follows what ClientMain does with
+ * each message.
+ *
+ * The delta side sends the same batch over and over, so after the first
+ * round it's mostly zero deltas (and the odd keyframe): the cheapest case,
+ * which is the common one for players standing still.
+ */
+public class BenchCodec {
+    private final int count;
+    private final MessageQueue msgs = new MessageQueue();
+    private final ByteBuffer out;
+    private final StringBuilder line = new StringBuilder(ClientProtocol.MAX_TEXT_LINE);
+
+    private final ByteBuffer frames;
+    private final String[] lines;
+
+    private final PositionDeltas encoder = new PositionDeltas();
+    private final PositionDeltas decoder = new PositionDeltas();
+    private final ByteBuffer deltaFrames;
+
+    public BenchCodec(int count, long seed) {
+        this.count = count;
+        SplittableRandom random = new SplittableRandom(seed);
+        LightType[] types = LightType.values();
+        for (int i = 0; i < count; i++) {
+            LightType type = types[random.nextInt(types.length)];
+            msgs.addLight(type.code(), random.nextInt(1000), random.nextDouble(800), random.nextDouble(600));
+        }
+        out = ByteBuffer.allocate(count * ClientProtocol.MAX_TEXT_LINE);
+
+        encodeBinary();
+        frames = ByteBuffer.allocate(out.position());
+        frames.put(out.array(), 0, out.position());
+
+        lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = ClientProtocol.formatText(msgs, i, line).toString();
+        }
+
+        // The decoder needs the keyframes once; what it replays after is a later round
+        encodeDelta();
+        out.flip();
+        decodeDeltaFrames(out);
+        encodeDelta();
+        deltaFrames = ByteBuffer.allocate(out.position());
+        deltaFrames.put(out.array(), 0, out.position());
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int encodeBinary() {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            ClientProtocol.writeFrame(out, msgs, i);
+        }
+        return out.position();
+    }
+
+    public int encodeText() {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            ClientProtocol.writeLine(out, ClientProtocol.formatText(msgs, i, line));
+        }
+        return out.position();
+    }
+
+    public double decodeBinary() {
+        double sum = 0;
+        frames.clear();
+        while (frames.hasRemaining()) {
+            int len = frames.getShort() & 0xFFFF;
+            int end = frames.position() + len;
+            if (frames.get() == BinaryProtocol.OP_LIGHT) {
+                LightType type = LightType.fromCode(frames.get());
+                int id = frames.getInt();
+                double x = BinaryProtocol.readCoord(frames);
+                double y = BinaryProtocol.readCoord(frames);
+                sum += type.ordinal() + id + x + y;
+            }
+            frames.position(end);
+        }
+        return sum;
+    }
+
+    public int encodeDelta() {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            ClientProtocol.writeFrame(out, msgs, i, encoder);
+        }
+        return out.position();
+    }
+
+    public double decodeDelta() {
+        deltaFrames.clear();
+        return decodeDeltaFrames(deltaFrames);
+    }
+
+    private double decodeDeltaFrames(ByteBuffer in) {
+        double sum = 0;
+        while (in.hasRemaining()) {
+            int len = in.getShort() & 0xFFFF;
+            int end = in.position() + len;
+            byte op = in.get();
+            if (op == BinaryProtocol.OP_LIGHT_KEY || op == BinaryProtocol.OP_LIGHT_DELTA) {
+                if (decoder.readLight(in, op)) {
+                    sum += decoder.type() + decoder.id() + decoder.x() + decoder.y();
+                }
+            } else if (op == BinaryProtocol.OP_DELTA_RESET) {
+                decoder.reset();
+            }
+            in.position(end);
+        }
+        return sum;
+    }
+
+    public double decodeText() {
+        double sum = 0;
+        for (String l : lines) {
+            if (l.startsWith("LIGHT ")) {
+                String[] parts = l.substring(6).split(" ");
+                int id = Integer.parseInt(parts[1]);
+                double x = Double.parseDouble(parts[2]);
+                double y = Double.parseDouble(parts[3]);
+                sum += parts[0].length() + id + x + y;
+            }
+        }
+        return sum;
+    }
+}
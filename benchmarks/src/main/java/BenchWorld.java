@@ -0,0 +1,159 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * A generated match for the simulation benchmarks: players wandering around
+ * an 800x600 field, bullets in flight and a backlog of light events still
+ * propagating.
+ *
+ * Lives in the default package next to the game classes; the JMH benchmarks
+ * (which have to be in a named package) reach it through bench.Sim.
+ *
+ * A benchmark measures one phase of Game.tick() at a time. prepare(phase)
+ * runs everything else around it, so each measured call sees the same kind of
+ * world a real tick would: finish off the previous tick, drain messages the
+ * way the connections would, top the counts back up, then run the phases that
+ * come before the measured one.
+ *
+ * Since prepare() allocates plenty of its own, it also keeps count of what
+ * the measured run() calls alone allocated (the difference between the end of
+ * one prepare and the start of the next).
+ */
+public class BenchWorld {
+    public static final int TICK = 0;
+    public static final int BULLETS = 1;
+    public static final int VISIBILITY = 2;
+    public static final int MOVEMENT = 3;
+
+    private static final double WIDTH = 800;
+    private static final double HEIGHT = 600;
+    private static final double MAX_SPEED = 2.0;
+
+    private final int players;
+    private final int bullets;
+    private final int events;
+    private final SplittableRandom random;
+
+    private Game game;
+    private int nextPlayerId;
+    private int nextBulletId;
+    private int nextEventId;
+    private boolean midTick = false;
+    private MessageQueue drained = new MessageQueue();
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private long runStartBytes = -1;
+    private long runBytes;
+    private long runs;
+
+    public BenchWorld(int players, int bullets, int events, long seed) {
+        this.players = players;
+        this.bullets = bullets;
+        this.events = events;
+        this.random = new SplittableRandom(seed);
+        reset();
+        // One settling tick so everything is in the game before the first measurement
+        topUp();
+        game.tick();
+    }
+
+    public void prepare(int phase) {
+        if (runStartBytes >= 0) {
+            runBytes += THREADS.getCurrentThreadAllocatedBytes() - runStartBytes;
+            runs++;
+        }
+        prepareRun(phase);
+        runStartBytes = THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /** Bytes allocated per run() since the last resetAllocation(). */
+    public double allocatedPerRun() {
+        return runs == 0 ? 0 : (double) runBytes / runs;
+    }
+
+    public void resetAllocation() {
+        runStartBytes = -1;
+        runBytes = 0;
+        runs = 0;
+    }
+
+    private void prepareRun(int phase) {
+        if (phase == TICK) {
+            topUp();
+            return;
+        }
+
+        if (midTick) {
+            for (int p = phase + 1; p <= MOVEMENT; p++) run(p);
+        }
+        topUp();
+        game.applyPendingCommands();
+        game.updateTime();
+        for (int p = BULLETS; p < phase; p++) run(p);
+    }
+
+    public void run(int phase) {
+        switch (phase) {
+            case TICK -> game.tick();
+            case BULLETS -> game.updateBullets();
+            case VISIBILITY -> game.processLightVisibility();
+            case MOVEMENT -> game.updateLoc();
+        }
+        midTick = phase != TICK && phase != MOVEMENT;
+    }
+
+    private void reset() {
+        game = new Game();
+        nextPlayerId = 0;
+        nextBulletId = 0;
+        nextEventId = 0;
+        midTick = false;
+    }
+
+    private void topUp() {
+        List<Player> all = game.getPlayers();
+
+        int alive = 0;
+        for (Player p : all) {
+            // Whatever the connections would have sent out
+            drained = game.swapPendingMessages(p.getId(), drained);
+            drained.clear();
+            if (!p.isAlive()) continue;
+            alive++;
+
+            // Steer anyone wandering off the field back onto it
+            if (p.getX() < 0 || p.getX() > WIDTH) game.movePlayer(p.getId(), -2 * p.getVx(), 0);
+            if (p.getY() < 0 || p.getY() > HEIGHT) game.movePlayer(p.getId(), 0, -2 * p.getVy());
+        }
+
+        // Dead players never leave a Game, so start over before they pile up
+        if (all.size() - alive > players) {
+            reset();
+            alive = 0;
+        }
+
+        for (; alive < players; alive++) {
+            Player p = new Player(nextPlayerId++, random.nextDouble(WIDTH), random.nextDouble(HEIGHT));
+            game.addPlayer(p);
+            game.movePlayer(p.getId(), speed(), speed());
+        }
+
+        List<Bullet> flying = game.getBullets();
+        while (flying.size() < bullets) {
+            flying.add(new Bullet(nextBulletId++, random.nextDouble(WIDTH), random.nextDouble(HEIGHT),
+                    random.nextDouble(WIDTH), random.nextDouble(HEIGHT), game.getCurrentTime()));
+        }
+
+        while (game.getLightEventCount() < events) {
+            game.addLightEvent(new Light(LightType.SHOT, nextEventId++,
+                    random.nextDouble(WIDTH), random.nextDouble(HEIGHT), game.getCurrentTime()));
+        }
+    }
+
+    private double speed() {
+        return random.nextDouble(-MAX_SPEED, MAX_SPEED);
+    }
+}
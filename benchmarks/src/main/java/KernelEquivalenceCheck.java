@@ -0,0 +1,118 @@
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that the vector DistanceKernel gives exactly what the scalar one
+ * does, first kernel against kernel (many more rounds than the startup check
+ * does), then whole matches: the same match played by two Games, one on each
+ * kernel, under a few light settings, must hand every player the same
+ * messages in the same order every tick. A late joiner makes for some big
+ * batches along the way.
+ *
+ * Exits 1 on the first difference, or if this JVM can't run the vector
+ * kernel at all.
+ *
+ *     mvn -B verify -Pkernel-check
+ */
+public class KernelEquivalenceCheck {
+    private static final int KERNEL_ROUNDS = 200_000;
+    private static final int PLAYERS = 48;
+    private static final int TICKS = 1_500;
+    private static final int LATE_JOIN_TICK = 600;
+
+    // Light horizon, area of interest, budget; 0 is off, as in Game's setters
+    private static final double[][] SETTINGS = {
+            {0, 0, 0},
+            {300, 0, 0},
+            {0, 250, 0},
+            {400, 250, 600},
+    };
+
+    public static void main(String[] args) {
+        DistanceKernel scalar = DistanceKernel.use("scalar");
+        DistanceKernel vector = DistanceKernel.use("vector");
+        if (vector.lanes() == 1) {
+            System.out.println("FAIL: no vector kernel on this JVM (needs --add-modules " + DistanceKernel.VECTOR_MODULE + ")");
+            System.exit(1);
+        }
+        System.out.println("Comparing scalar with " + vector.describe());
+
+        String mismatch = DistanceKernel.selfCheck(scalar, vector, KERNEL_ROUNDS, 42);
+        if (mismatch != null) {
+            System.out.println("FAIL: kernels differ at " + mismatch);
+            System.exit(1);
+        }
+        System.out.println(KERNEL_ROUNDS + " kernel batches: identical");
+
+        for (double[] s : SETTINGS) {
+            String label = String.format(Locale.ROOT, "horizon %.0f, area of interest %.0f, budget %.0f", s[0], s[1], s[2]);
+            DistanceKernel.use("scalar");
+            Match a = new Match(s, 7);
+            DistanceKernel.use("vector");
+            Match b = new Match(s, 7);
+
+            long messages = 0;
+            for (int tick = 0; tick < TICKS; tick++) {
+                a.tick(tick);
+                b.tick(tick);
+                for (int id = 0; id < a.players.length; id++) {
+                    String diff = compare(a.drained[id], b.drained[id]);
+                    if (diff != null) {
+                        System.out.println("FAIL: " + label + ": tick " + tick + ", player " + id + ": " + diff);
+                        System.exit(1);
+                    }
+                    messages += a.drained[id].size();
+                }
+            }
+            System.out.println(label + ": " + messages + " messages identical");
+        }
+        System.out.println("OK");
+    }
+
+    private static String compare(MessageQueue a, MessageQueue b) {
+        if (a.size() != b.size()) return a.size() + " vs " + b.size() + " messages";
+        for (int i = 0; i < a.size(); i++) {
+            if (a.kind(i) != b.kind(i) || a.typeCode(i) != b.typeCode(i) || a.id(i) != b.id(i)
+                    || Double.compare(a.x(i), b.x(i)) != 0 || Double.compare(a.y(i), b.y(i)) != 0) {
+                return "message " + i + " differs";
+            }
+        }
+        return null;
+    }
+
+    /** One Game and the bots playing it; two made with the same seed play the same match. */
+    private static class Match {
+        final Game game = new Game();
+        final Player[] players = new Player[PLAYERS + 1];
+        final InputProvider[] inputs = new InputProvider[PLAYERS + 1];
+        final MessageQueue[] drained = new MessageQueue[PLAYERS + 1];
+        final SplittableRandom random;
+
+        Match(double[] settings, long seed) {
+            game.setLightHorizon(settings[0]);
+            game.setAreaOfInterest(settings[1]);
+            game.setLightBudget((int) settings[2], LightScheduler.EvictionPolicy.OLDEST);
+            random = new SplittableRandom(seed);
+            for (int id = 0; id < players.length; id++) {
+                players[id] = new Player(id, random.nextDouble(800), random.nextDouble(600));
+                inputs[id] = new InputProvider.Hunter(id, random.split(), 20, 60);
+                drained[id] = new MessageQueue();
+                if (id < PLAYERS) game.addPlayer(players[id]);
+            }
+        }
+
+        void tick(int tick) {
+            if (tick == LATE_JOIN_TICK) game.addPlayer(players[PLAYERS]);
+            int joined = tick < LATE_JOIN_TICK ? PLAYERS : players.length;
+            for (int id = 0; id < joined; id++) {
+                if (players[id].isAlive()) inputs[id].act(game, players[id], tick);
+            }
+            game.tick();
+            for (int id = 0; id < players.length; id++) {
+                drained[id].clear();
+                drained[id] = game.swapPendingMessages(id, drained[id]);
+                inputs[id].observe(drained[id]);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that a steady-state tick allocates nothing: a row of players who
+ * stand still and keep firing straight down (so nobody dies and the world
+ * stays the same size), with every tick's messages swapped out and encoded
+ * into binary frames (plain and delta-coded) the way the connections would.
+ *
+ * After a warm-up long enough for the JIT and for every array and pool to
+ * reach its working size, measures the thread's allocated bytes over a run
+ * of ticks and exits 1 if that's anything but zero.
+ *
+ * The text protocol is measured too but only reported: StringBuilder's
+ * append(double) allocates inside the JDK, so text clients cost a little
+ * garbage per message on the writer side.
+ *
+ *     mvn -B verify -Palloc-check
+ */
+public class TickAllocationCheck {
+    private static final int PLAYERS = 64;
+    private static final int WARMUP_TICKS = 10_000;
+    private static final int MEASURED_TICKS = 2_000;
+    // Shots per tick across everyone; 30 rounds each lasts well past both measured runs
+    private static final double SHOTS_PER_TICK = 0.1;
+
+    private final Game game = new Game();
+    private final Player[] players = new Player[PLAYERS];
+    private MessageQueue drained = new MessageQueue();
+    private final PositionDeltas[] deltas = new PositionDeltas[PLAYERS];
+    private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+    private final StringBuilder line = new StringBuilder(ClientProtocol.MAX_TEXT_LINE);
+    private double shotCredit = 0;
+    private int nextShooter = 0;
+    private long messages = 0;
+    private boolean text = false;
+
+    public static void main(String[] args) {
+        TickAllocationCheck check = new TickAllocationCheck();
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            check.tick();
+        }
+        check.messages = 0;
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            check.tick();
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        System.out.printf("%d ticks, %d players, %d bullets in flight, %d live light events, %d messages%n",
+                MEASURED_TICKS, PLAYERS, check.game.getBullets().size(),
+                check.game.getLightEventCount(), check.messages);
+        System.out.printf("Tick + binary encode: %d bytes (%.2f bytes/tick)%n",
+                allocated, (double) allocated / MEASURED_TICKS);
+
+        check.text = true;
+        check.messages = 0;
+        before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            check.tick();
+        }
+        long textAllocated = threads.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("Tick + text encode:   %d bytes (%.2f bytes/message, not checked)%n",
+                textAllocated, (double) textAllocated / Math.max(1, check.messages));
+
+        if (allocated > 0) {
+            System.out.println("FAIL: the tick path allocates");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private TickAllocationCheck() {
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = new Player(i, 10 + i * 12.0, 100);
+            deltas[i] = new PositionDeltas();
+            game.addPlayer(players[i]);
+        }
+    }
+
+    private void tick() {
+        shotCredit += SHOTS_PER_TICK;
+        while (shotCredit >= 1) {
+            shotCredit -= 1;
+            Player p = players[nextShooter];
+            nextShooter = (nextShooter + 1) % PLAYERS;
+            game.playerShoot(p.getId(), p.getX(), p.getY() + 100);
+        }
+
+        game.tick();
+
+        for (int i = 0; i < PLAYERS; i++) {
+            drained = game.swapPendingMessages(players[i].getId(), drained);
+            for (int m = 0; m < drained.size(); m++) {
+                if (out.remaining() < 2 * ClientProtocol.MAX_TEXT_LINE) out.clear();
+                if (text) {
+                    ClientProtocol.writeLine(out, ClientProtocol.formatText(drained, m, line));
+                } else {
+                    ClientProtocol.writeFrame(out, drained, m);
+                    ClientProtocol.writeFrame(out, drained, m, deltas[i]);
+                }
+            }
+            messages += drained.size();
+            drained.clear();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding LIGHT messages in each wire format. Each call
+ * handles a batch of BATCH messages; scores are per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final int BATCH = 256;
+
+    Object codec;
+
+    @Setup(Level.Trial)
+    public void build() throws Throwable {
+        codec = (Object) Sim.NEW_CODEC.invokeExact(BATCH, 42L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encodeBinary() throws Throwable {
+        return (int) Sim.ENCODE_BINARY.invokeExact(codec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encodeText() throws Throwable {
+        return (int) Sim.ENCODE_TEXT.invokeExact(codec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encodeDelta() throws Throwable {
+        return (int) Sim.ENCODE_DELTA.invokeExact(codec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public double decodeBinary() throws Throwable {
+        return (double) Sim.DECODE_BINARY.invokeExact(codec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public double decodeText() throws Throwable {
+        return (double) Sim.DECODE_TEXT.invokeExact(codec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public double decodeDelta() throws Throwable {
+        return (double) Sim.DECODE_DELTA.invokeExact(codec);
+    }
+}
@@ -0,0 +1,87 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The game classes live in the default package, which can't be imported, and
+ * JMH won't generate code for benchmarks in the default package. So the
+ * benchmarks call BenchWorld and BenchCodec through these handles instead.
+ * They're static finals, so the JIT inlines straight through them.
+ */
+final class Sim {
+    static final int TICK;
+    static final int BULLETS;
+    static final int VISIBILITY;
+    static final int MOVEMENT;
+
+    /** (int players, int bullets, int events, long seed) -> BenchWorld */
+    static final MethodHandle NEW_WORLD;
+    /** (BenchWorld, int phase) */
+    static final MethodHandle PREPARE;
+    static final MethodHandle RUN;
+    /** (BenchWorld) -> bytes allocated per run */
+    static final MethodHandle ALLOCATED_PER_RUN;
+    /** (BenchWorld) */
+    static final MethodHandle RESET_ALLOCATION;
+    /** (String mode): DistanceKernel.use(), for the worlds made after it */
+    static final MethodHandle USE_KERNEL;
+
+    /** (int count, long seed) -> BenchCodec */
+    static final MethodHandle NEW_CODEC;
+    /** (BenchCodec) -> bytes written */
+    static final MethodHandle ENCODE_BINARY;
+    static final MethodHandle ENCODE_TEXT;
+    static final MethodHandle ENCODE_DELTA;
+    /** (BenchCodec) -> checksum */
+    static final MethodHandle DECODE_BINARY;
+    static final MethodHandle DECODE_TEXT;
+    static final MethodHandle DECODE_DELTA;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> world = Class.forName("BenchWorld");
+            Class<?> codec = Class.forName("BenchCodec");
+
+            TICK = world.getField("TICK").getInt(null);
+            BULLETS = world.getField("BULLETS").getInt(null);
+            VISIBILITY = world.getField("VISIBILITY").getInt(null);
+            MOVEMENT = world.getField("MOVEMENT").getInt(null);
+
+            NEW_WORLD = lookup.findConstructor(world, MethodType.methodType(void.class, int.class, int.class, int.class, long.class))
+                    .asType(MethodType.methodType(Object.class, int.class, int.class, int.class, long.class));
+            PREPARE = lookup.findVirtual(world, "prepare", MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class));
+            RUN = lookup.findVirtual(world, "run", MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class));
+            ALLOCATED_PER_RUN = lookup.findVirtual(world, "allocatedPerRun", MethodType.methodType(double.class))
+                    .asType(MethodType.methodType(double.class, Object.class));
+            RESET_ALLOCATION = lookup.findVirtual(world, "resetAllocation", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            Class<?> kernel = Class.forName("DistanceKernel");
+            USE_KERNEL = lookup.findStatic(kernel, "use", MethodType.methodType(kernel, String.class))
+                    .asType(MethodType.methodType(void.class, String.class));
+
+            NEW_CODEC = lookup.findConstructor(codec, MethodType.methodType(void.class, int.class, long.class))
+                    .asType(MethodType.methodType(Object.class, int.class, long.class));
+            ENCODE_BINARY = codecMethod(lookup, codec, "encodeBinary", int.class);
+            ENCODE_TEXT = codecMethod(lookup, codec, "encodeText", int.class);
+            DECODE_BINARY = codecMethod(lookup, codec, "decodeBinary", double.class);
+            DECODE_TEXT = codecMethod(lookup, codec, "decodeText", double.class);
+            ENCODE_DELTA = codecMethod(lookup, codec, "encodeDelta", int.class);
+            DECODE_DELTA = codecMethod(lookup, codec, "decodeDelta", double.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle codecMethod(MethodHandles.Lookup lookup, Class<?> codec, String name, Class<?> ret)
+            throws ReflectiveOperationException {
+        return lookup.findVirtual(codec, name, MethodType.methodType(ret))
+                .asType(MethodType.methodType(ret, Object.class));
+    }
+
+    private Sim() {}
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * One call of each Game tick phase on a generated world. Sizes are the
+ * params, e.g. -p players=256 -p bullets=512 -p events=16384; -p
+ * kernel=scalar,vector compares the DistanceKernels (forks get the vector
+ * module).
+ *
+ * The rest of the tick runs in a per-invocation setup (see BenchWorld), so
+ * these are meant for worlds big enough that a phase takes microseconds;
+ * at that size the setup's timestamping overhead is noise.
+ *
+ * The GC profiler's allocation numbers include that setup, so each result
+ * also carries allocBytesPerOp: what the measured phase allocated by itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class SimulationBenchmark {
+
+    @State(Scope.Thread)
+    public abstract static class World {
+        @Param({"16", "128"})
+        public int players;
+
+        @Param({"64"})
+        public int bullets;
+
+        @Param({"256", "4096"})
+        public int events;
+
+        @Param({"auto"})
+        public String kernel;
+
+        Object world;
+        Allocation allocation;
+        int iterations;
+
+        abstract int phase();
+
+        @Setup(Level.Trial)
+        public void build(Allocation allocation, BenchmarkParams params) throws Throwable {
+            this.allocation = allocation;
+            this.iterations = params.getMeasurement().getCount();
+            Sim.USE_KERNEL.invokeExact(kernel);
+            world = (Object) Sim.NEW_WORLD.invokeExact(players, bullets, events, 42L);
+        }
+
+        @Setup(Level.Iteration)
+        public void startIteration() throws Throwable {
+            Sim.RESET_ALLOCATION.invokeExact(world);
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() throws Throwable {
+            Sim.PREPARE.invokeExact(world, phase());
+            allocation.allocBytesPerOp = (double) Sim.ALLOCATED_PER_RUN.invokeExact(world) / iterations;
+        }
+
+        void run() throws Throwable {
+            Sim.RUN.invokeExact(world, phase());
+        }
+    }
+
+    /**
+     * JMH adds EVENTS counters up over the measurement iterations, so each
+     * iteration reports its share and the total comes out as the average.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocation {
+        public double allocBytesPerOp;
+    }
+
+    public static class Tick extends World {
+        @Override int phase() { return Sim.TICK; }
+    }
+
+    public static class Bullets extends World {
+        @Override int phase() { return Sim.BULLETS; }
+    }
+
+    public static class Visibility extends World {
+        @Override int phase() { return Sim.VISIBILITY; }
+    }
+
+    public static class Movement extends World {
+        @Override int phase() { return Sim.MOVEMENT; }
+    }
+
+    /** Game.tick(), everything included. */
+    @Benchmark
+    public void tick(Tick w) throws Throwable {
+        w.run();
+    }
+
+    /** Game.updateBullets() */
+    @Benchmark
+    public void updateBullets(Bullets w) throws Throwable {
+        w.run();
+    }
+
+    /** Game.processLightVisibility() */
+    @Benchmark
+    public void processLightVisibility(Visibility w) throws Throwable {
+        w.run();
+    }
+
+    /** Game.updateLoc() */
+    @Benchmark
+    public void updateLoc(Movement w) throws Throwable {
+        w.run();
+    }
+}
@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * One independent match: its own Game (clock, players, bullets, light
+ * events) and the clients connected to it. ServerMain runs several of these
+ * side by side, each ticked by one of its arena worker threads.
+ */
+public class Arena {
+
+    /** Where ServerMain puts a new connection. */
+    public enum Placement {
+        /** The first arena with room, so matches fill up one at a time. */
+        FILL_FIRST,
+        /** Whichever arena has the fewest players, to spread load evenly. */
+        LEAST_LOADED;
+
+        public Arena choose(Arena[] arenas, int arenaSize) {
+            if (this == FILL_FIRST) {
+                for (Arena a : arenas) {
+                    if (a.getClientCount() < arenaSize) return a;
+                }
+            }
+            // LEAST_LOADED, or everything is full
+            Arena best = arenas[0];
+            for (Arena a : arenas) {
+                if (a.getClientCount() < best.getClientCount()) best = a;
+            }
+            return best;
+        }
+    }
+
+    private final int id;
+    private final Game game = new Game();
+    // Copy-on-write: the tick walks whatever array it reads, no iterator to allocate
+    private volatile ClientConnection[] clients = new ClientConnection[0];
+
+    // Everyone who has been given a player here, by id, and the session token
+    // that lets a client take that player back after a reconnect (0 = none).
+    // Guarded by this.
+    private int playerCount = 0;
+    private Player[] players = new Player[16];
+    private long[] tokens = new long[16];
+    private static final SecureRandom random = new SecureRandom();
+
+    private Checkpointer checkpointer;
+
+    public Arena(int id, double timeStep) {
+        this.id = id;
+        game.setTimeStep(timeStep);
+    }
+
+    public Arena(int id, double timeStep, ForkJoinPool visibilityPool, int parallelMinViewers) {
+        this(id, timeStep);
+        game.setVisibilityParallelism(visibilityPool, parallelMinViewers);
+    }
+
+    public int getId()           { return id; }
+    public Game getGame()        { return game; }
+    public int getClientCount()  { return clients.length; }
+    public List<ClientConnection> getClients() { return Arrays.asList(clients); }
+
+    /** Accept thread. Player ids are per arena. */
+    public synchronized Player createPlayer() {
+        Player newPlayer = new Player(playerCount++, 400, 300);
+        remember(newPlayer);
+        game.addPlayer(newPlayer);
+        return newPlayer;
+    }
+
+    private void remember(Player p) {
+        int id = p.getId();
+        if (id >= players.length) {
+            int n = Math.max(id + 1, players.length * 2);
+            players = Arrays.copyOf(players, n);
+            tokens = Arrays.copyOf(tokens, n);
+        }
+        players[id] = p;
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0);
+        tokens[id] = token;
+    }
+
+    /** What a client is told so it can resume as p later; see ClientProtocol.SESSION. */
+    public synchronized String sessionLine(Player p) {
+        return ClientProtocol.SESSION + " " + id + " " + tokens[p.getId()];
+    }
+
+    /**
+     * A reconnecting client wants player playerId back. If token is right and
+     * nobody is connected as that player, returns it with a new token (so
+     * each one only works once); otherwise null.
+     */
+    public synchronized Player claim(int playerId, long token) {
+        if (playerId < 0 || playerId >= playerCount || token == 0 || tokens[playerId] != token) return null;
+        Player p = players[playerId];
+        if (p == null) return null;
+        for (ClientConnection c : clients) {
+            if (c.getPlayer() == p) return null;
+        }
+        remember(p);
+        return p;
+    }
+
+    /** The player a resuming client was first given: it leaves the match and can't be claimed. */
+    public synchronized void release(Player p) {
+        tokens[p.getId()] = 0;
+        players[p.getId()] = null;
+        game.removePlayer(p.getId());
+    }
+
+    public synchronized void addClient(ClientConnection client) {
+        ClientConnection[] grown = Arrays.copyOf(clients, clients.length + 1);
+        grown[clients.length] = client;
+        clients = grown;
+    }
+
+    public synchronized void removeClient(ClientConnection client) {
+        ClientConnection[] current = clients;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                ClientConnection[] shrunk = new ClientConnection[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                clients = shrunk;
+                return;
+            }
+        }
+    }
+
+    /** Arena worker thread: one simulation step, then hand out the results. */
+    public void tick() {
+        game.tick();
+
+        long start = System.nanoTime();
+        ClientConnection[] current = clients;
+        for (int i = 0; i < current.length; i++) {
+            current[i].sendUpdates(game);
+        }
+        game.getStats().endPhase(TickStats.Phase.SEND, start);
+
+        if (checkpointer != null) checkpointer.afterTick(game.getStats());
+    }
+
+    /** Take checkpoints from the next tick on. Before the arena workers start. */
+    public void setCheckpointer(Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+        checkpointer.start();
+    }
+
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * Arena worker, between ticks: the ids handed out and their session
+     * tokens, then the game (Game.writeCheckpoint()).
+     *
+     *     u32 player ids handed out, then that many i64 tokens
+     */
+    public void writeCheckpoint(ByteBuffer buf) {
+        synchronized (this) {
+            buf.putInt(playerCount);
+            for (int i = 0; i < playerCount; i++) {
+                buf.putLong(tokens[i]);
+            }
+        }
+        game.writeCheckpoint(buf);
+    }
+
+    /**
+     * Put the arena back the way writeCheckpoint() left it. Before the arena
+     * workers start and before anyone connects; the players sit where they
+     * were until their clients resume them.
+     */
+    public synchronized void readCheckpoint(ByteBuffer buf) {
+        playerCount = buf.getInt();
+        players = new Player[Math.max(16, playerCount)];
+        tokens = new long[players.length];
+        for (int i = 0; i < playerCount; i++) {
+            tokens[i] = buf.getLong();
+        }
+        game.readCheckpoint(buf);
+        for (Player p : game.getPlayers()) {
+            if (p.getId() < playerCount) players[p.getId()] = p;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.Arrays;
+
+/**
+ * Min-heap of light events waiting to reach one viewer, keyed by the
+ * earliest point the wavefront could possibly arrive (see LightScheduler).
+ * Events are LightStore slots; keys and slots live in parallel arrays so
+ * pushing doesn't allocate.
+ */
+public class ArrivalQueue {
+    private double[] keys = new double[16];
+    private int[] slots = new int[16];
+    private int size = 0;
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    public double peekKey() {
+        return keys[0];
+    }
+
+    public int peek(int index) {
+        return slots[index];
+    }
+
+    public void push(double key, int slot) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            slots = Arrays.copyOf(slots, size * 2);
+        }
+        int i = size++;
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) break;
+            keys[i] = keys[parent];
+            slots[i] = slots[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        slots[i] = slot;
+    }
+
+    public int pop() {
+        int top = slots[0];
+        int last = --size;
+        if (last > 0) {
+            keys[0] = keys[last];
+            slots[0] = slots[last];
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /** Rewrite slots moved by LightStore.compact(); keys don't change. */
+    public void remap(int[] forward, int movedFrom) {
+        for (int i = 0; i < size; i++) {
+            if (slots[i] >= movedFrom) {
+                slots[i] = forward[slots[i]];
+            }
+        }
+    }
+
+    /** Drop every entry whose event has been evicted from store, then re-heapify. */
+    public void removeEvicted(LightStore store) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!store.isEvicted(slots[i])) {
+                keys[kept] = keys[i];
+                slots[kept] = slots[i];
+                kept++;
+            }
+        }
+        if (kept == size) return;
+        size = kept;
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftDown(int i) {
+        double key = keys[i];
+        int slot = slots[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && keys[right] < keys[child]) child = right;
+            if (key <= keys[child]) break;
+            keys[i] = keys[child];
+            slots[i] = slots[child];
+            i = child;
+        }
+        keys[i] = key;
+        slots[i] = slot;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
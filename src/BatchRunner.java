@@ -0,0 +1,336 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless batch runner: plays lots of matches straight through Game, no
+ * sockets, no tick pacing, no output until the end, spread over a pool of
+ * worker threads. Every player is driven by an InputProvider. Each match
+ * gets its own seed (--seed plus its index), so any one can be re-run.
+ *
+ * Usage: BatchRunner [--matches=1000] [--players=8] [--threads=N] [--max-ticks=3600]
+ *                    [--seed=1] [--ai=hunter|random|script] [--script=FILE]
+ *                    [--shoot-chance=0.01] [--reload=30-90]
+ *                    [--aoi-radius=DIST] [--light-horizon=DIST] [--light-budget=N]
+ *                    [--kernel=auto|scalar|vector]
+ *                    [--out=batch-results.bin]
+ *        BatchRunner --read=FILE       summary of an earlier run
+ *
+ * A match ends when at most one player is left, when nobody left has any
+ * shots and no bullets are in flight, or at --max-ticks.
+ *
+ * Results file (big endian): i32 MAGIC, i16 version, i32 players per match,
+ * then one record per match in the order they finished:
+ *
+ *     i32 match, i64 seed, i32 ticks, u8 how it ended, i64 LIGHTs delivered,
+ *     per player: i32 tick they died (-1 = survived), u8 shots used
+ */
+public class BatchRunner {
+    public static final int MAGIC = 0x52465342; // "RFSB"
+    public static final short VERSION = 1;
+
+    static final byte LAST_STANDING = 0;
+    static final byte OUT_OF_AMMO = 1;
+    static final byte TIME_LIMIT = 2;
+    private static final String[] ENDINGS = { "last standing", "out of ammo", "time limit" };
+
+    private int matches = 1000;
+    private int playersPerMatch = 8;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxTicks = 3600;
+    private long seed = 1;
+    private String ai = "hunter";
+    private String[][] script;
+    private double shootChance = 0.01;
+    private int minReload = 30, maxReload = 90;
+    private double aoiRadius = 0;
+    private double lightHorizon = 0;
+    private int lightBudget = 0;
+    private String kernel = "auto";
+    private String out = "batch-results.bin";
+
+    public static void main(String[] args) throws Exception {
+        BatchRunner runner = new BatchRunner();
+        String read = null;
+        for (String arg : args) {
+            if (arg.startsWith("--matches=")) {
+                runner.matches = Integer.parseInt(arg.substring("--matches=".length()));
+            } else if (arg.startsWith("--players=")) {
+                runner.playersPerMatch = Integer.parseInt(arg.substring("--players=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                runner.threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--max-ticks=")) {
+                runner.maxTicks = Integer.parseInt(arg.substring("--max-ticks=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                runner.seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.startsWith("--ai=")) {
+                runner.ai = arg.substring("--ai=".length());
+            } else if (arg.startsWith("--script=")) {
+                runner.ai = "script";
+                runner.script = InputProvider.Script.load(arg.substring("--script=".length()));
+            } else if (arg.startsWith("--shoot-chance=")) {
+                runner.shootChance = Double.parseDouble(arg.substring("--shoot-chance=".length()));
+            } else if (arg.startsWith("--reload=")) {
+                String[] range = arg.substring("--reload=".length()).split("-");
+                runner.minReload = Integer.parseInt(range[0]);
+                runner.maxReload = Integer.parseInt(range[range.length - 1]);
+            } else if (arg.startsWith("--aoi-radius=")) {
+                runner.aoiRadius = Double.parseDouble(arg.substring("--aoi-radius=".length()));
+            } else if (arg.startsWith("--light-horizon=")) {
+                runner.lightHorizon = Double.parseDouble(arg.substring("--light-horizon=".length()));
+            } else if (arg.startsWith("--light-budget=")) {
+                runner.lightBudget = Integer.parseInt(arg.substring("--light-budget=".length()));
+            } else if (arg.startsWith("--kernel=")) {
+                runner.kernel = arg.substring("--kernel=".length());
+            } else if (arg.startsWith("--out=")) {
+                runner.out = arg.substring("--out=".length());
+            } else if (arg.startsWith("--read=")) {
+                read = arg.substring("--read=".length());
+            } else {
+                System.out.println("Unknown option: " + arg);
+            }
+        }
+
+        if (read != null) {
+            summarize(read);
+        } else {
+            runner.run();
+        }
+    }
+
+    private InputProvider.Factory providers() {
+        switch (ai) {
+            case "random":
+                return (id, random) -> new InputProvider.RandomWalk(random, shootChance);
+            case "script":
+                if (script == null) throw new IllegalArgumentException("--ai=script needs --script=FILE");
+                return (id, random) -> new InputProvider.Script(script, random);
+            case "hunter":
+                return (id, random) -> new InputProvider.Hunter(id, random, minReload, maxReload);
+            default:
+                throw new IllegalArgumentException("Unknown --ai: " + ai);
+        }
+    }
+
+    public void run() throws Exception {
+        InputProvider.Factory factory = providers();
+        DistanceKernel k = DistanceKernel.use(kernel);
+        System.out.println("Batch: " + matches + " matches of " + playersPerMatch + " players (" + ai + ") on "
+                + threads + " thread(s), up to " + maxTicks + " ticks each, seed " + seed + ", " + k.describe() + " kernel");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<Result> done = new ExecutorCompletionService<>(pool);
+        long start = System.nanoTime();
+        for (int i = 0; i < matches; i++) {
+            int index = i;
+            done.submit(() -> play(index, factory));
+        }
+
+        long ticks = 0;
+        try (DataOutputStream file = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(Paths.get(out))))) {
+            file.writeInt(MAGIC);
+            file.writeShort(VERSION);
+            file.writeInt(playersPerMatch);
+            for (int i = 0; i < matches; i++) {
+                Result r = done.take().get();
+                r.write(file);
+                ticks += r.ticks;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT,
+                "%d matches, %d ticks in %.2f s: %.0f matches/s, %.0f ticks/s, %.0fx real time at 60 Hz",
+                matches, ticks, seconds, matches / seconds, ticks / seconds, ticks / seconds / 60));
+        System.out.println("Results in " + out);
+        summarize(out);
+    }
+
+    // One whole match on the calling thread
+    private Result play(int index, InputProvider.Factory factory) {
+        long matchSeed = seed + index;
+        SplittableRandom random = new SplittableRandom(matchSeed);
+        Game game = new Game();
+        game.setAreaOfInterest(aoiRadius);
+        game.setLightHorizon(lightHorizon);
+        game.setLightBudget(lightBudget, LightScheduler.EvictionPolicy.OLDEST);
+
+        Player[] players = new Player[playersPerMatch];
+        InputProvider[] inputs = new InputProvider[playersPerMatch];
+        int[] startingShots = new int[playersPerMatch];
+        for (int i = 0; i < playersPerMatch; i++) {
+            players[i] = new Player(i, random.nextDouble(50, 750), random.nextDouble(50, 550));
+            startingShots[i] = players[i].getShotsRemaining();
+            inputs[i] = factory.create(i, random.split());
+            game.addPlayer(players[i]);
+        }
+
+        Result r = new Result(index, matchSeed, playersPerMatch);
+        Arrays.fill(r.deathTick, -1);
+        MessageQueue spare = new MessageQueue();
+        r.end = TIME_LIMIT;
+        int tick;
+        for (tick = 0; tick < maxTicks; tick++) {
+            for (int i = 0; i < players.length; i++) {
+                if (players[i].isAlive()) inputs[i].act(game, players[i], tick);
+            }
+            game.tick();
+
+            int alive = 0;
+            boolean armed = false;
+            for (int i = 0; i < players.length; i++) {
+                MessageQueue got = game.swapPendingMessages(i, spare);
+                for (int m = 0; m < got.size(); m++) {
+                    if (got.kind(m) == MessageQueue.LIGHT) r.lights++;
+                }
+                inputs[i].observe(got);
+                got.clear();
+                spare = got;
+
+                if (players[i].isAlive()) {
+                    alive++;
+                    if (players[i].getShotsRemaining() > 0) armed = true;
+                } else if (r.deathTick[i] < 0) {
+                    r.deathTick[i] = tick;
+                }
+            }
+            if (alive <= 1) {
+                r.end = LAST_STANDING;
+                break;
+            }
+            if (!armed && game.getBullets().isEmpty()) {
+                r.end = OUT_OF_AMMO;
+                break;
+            }
+        }
+        r.ticks = Math.min(tick + 1, maxTicks);
+        for (int i = 0; i < players.length; i++) {
+            r.shots[i] = (byte) (startingShots[i] - players[i].getShotsRemaining());
+        }
+        return r;
+    }
+
+    /** One match's outcome, as it goes in the results file. */
+    private static class Result {
+        final int match;
+        final long seed;
+        int ticks;
+        byte end;
+        long lights;
+        final int[] deathTick;
+        final byte[] shots;
+
+        Result(int match, long seed, int players) {
+            this.match = match;
+            this.seed = seed;
+            this.deathTick = new int[players];
+            this.shots = new byte[players];
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(match);
+            out.writeLong(seed);
+            out.writeInt(ticks);
+            out.writeByte(end);
+            out.writeLong(lights);
+            for (int i = 0; i < deathTick.length; i++) {
+                out.writeInt(deathTick[i]);
+                out.writeByte(shots[i]);
+            }
+        }
+
+        static Result read(DataInputStream in, int players) throws IOException {
+            Result r = new Result(in.readInt(), in.readLong(), players);
+            r.ticks = in.readInt();
+            r.end = in.readByte();
+            r.lights = in.readLong();
+            for (int i = 0; i < players; i++) {
+                r.deathTick[i] = in.readInt();
+                r.shots[i] = in.readByte();
+            }
+            return r;
+        }
+    }
+
+    /** Aggregate figures for a results file. */
+    public static void summarize(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a batch results file: " + path);
+            short version = in.readShort();
+            if (version != VERSION) throw new IOException("Results version " + version + " not supported");
+            int players = in.readInt();
+
+            int matches = 0;
+            long ticks = 0, lights = 0, shots = 0;
+            long[] endings = new long[ENDINGS.length];
+            long[] kills = new long[1024];
+            int killCount = 0;
+            long longest = 0;
+            while (true) {
+                Result r;
+                try {
+                    r = Result.read(in, players);
+                } catch (EOFException e) {
+                    break;
+                }
+                matches++;
+                ticks += r.ticks;
+                lights += r.lights;
+                longest = Math.max(longest, r.ticks);
+                endings[r.end]++;
+                for (int i = 0; i < players; i++) {
+                    shots += r.shots[i] & 0xFF;
+                    if (r.deathTick[i] >= 0) {
+                        if (killCount == kills.length) kills = Arrays.copyOf(kills, killCount * 2);
+                        kills[killCount++] = r.deathTick[i];
+                    }
+                }
+            }
+            if (matches == 0) {
+                System.out.println("No matches in " + path);
+                return;
+            }
+            kills = Arrays.copyOf(kills, killCount);
+            Arrays.sort(kills);
+
+            System.out.println(String.format(Locale.ROOT, "=== %d matches of %d players ===", matches, players));
+            StringBuilder ended = new StringBuilder();
+            for (int i = 0; i < ENDINGS.length; i++) {
+                if (i > 0) ended.append(", ");
+                ended.append(endings[i]).append(' ').append(ENDINGS[i]);
+            }
+            System.out.println("Ended:        " + ended);
+            System.out.println(String.format(Locale.ROOT, "Length ticks: mean %.0f, max %d",
+                    (double) ticks / matches, longest));
+            System.out.println(String.format(Locale.ROOT, "Kills:        %d (%.2f per match)",
+                    killCount, (double) killCount / matches));
+            if (killCount > 0) {
+                System.out.println(String.format(Locale.ROOT, "Kill tick:    p10 %d  p50 %d  p90 %d  max %d",
+                        percentile(kills, 0.10), percentile(kills, 0.50), percentile(kills, 0.90), kills[killCount - 1]));
+            }
+            System.out.println(String.format(Locale.ROOT, "Shots used:   %.2f per player, %.2f per kill",
+                    (double) shots / ((long) matches * players), killCount == 0 ? 0.0 : (double) shots / killCount));
+            System.out.println(String.format(Locale.ROOT, "LIGHTs:       %.0f per match, %.1f per tick",
+                    (double) lights / matches, (double) lights / ticks));
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary framing used once both ends agree to it.
+ *
+ * Handshake: the server still opens with the text line "ID <n>". A client
+ * that wants binary answers with the text line "PROTO BIN" and from then on
+ * sends frames. The server acknowledges with its own "PROTO BIN" line ahead of
+ * its first binary frame. Clients that never ask stay on the text protocol.
+ *
+ * Frame layout (big endian):
+ *
+ *     u16 length          bytes that follow, opcode included
+ *     u8  opcode
+ *     ... payload
+ *
+ *     LIGHT     u8 type code, i32 id, i32 x, i32 y
+ *     YOU_DEAD  (empty)
+ *     MOVE      i32 dx, i32 dy
+ *     SHOOT     i32 tx, i32 ty
+ *
+ * Coordinates are fixed point, COORD_SCALE steps per world unit.
+ *
+ * A client can ask for "PROTO DELTA" instead, which is the same framing but
+ * LIGHTs are coded against the last position this client was sent for the
+ * same (type, id); see PositionDeltas. The server acks with "PROTO DELTA".
+ *
+ *     LIGHT_KEY    u8 type code, varint id, svarint x, svarint y      absolute
+ *     LIGHT_DELTA  u8 type code, varint id, svarint dx, svarint dy    from the last one
+ *     DELTA_RESET  (empty)   forget every position, keyframes follow
+ *
+ * varint is LEB128 (7 bits a byte, low first) of the 32 bits taken as
+ * unsigned; svarint zigzags first so small negatives stay small.
+ */
+public final class BinaryProtocol {
+    public static final String HELLO = "PROTO BIN";
+    public static final String DELTA_HELLO = "PROTO DELTA";
+
+    public static final byte OP_LIGHT = 1;
+    public static final byte OP_YOU_DEAD = 2;
+    public static final byte OP_MOVE = 3;
+    public static final byte OP_SHOOT = 4;
+    public static final byte OP_LIGHT_KEY = 5;
+    public static final byte OP_LIGHT_DELTA = 6;
+    public static final byte OP_DELTA_RESET = 7;
+
+    public static final int COORD_SCALE = 16;
+
+    /** Largest frame body we accept, and enough room for any single frame. */
+    public static final int MAX_FRAME = 64;
+
+    private BinaryProtocol() {}
+
+    public static int quantize(double v) {
+        long q = Math.round(v * COORD_SCALE);
+        if (q > Integer.MAX_VALUE) return Integer.MAX_VALUE;
+        if (q < Integer.MIN_VALUE) return Integer.MIN_VALUE;
+        return (int) q;
+    }
+
+    public static double dequantize(int q) {
+        return (double) q / COORD_SCALE;
+    }
+
+    // --- encoders: each appends one whole frame to buf ---
+
+    public static void writeLight(ByteBuffer buf, byte typeCode, int id, double x, double y) {
+        buf.putShort((short) 14);
+        buf.put(OP_LIGHT);
+        buf.put(typeCode);
+        buf.putInt(id);
+        buf.putInt(quantize(x));
+        buf.putInt(quantize(y));
+    }
+
+    /** LIGHT_KEY or LIGHT_DELTA; x and y are already quantized (or deltas of quantized values). */
+    public static void writeLightCoded(ByteBuffer buf, byte op, byte typeCode, int id, int x, int y) {
+        int start = buf.position();
+        buf.putShort((short) 0);
+        buf.put(op);
+        buf.put(typeCode);
+        putVarint(buf, id);
+        putVarint(buf, zigzag(x));
+        putVarint(buf, zigzag(y));
+        buf.putShort(start, (short) (buf.position() - start - 2));
+    }
+
+    public static void writeDeltaReset(ByteBuffer buf) {
+        buf.putShort((short) 1);
+        buf.put(OP_DELTA_RESET);
+    }
+
+    public static void writeYouDead(ByteBuffer buf) {
+        buf.putShort((short) 1);
+        buf.put(OP_YOU_DEAD);
+    }
+
+    public static void writeMove(ByteBuffer buf, double dx, double dy) {
+        writePair(buf, OP_MOVE, dx, dy);
+    }
+
+    public static void writeShoot(ByteBuffer buf, double tx, double ty) {
+        writePair(buf, OP_SHOOT, tx, ty);
+    }
+
+    private static void writePair(ByteBuffer buf, byte op, double a, double b) {
+        buf.putShort((short) 9);
+        buf.put(op);
+        buf.putInt(quantize(a));
+        buf.putInt(quantize(b));
+    }
+
+    public static void putVarint(ByteBuffer buf, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    public static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    // --- decoding ---
+
+    public static int getVarint(ByteBuffer frame) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = frame.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    public static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read the next frame body (opcode onwards) into frame, ready to get()
+     * from. Throws EOFException when the stream ends.
+     */
+    public static void readFrame(DataInputStream in, ByteBuffer frame) throws IOException {
+        int len = in.readUnsignedShort();
+        if (len == 0 || len > frame.capacity()) {
+            throw new IOException("Bad frame length " + len);
+        }
+        frame.clear();
+        in.readFully(frame.array(), 0, len);
+        frame.limit(len);
+    }
+
+    /** Read the next fixed-point coordinate from a frame body. */
+    public static double readCoord(ByteBuffer frame) {
+        return dequantize(frame.getInt());
+    }
+
+    /**
+     * Read one text line byte by byte so nothing past the newline is consumed
+     * (the stream may switch to binary right after it). Returns null at EOF.
+     */
+    public static String readLine(InputStream in, StringBuilder sb) throws IOException {
+        sb.setLength(0);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c != '\r') sb.append((char) c);
+        }
+        if (c == -1 && sb.length() == 0) return null;
+        return sb.toString();
+    }
+}
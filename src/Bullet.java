@@ -1,6 +1,4 @@
 public class Bullet {
-    private static int NEXT_BULLET_ID = 0;
-
     private int bulletId;
     private double startX, startY;
     private double dirX, dirY;
@@ -10,9 +8,16 @@ public class Bullet {
     private double currentX, currentY;
     private static final double MAX_DISTANCE = 2000.0;
     private static final double SAFE_DISTANCE = 20.0;
+    public static final double HIT_RADIUS = 15.0;
+
+    public Bullet(int bulletId, double sx, double sy, double tx, double ty, double startTime) {
+        reset(bulletId, sx, sy, tx, ty, startTime);
+    }
 
-    public Bullet(double sx, double sy, double tx, double ty, double startTime) {
-        this.bulletId = NEXT_BULLET_ID++;
+    /** Reuse a spent bullet for a new shot; same as constructing a fresh one. */
+    public final void reset(int bulletId, double sx, double sy, double tx, double ty, double startTime) {
+        this.active = true;
+        this.bulletId = bulletId;
         this.startX = sx;
         this.startY = sy;
         this.startTime = startTime;
@@ -29,6 +34,20 @@ public class Bullet {
         this.currentY = sy;
     }
 
+    /**
+     * A bullet in flight exactly as a checkpoint had it. The direction is
+     * taken as is rather than worked out again from a target.
+     */
+    public static Bullet restore(int bulletId, double sx, double sy, double dirX, double dirY,
+                                 double startTime, double x, double y) {
+        Bullet b = new Bullet(bulletId, sx, sy, sx, sy, startTime);
+        b.dirX = dirX;
+        b.dirY = dirY;
+        b.currentX = x;
+        b.currentY = y;
+        return b;
+    }
+
     public void updatePosition(double gameTime, double speedOfLight) {
         double elapsed = gameTime - startTime;
         double dist = speedOfLight * elapsed;
@@ -36,28 +55,39 @@ public class Bullet {
         currentX = startX + dirX * dist;
         currentY = startY + dirY * dist;
 
-        double traveled = distance(startX, startY, currentX, currentY);
-        if (traveled > MAX_DISTANCE) {
+        if (distanceSq(startX, startY, currentX, currentY) > MAX_DISTANCE * MAX_DISTANCE) {
             active = false;
         }
     }
 
+    /**
+     * Bullets can't hit anything until they're SAFE_DISTANCE from the muzzle,
+     * so players don't shoot themselves.
+     */
+    public boolean isArmed() {
+        return distanceSq(startX, startY, currentX, currentY) >= SAFE_DISTANCE * SAFE_DISTANCE;
+    }
+
     public boolean canCollideWith(double px, double py) {
-        double traveled = distance(startX, startY, currentX, currentY);
-        if (traveled < SAFE_DISTANCE) {
+        if (!isArmed()) {
             return false;
         }
-        return distance(currentX, currentY, px, py) < 15.0;
+        return distanceSq(currentX, currentY, px, py) < HIT_RADIUS * HIT_RADIUS;
     }
 
     public int    getBulletId() { return bulletId; }
     public double getX()        { return currentX; }
     public double getY()        { return currentY; }
     public boolean isActive()   { return active; }
+    public double getStartX()   { return startX; }
+    public double getStartY()   { return startY; }
+    public double getDirX()     { return dirX; }
+    public double getDirY()     { return dirY; }
+    public double getStartTime() { return startTime; }
 
-    private double distance(double x1, double y1, double x2, double y2) {
+    private double distanceSq(double x1, double y1, double x2, double y2) {
         double dx = x2 - x1;
         double dy = y2 - y1;
-        return Math.sqrt(dx*dx + dy*dy);
+        return dx*dx + dy*dy;
     }
 }
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Periodic snapshots of one Arena, so the server can be restarted without
+ * losing the match (ServerMain --checkpoint=DIR, then --restore).
+ *
+ * Every so many ticks, right after the tick, the arena worker copies the
+ * arena's whole state into a heap buffer (Arena.writeCheckpoint(); that copy
+ * is the only part the tick pays for, and goes in TickStats as CHECKPOINT).
+ * A "checkpoint-writer" thread then puts it in a memory-mapped file and
+ * forces it to disk. Checkpoints alternate between two files, arena-N.ckpt.0
+ * and .1, so a crash mid-write still leaves the one before; load() takes the
+ * newer of the two that checks out. If the writer is still busy with the
+ * last one when the next is due, that one is skipped.
+ *
+ * File layout (big endian): a HEADER_SIZE header (magic, version, sequence
+ * number, tick, body length, CRC32 of the body), then the body. The header
+ * goes in after the body, so a half-written file fails its CRC.
+ */
+public class Checkpointer {
+    public static final int MAGIC = 0x52464350; // "RFCP"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    private static final int INITIAL_BUFFER = 64 * 1024;
+    private static final int MIN_MAPPING = 1024 * 1024;
+
+    /** The two files an arena's checkpoints alternate between. */
+    public static Path fileFor(Path dir, int arenaId, int which) {
+        return dir.resolve("arena-" + arenaId + ".ckpt." + which);
+    }
+
+    /** A checkpoint read back: its body, positioned at the start. */
+    public static class Loaded {
+        public final Path file;
+        public final long sequence;
+        public final long tick;
+        public final ByteBuffer body;
+
+        Loaded(Path file, long sequence, long tick, ByteBuffer body) {
+            this.file = file;
+            this.sequence = sequence;
+            this.tick = tick;
+            this.body = body;
+        }
+    }
+
+    /** The newest intact checkpoint for the arena, or null if there isn't one. */
+    public static Loaded load(Path dir, int arenaId) throws IOException {
+        Loaded best = null;
+        for (int which = 0; which < 2; which++) {
+            Path file = fileFor(dir, arenaId, which);
+            if (!Files.exists(file)) continue;
+            Loaded loaded = read(file);
+            if (loaded == null) {
+                System.out.println("DEBUG: Ignoring " + file + ": incomplete or corrupt");
+            } else if (best == null || loaded.sequence > best.sequence) {
+                best = loaded;
+            }
+        }
+        return best;
+    }
+
+    private static Loaded read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            if (channel.size() < HEADER_SIZE) return null;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.getInt(0) != MAGIC || map.getShort(4) != VERSION) return null;
+            long sequence = map.getLong(8);
+            long tick = map.getLong(16);
+            int length = map.getInt(24);
+            int crc = map.getInt(28);
+            if (length < 0 || HEADER_SIZE + (long) length > map.capacity()) return null;
+
+            ByteBuffer body = map.slice(HEADER_SIZE, length);
+            CRC32 check = new CRC32();
+            check.update(body.duplicate());
+            if ((int) check.getValue() != crc) return null;
+            return new Loaded(file, sequence, tick, body);
+        }
+    }
+
+    private final Arena arena;
+    private final int every;
+    private final FileChannel[] files = new FileChannel[2];
+    private final MappedByteBuffer[] maps = new MappedByteBuffer[2];
+
+    // Tick thread only
+    private ByteBuffer front = ByteBuffer.allocate(INITIAL_BUFFER);
+    private long ticks;
+    private final long firstTick;
+    private long sequence;
+
+    // Handed to the writer by setting busy, handed back when it clears it
+    private ByteBuffer back = ByteBuffer.allocate(INITIAL_BUFFER);
+    private long backSequence, backTick;
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    private Thread writer;
+    private volatile boolean closing = false;
+    private final CRC32 crc = new CRC32();
+
+    // For the log
+    private volatile long written, skipped, lastBytes, lastWriteNanos;
+
+    /**
+     * A checkpoint every `every` ticks into dir. ticks and sequence carry on
+     * from a restored checkpoint (0 for a fresh start), so new checkpoints
+     * always count as newer than the one restored from.
+     */
+    public Checkpointer(Arena arena, Path dir, int every, long ticks, long sequence) throws IOException {
+        this.arena = arena;
+        this.every = Math.max(1, every);
+        this.ticks = ticks;
+        this.firstTick = ticks;
+        this.sequence = sequence;
+        Files.createDirectories(dir);
+        for (int which = 0; which < 2; which++) {
+            files[which] = FileChannel.open(fileFor(dir, arena.getId(), which),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    public void start() {
+        writer = new Thread(this::writeLoop, "checkpoint-writer-" + arena.getId());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Arena worker, after each tick: take a checkpoint if one is due. */
+    public void afterTick(TickStats stats) {
+        if (++ticks % every != 0) return;
+        if (busy.get()) {
+            skipped++;
+            return;
+        }
+
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                front.clear();
+                arena.writeCheckpoint(front);
+                break;
+            } catch (BufferOverflowException e) {
+                front = ByteBuffer.allocate(front.capacity() * 2);
+            }
+        }
+        front.flip();
+
+        ByteBuffer full = front;
+        front = back;
+        back = full;
+        backSequence = ++sequence;
+        backTick = ticks;
+        busy.set(true);
+        LockSupport.unpark(writer);
+        stats.endPhase(TickStats.Phase.CHECKPOINT, start);
+    }
+
+    /** One line for the log: sizes and what the checkpoints cost, on the tick thread and off it. */
+    public String report(TickStats stats) {
+        Histogram h = stats.phase(TickStats.Phase.CHECKPOINT);
+        long n = Math.max(1, h.count());
+        return String.format(Locale.ROOT,
+                "%d written, %d skipped, last %d KB; copy on tick %.0f us avg, %.0f us max (%.2f us per tick); write %.1f ms",
+                written, skipped, lastBytes / 1024, h.sum() / 1e3 / n, h.max() / 1e3,
+                h.sum() / 1e3 / Math.max(1, ticks - firstTick), lastWriteNanos / 1e6);
+    }
+
+    // --- Writer thread ---
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                if (busy.get()) {
+                    write(back, backSequence, backTick);
+                    busy.set(false);
+                } else if (closing) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("DEBUG: Checkpoints for arena " + arena.getId() + " failed: " + e);
+        } finally {
+            for (FileChannel f : files) {
+                try { f.close(); } catch (IOException ex) {}
+            }
+        }
+    }
+
+    private void write(ByteBuffer body, long seq, long tick) throws IOException {
+        long start = System.nanoTime();
+        int which = (int) (seq & 1);
+        int length = body.remaining();
+        MappedByteBuffer map = maps[which];
+        if (map == null || map.capacity() < HEADER_SIZE + length) {
+            int size = Math.max(MIN_MAPPING, Integer.highestOneBit(HEADER_SIZE + length) << 1);
+            map = maps[which] = files[which].map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        crc.reset();
+        crc.update(body.duplicate());
+        map.position(HEADER_SIZE);
+        map.put(body);
+        map.putInt(0, MAGIC);
+        map.putShort(4, VERSION);
+        map.putLong(8, seq);
+        map.putLong(16, tick);
+        map.putInt(24, length);
+        map.putInt(28, (int) crc.getValue());
+        map.force();
+
+        lastBytes = HEADER_SIZE + length;
+        lastWriteNanos = System.nanoTime() - start;
+        written++;
+    }
+
+    /** Any thread. Finishes the checkpoint in hand, if any, and closes the files. */
+    public void close() throws InterruptedException {
+        if (writer == null || closing) return;
+        closing = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+}
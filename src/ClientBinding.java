@@ -0,0 +1,22 @@
+/**
+ * Where a connection's client is playing: the arena, its game, the player
+ * and (with UDP on) the link for that player. Immutable, so a connection
+ * can move to an old player in another arena (see ClientProtocol.RESUME)
+ * with a single volatile write. A worker or I/O thread reading it sees the
+ * old one or the new one, never a game from one and a player from the other.
+ */
+public class ClientBinding {
+    public final Arena arena;
+    public final Game game;
+    public final Player player;
+    public final UdpLink udp;      // null unless the server has UDP on
+    public final boolean resumed;  // a player taken back with RESUME, not a fresh one
+
+    public ClientBinding(Arena arena, Player player, UdpLink udp, boolean resumed) {
+        this.arena = arena;
+        this.game = arena.getGame();
+        this.player = player;
+        this.udp = udp;
+        this.resumed = resumed;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * One connected client as the game loop sees it, whatever the transport.
+ */
+public interface ClientConnection {
+    Player getPlayer();
+
+    /**
+     * Called on the game loop thread once per tick, with the Game it just
+     * ticked. Hands that player's messages to the connection's
+     * OutboundBuffer and wakes its writer; never blocks on the network.
+     * Does nothing if the connection has moved to another game since the
+     * caller last looked at its clients (see ClientBinding).
+     */
+    void sendUpdates(Game caller);
+
+    OutboundBuffer getOutbound();
+
+    void close();
+}
@@ -1,38 +1,101 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ClientHandler extends Thread {
+/**
+ * Blocking transport: one thread per client doing blocking reads, plus a
+ * virtual writer thread that drains the client's OutboundBuffer.
+ * See NioServer for the selector-based alternative.
+ */
+public class ClientHandler extends Thread implements ClientConnection {
     private Socket socket;
-    private Player player;
-    private Game game;
+    // Replaced whole if the client resumes an old player (see ClientProtocol.RESUME)
+    private volatile ClientBinding binding;
+    private ClientBinding flushed; // the one sendUpdates() last ran for; guarded by this
     private ServerMain server;
+    private final NetStats net;
 
+    private OutputStream rawOut;
+    // The writer and the reader (answering a RESUME) share the stream. Not a monitor:
+    // the writer is a virtual thread, and blocking in a socket write inside one pins its carrier
+    private final ReentrantLock outLock = new ReentrantLock();
     private PrintWriter out;
-    private BufferedReader in;
-    private boolean running = true;
+    private DataInputStream in;
+    private volatile boolean running = true;
 
-    public ClientHandler(Socket socket, Player player, Game game, ServerMain server) {
+    // Set by this thread when the client sends "PROTO BIN" (or "PROTO DELTA",
+    // which sets deltas first); the writer acknowledges it ahead of its next
+    // batch and switches to frames.
+    private volatile boolean binaryRequested = false;
+    private boolean binaryAcked = false;
+    private PositionDeltas deltas; // writer thread once published
+
+    // Filled by the tick thread, drained by the writer
+    private final OutboundBuffer outbound;
+    private MessageQueue fromGame = new MessageQueue(); // tick thread only; swapped with the game's
+
+    // Writer thread only
+    private final MessageQueue outgoing = new MessageQueue();
+    private final StringBuilder line = new StringBuilder(ClientProtocol.MAX_TEXT_LINE);
+    private final ByteBuffer outBytes = ByteBuffer.allocate(16 * 1024); // encoded lines or frames
+
+    // Reused by the reader
+    private final StringBuilder inLine = new StringBuilder(64);
+    private final ByteBuffer inFrame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+
+    public ClientHandler(Socket socket, Player player, Arena arena, ServerMain server) {
         this.socket = socket;
-        this.player = player;
-        this.game = game;
         this.server = server;
+        this.outbound = server.newOutboundBuffer();
+        this.net = server.getNetStats();
+        // The UDP link, if any, takes over sending once the client binds it
+        this.binding = new ClientBinding(arena, player, server.newUdpLink(player, arena.getGame()), false);
+    }
+
+    @Override
+    public Player getPlayer() {
+        return binding.player;
+    }
+
+    @Override
+    public OutboundBuffer getOutbound() {
+        return outbound;
     }
 
     @Override
     public void run() {
         try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            rawOut = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new PrintWriter(rawOut, true);
 
-            out.println("ID " + player.getId());
+            ClientBinding first = binding;
+            out.println("ID " + first.player.getId());
+            out.println(first.arena.sessionLine(first.player));
+            if (first.udp != null) out.println(first.udp.offer());
             out.flush();
 
-            System.out.println("DEBUG: Sent ID " + player.getId() + " to client.");
+            System.out.println("DEBUG: Sent ID " + first.player.getId() + " to client.");
+
+            Thread.ofVirtual().name("writer-" + first.player.getId()).start(this::writeLoop);
 
             String line;
-            while (running && (line = in.readLine()) != null) {
-                handleCommand(line);
+            while (running && (line = BinaryProtocol.readLine(in, inLine)) != null) {
+                if (BinaryProtocol.HELLO.equals(line) || BinaryProtocol.DELTA_HELLO.equals(line)) {
+                    if (BinaryProtocol.DELTA_HELLO.equals(line)) deltas = new PositionDeltas();
+                    binaryRequested = true;
+                    System.out.println("DEBUG: Client " + binding.player.getId() + " switched to "
+                            + (deltas != null ? "delta-coded " : "") + "binary protocol.");
+                    readFrames();
+                    break;
+                }
+                if (line.startsWith(ClientProtocol.RESUME + " ")) {
+                    resume(line);
+                    continue;
+                }
+                ClientBinding b = binding;
+                ClientProtocol.applyCommand(b.game, b.player, line, net);
             }
         } catch (IOException e) {
             System.out.println("DEBUG: Client disconnected: " + socket);
@@ -41,35 +104,173 @@ public class ClientHandler extends Thread {
         }
     }
 
-    private void handleCommand(String line) {
-        System.out.println("DEBUG: From client " + player.getId() + ": " + line);
+    // Swap the player we were given for the one the client had before, possibly in another arena
+    private void resume(String line) {
+        ClientBinding was = binding;
+        long[] r = ClientProtocol.parseResume(line);
+        Arena target = r != null ? server.getArena((int) r[0]) : null;
+        Player old = target != null && !was.resumed ? target.claim((int) r[1], r[2]) : null;
+        if (old == null) {
+            System.out.println("DEBUG: Client " + was.player.getId() + " failed to resume: " + line);
+            outLock.lock();
+            try {
+                out.println(ClientProtocol.RESUME_FAILED);
+                out.flush();
+            } finally {
+                outLock.unlock();
+            }
+            return;
+        }
+
+        // One write moves us; the old arena's worker may still have us listed, sendUpdates() skips it
+        ClientBinding now = new ClientBinding(target, old, server.newUdpLink(old, target.getGame()), true);
+        binding = now;
+        was.arena.removeClient(this);
+        was.arena.release(was.player);
+        if (was.udp != null) server.removeUdpLink(was.udp);
+        System.out.println("DEBUG: Client " + was.player.getId() + " in arena " + was.arena.getId()
+                + " resumed as player " + old.getId() + " in arena " + target.getId());
+        target.addClient(this);
+        if (!running) {
+            // Closed meanwhile, maybe before it could see the new binding
+            closeConnections();
+            return;
+        }
+
+        outLock.lock();
         try {
-            String[] parts = line.split(" ");
-            if ("MOVE".equals(parts[0])) {
-                double dx = Double.parseDouble(parts[1]);
-                double dy = Double.parseDouble(parts[2]);
-                game.movePlayer(player.getId(), dx, dy);
-            } else if ("SHOOT".equals(parts[0])) {
-                double tx = Double.parseDouble(parts[1]);
-                double ty = Double.parseDouble(parts[2]);
-                game.playerShoot(player.getId(), tx, ty);
+            out.println("ID " + old.getId());
+            out.println(target.sessionLine(old));
+            if (now.udp != null) out.println(now.udp.offer());
+            out.flush();
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        while (running) {
+            BinaryProtocol.readFrame(in, inFrame);
+            ClientBinding b = binding;
+            ClientProtocol.applyFrame(b.game, b.player, inFrame, net);
+        }
+    }
+
+    // Synchronized because right after a resume the old arena's worker and the
+    // new one can both be in here; only the one whose game we're bound to gets past the check
+    @Override
+    public synchronized void sendUpdates(Game caller) {
+        ClientBinding b = binding;
+        if (!running || b.game != caller) return;
+
+        fromGame = b.game.swapPendingMessages(b.player.getId(), fromGame);
+        if (b != flushed) {
+            flushed = b;
+            if (b.resumed) {
+                // What piled up while nobody was connected as this player; the client
+                // starts over from the ID and SESSION lines it got with the resume
+                fromGame.clear();
+                return;
             }
-        } catch (Exception e) {
-            System.out.println("DEBUG: Bad command: " + line + " => " + e);
+        }
+        if (b.udp != null && b.udp.isBound()) {
+            sendUdp(b);
+            return;
+        }
+        boolean ok = outbound.offer(fromGame);
+        fromGame.clear();
+        if (!ok) {
+            System.out.println("DEBUG: Outbound buffer overflowed, dropping client " + b.player.getId());
+            closeConnections();
+        }
+    }
+
+    private void sendUdp(ClientBinding b) {
+        try {
+            boolean ok = b.udp.send(fromGame);
+            if (!ok) {
+                System.out.println("DEBUG: Client " + b.player.getId() + " stopped acking over UDP, dropping it");
+                closeConnections();
+            }
+        } catch (IOException e) {
+            System.out.println("DEBUG: UDP send failed, dropping client " + b.player.getId() + ": " + e);
+            closeConnections();
+        } finally {
+            fromGame.clear();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running && outbound.awaitData()) {
+                outbound.drainTo(outgoing, Integer.MAX_VALUE);
+                net.messagesOut.add(outgoing.size());
+                outLock.lock();
+                try {
+                    if (binaryRequested) {
+                        writeFrames();
+                    } else {
+                        writeLines();
+                    }
+                } finally {
+                    outLock.unlock();
+                }
+                outgoing.clear();
+            }
+        } catch (IOException e) {
+            System.out.println("DEBUG: Write failed, dropping client: " + socket);
+            closeConnections();
+        } catch (InterruptedException e) {
+            // closing
         }
     }
 
-    public void sendUpdates() {
-        List<String> lines = game.consumePendingMessages(player.getId());
-        for (String msg : lines) {
-            out.println(msg);
+    private void writeLines() throws IOException {
+        outBytes.clear();
+        for (int i = 0; i < outgoing.size(); i++) {
+            if (outBytes.remaining() < ClientProtocol.MAX_TEXT_LINE) {
+                flushOutBytes();
+            }
+            ClientProtocol.writeLine(outBytes, ClientProtocol.formatText(outgoing, i, line));
+        }
+        flushOutBytes();
+        rawOut.flush();
+    }
+
+    private void writeFrames() throws IOException {
+        if (!binaryAcked) {
+            out.println(deltas != null ? BinaryProtocol.DELTA_HELLO : BinaryProtocol.HELLO);
+            out.flush();
+            binaryAcked = true;
         }
-        out.flush();
+        outBytes.clear();
+        for (int i = 0; i < outgoing.size(); i++) {
+            if (outBytes.remaining() < BinaryProtocol.MAX_FRAME) {
+                flushOutBytes();
+            }
+            ClientProtocol.writeFrame(outBytes, outgoing, i, deltas);
+        }
+        flushOutBytes();
+        rawOut.flush();
+    }
+
+    private void flushOutBytes() throws IOException {
+        rawOut.write(outBytes.array(), 0, outBytes.position());
+        net.bytesOut.add(outBytes.position());
+        outBytes.clear();
+    }
+
+    @Override
+    public void close() {
+        closeConnections();
     }
 
     private void closeConnections() {
         running = false;
-        server.removeClient(this);
+        outbound.close();
+        ClientBinding b = binding;
+        b.arena.removeClient(this);
+        if (b.udp != null) server.removeUdpLink(b.udp);
         try {
             if (in  != null) in.close();
             if (out != null) out.close();
@@ -1,68 +1,126 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.VolatileImage;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
 
 public class ClientMain extends JFrame {
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-
-    private int playerId = -1;
-    private boolean iAmAlive = true;
+    // Replaced by the listener thread when it reconnects
+    private volatile Socket socket;
+    private volatile DataInputStream in;
+    private volatile OutputStream rawOut;
+    private volatile PrintWriter out;
+    private volatile boolean connected = false;
+
+    // {arena, token} from the server's SESSION line, for getting our player
+    // back if the connection drops (e.g. the server restarts from a checkpoint)
+    private static final int RECONNECT_SECONDS = 30;
+    private long[] session; // listener thread
+
+    // Binary framing (see BinaryProtocol); text lines otherwise
+    private final boolean binary;
+    // Delta-coded positions on top of the framing, null for plain frames; listener thread only
+    private final PositionDeltas deltas;
+    private final ByteBuffer sendFrame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+    private final ByteBuffer recvFrame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+    private final StringBuilder recvLine = new StringBuilder(64);
+
+    // Text mode: the current line's bytes, parsed in place; listener thread only
+    private final byte[] lineBuf = new byte[ClientProtocol.MAX_TEXT_LINE];
+    private int lineLen, linePos;
+
+    // Take the server up on a UDP offer (see UdpProtocol); udpClient is set once it's made
+    private final boolean wantUdp;
+    private final String host;
+    private final int port;
+    private volatile UdpClient udpClient;
+    private DatagramChannel udpChannel; // listener thread
+    private Thread udpReader;
+
+    private volatile int playerId = -1;
+    private volatile boolean iAmAlive = true;
 
     // The local player's own position (no flicker, purely local)
-    private double localX = 400, localY = 300;
-
-    // We store ephemeral light events from the server
-    // Each frame, we draw them once, then discard them
-    private List<LightEvent> visibleLightEvents = new ArrayList<>();
+    private volatile double localX = 400, localY = 300;
+
+    // We store ephemeral light events from the server: each network thread adds
+    // to its own ring, and each frame the render loop takes whatever has arrived
+    // in both, draws it once, then discards it
+    private static final int EVENT_RING = 1 << 14;
+    private final LightEventRing tcpLights = new LightEventRing(EVENT_RING);
+    private final LightEventRing udpLights = new LightEventRing(EVENT_RING);
+
+    // Rendering: our own loop page-flipping a BufferStrategy, not Swing repaints
+    private static final int FRAME_RATE = 60;
+    private static final LightType[] LIGHT_TYPES = LightType.values();
+    private GameCanvas canvas;
+    private volatile boolean showOverlay = true; // F3 toggles
+
+    // Render thread only: the last FRAME_SAMPLES frame times, summed up for the overlay twice a second
+    private static final int FRAME_SAMPLES = 120;
+    private SpriteCache sprites;
+    private final long[] frameTimes = new long[FRAME_SAMPLES];
+    private final long[] sortedFrames = new long[FRAME_SAMPLES];
+    private int frames;
+    private long framesSinceSummary;
+    private long lastSummary;
+    private String overlay = "";
 
     // Movement flags
     private boolean upPressed, downPressed, leftPressed, rightPressed;
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ClientMain("localhost", 12345));
+        // "text" keeps the old line protocol, e.g. for poking at the server by hand;
+        // "bin" is binary frames with absolute positions; "udp" is "bin" plus LIGHTs
+        // over UDP, if the server runs with --udp
+        String mode = args.length > 0 ? args[0] : "delta";
+        boolean binary = !mode.equals("text");
+        boolean delta = mode.equals("delta");
+        boolean udp = mode.equals("udp");
+        SwingUtilities.invokeLater(() -> new ClientMain("localhost", 12345, binary, delta, udp));
     }
 
-    public ClientMain(String host, int port) {
+    public ClientMain(String host, int port, boolean binary, boolean delta, boolean udp) {
+        this.binary = binary;
+        this.deltas = binary && delta ? new PositionDeltas() : null;
+        this.wantUdp = udp;
+        this.host = host;
+        this.port = port;
         setTitle("Relativistic Fight Simulator (Ephemeral Events)");
         setSize(800, 600);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        ClientPanel panel = new ClientPanel();
-        add(panel);
+        canvas = new GameCanvas();
+        add(canvas);
+        setIgnoreRepaint(true);
 
         setVisible(true);
+        canvas.createBufferStrategy(2);
+        canvas.requestFocusInWindow();
 
         try {
-            socket = new Socket(host, port);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // read "ID <playerId>"
-            String line = in.readLine();
-            if (line != null && line.startsWith("ID ")) {
-                playerId = Integer.parseInt(line.substring(3).trim());
-                System.out.println("DEBUG: My playerId = " + playerId);
-            } else {
-                throw new IOException("No valid ID from server. Got: " + line);
-            }
+            connect(false);
 
             // read server messages in background
             new Thread(this::listenForServerMessages).start();
 
-            // local loop to move & repaint
-            Timer t = new Timer(16, e -> {
-                sendMovement();
-                repaint();
-            });
+            // local loop to move; drawing has its own thread
+            Timer t = new Timer(16, e -> sendMovement());
             t.start();
 
+            Thread render = new Thread(this::renderLoop, "render");
+            render.setDaemon(true);
+            render.start();
+
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Could not connect to server");
@@ -70,15 +128,108 @@ public class ClientMain extends JFrame {
         }
     }
 
+    /**
+     * Open the connection and get our player id. With resume (and a session
+     * from last time) we ask for our old player back straight away; if the
+     * server says no we carry on as the new one it gave us.
+     */
+    private void connect(boolean resume) throws IOException {
+        socket = new Socket(host, port);
+        in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        rawOut = new BufferedOutputStream(socket.getOutputStream());
+        out = new PrintWriter(rawOut, true);
+
+        // read "ID <playerId>"
+        String line = BinaryProtocol.readLine(in, recvLine);
+        if (line == null || !line.startsWith("ID ")) {
+            throw new IOException("No valid ID from server. Got: " + line);
+        }
+        int id = Integer.parseInt(line.substring(3).trim());
+
+        if (resume && session != null) {
+            out.println(ClientProtocol.RESUME + " " + session[0] + " " + playerId + " " + session[1]);
+            out.flush();
+            // Until it answers, whatever comes is for the player we were just given
+            String freshSession = null, freshOffer = null;
+            while ((line = BinaryProtocol.readLine(in, recvLine)) != null) {
+                if (line.startsWith("ID ")) {
+                    id = Integer.parseInt(line.substring(3).trim());
+                    System.out.println("DEBUG: Resumed as player " + id);
+                    break;
+                } else if (line.equals(ClientProtocol.RESUME_FAILED)) {
+                    System.out.println("DEBUG: Couldn't get player " + playerId + " back, carrying on as " + id);
+                    iAmAlive = true;
+                    localX = 400;
+                    localY = 300;
+                    if (freshSession != null) controlLine(freshSession);
+                    if (freshOffer != null) controlLine(freshOffer);
+                    break;
+                } else if (line.startsWith(ClientProtocol.SESSION + " ")) {
+                    freshSession = line;
+                } else if (line.startsWith(UdpProtocol.OFFER + " ")) {
+                    freshOffer = line;
+                }
+            }
+            if (line == null) throw new IOException("Server hung up on RESUME");
+        }
+        playerId = id;
+        System.out.println("DEBUG: My playerId = " + playerId);
+
+        // Ask for binary frames; everything we send from here on is framed
+        if (deltas != null) deltas.reset();
+        if (binary) {
+            out.println(deltas != null ? BinaryProtocol.DELTA_HELLO : BinaryProtocol.HELLO);
+            out.flush();
+        }
+        connected = true;
+    }
+
+    // Keep trying for RECONNECT_SECONDS, e.g. while the server restarts from its checkpoints
+    private boolean reconnect() {
+        connected = false;
+        closeUdp();
+        long giveUp = System.nanoTime() + RECONNECT_SECONDS * 1_000_000_000L;
+        while (System.nanoTime() < giveUp) {
+            try {
+                Thread.sleep(500);
+                connect(true);
+                return true;
+            } catch (IOException e) {
+                try { if (socket != null) socket.close(); } catch (IOException ex) {}
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
     private void listenForServerMessages() {
+        do {
+            readUntilClosed();
+            System.out.println("DEBUG: Reconnecting...");
+        } while (reconnect());
+        System.out.println("DEBUG: Gave up on the server.");
+    }
+
+    private void readUntilClosed() {
         try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.startsWith("LIGHT ")) {
-                    parseLightMessage(line.substring(6));
-                } else if (line.equals("YOU_DEAD")) {
-                    iAmAlive = false;
-                    System.out.println("DEBUG: We died!");
+            while (readLine()) {
+                if (lineStartsWith("LIGHT ")) {
+                    parseLightMessage();
+                    continue;
+                } else if (lineStartsWith("YOU_DEAD")) {
+                    youDied();
+                    continue;
+                }
+
+                // Only the rare lines get turned into Strings
+                String line = new String(lineBuf, 0, lineLen, StandardCharsets.US_ASCII);
+                if (!controlLine(line) && binary && (line.equals(BinaryProtocol.HELLO) || line.equals(BinaryProtocol.DELTA_HELLO))) {
+                    // Server acknowledged, frames from here on
+                    while (true) {
+                        BinaryProtocol.readFrame(in, recvFrame);
+                        handleFrame(recvFrame, tcpLights);
+                    }
                 }
             }
         } catch (IOException e) {
@@ -88,27 +239,224 @@ public class ClientMain extends JFrame {
         }
     }
 
+    // SESSION or a UDP offer; false if it's neither
+    private boolean controlLine(String line) throws IOException {
+        if (line.startsWith(ClientProtocol.SESSION + " ")) {
+            session = ClientProtocol.parseSession(line);
+        } else if (line.startsWith(UdpProtocol.OFFER + " ")) {
+            if (wantUdp) startUdp(UdpProtocol.parseOffer(line));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // The old link's reader has to be gone before a new one starts adding to udpLights
+    private void closeUdp() {
+        udpClient = null;
+        if (udpChannel == null) return;
+        try {
+            udpChannel.close();
+            udpReader.join(1000);
+        } catch (IOException | InterruptedException e) {
+            System.out.println("DEBUG: Closing UDP link: " + e);
+        }
+        udpChannel = null;
+    }
+
+    // Offer is {port, token}. One thread reads datagrams, another keeps HELLO and resends going
+    private void startUdp(long[] offer) throws IOException {
+        if (offer == null) return;
+        closeUdp();
+        DatagramChannel channel = DatagramChannel.open();
+        udpChannel = channel;
+        channel.connect(new InetSocketAddress(host, (int) offer[0]));
+        UdpClient client = new UdpClient(channel, offer[1], PacketImpairment.NONE);
+        udpClient = client;
+
+        Thread reader = new Thread(() -> {
+            ByteBuffer packet = ByteBuffer.allocate(UdpProtocol.MAX_PACKET);
+            UdpClient.FrameHandler handler = frame -> handleFrame(frame, udpLights);
+            try {
+                while (true) {
+                    packet.clear();
+                    channel.receive(packet);
+                    packet.flip();
+                    client.onPacket(packet, handler);
+                }
+            } catch (IOException e) {
+                System.out.println("DEBUG: UDP link closed: " + e);
+            }
+        }, "udp-reader");
+        reader.setDaemon(true);
+        reader.start();
+        udpReader = reader;
+
+        Thread poller = new Thread(() -> {
+            try {
+                while (channel.isOpen()) {
+                    client.poll(System.nanoTime());
+                    Thread.sleep(20);
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("DEBUG: UDP link closed: " + e);
+            }
+        }, "udp-poll");
+        poller.setDaemon(true);
+        poller.start();
+        System.out.println("DEBUG: Offered UDP on port " + offer[0] + ", saying hello");
+    }
+
+    // A frame from the TCP listener or the UDP reader, LIGHTs going to that thread's ring
+    private void handleFrame(ByteBuffer frame, LightEventRing lights) {
+        byte op = frame.get();
+        if (op == BinaryProtocol.OP_LIGHT) {
+            byte type = frame.get();
+            int eid   = frame.getInt();
+            double ex = BinaryProtocol.readCoord(frame);
+            double ey = BinaryProtocol.readCoord(frame);
+            lights.add(type, eid, ex, ey);
+        } else if (op == BinaryProtocol.OP_LIGHT_KEY || op == BinaryProtocol.OP_LIGHT_DELTA) {
+            // Rebuild the absolute position from the last one we were sent
+            if (deltas != null && deltas.readLight(frame, op)) {
+                lights.add(deltas.type(), deltas.id(), deltas.x(), deltas.y());
+            }
+        } else if (op == BinaryProtocol.OP_DELTA_RESET) {
+            if (deltas != null) deltas.reset();
+        } else if (op == BinaryProtocol.OP_YOU_DEAD) {
+            youDied();
+        }
+    }
+
+    private void youDied() {
+        iAmAlive = false;
+        System.out.println("DEBUG: We died!");
+    }
+
+    /**
+     * We treat all LIGHT events as ephemeral, storing them in tcpLights for
+     * one render frame only. Parsed straight out of lineBuf, no Strings.
+     */
+    private void parseLightMessage() {
+        // e.g. "LIGHT P 1 500.0 300.0"
+        //      "LIGHT BULLET 2 520.0 320.0"
+        //      "LIGHT SHOT 1 500.0 300.0"
+        //      "LIGHT EXPLOSION 1 500.0 300.0"
+        linePos = "LIGHT ".length();
+        byte type = nextType();
+        int eid   = (int) nextNumber();
+        double ex = nextNumber();
+        double ey = nextNumber();
+        if (type == 0 || Double.isNaN(ex) || Double.isNaN(ey)) {
+            System.out.println("DEBUG: Bad LIGHT line: " + new String(lineBuf, 0, lineLen, StandardCharsets.US_ASCII));
+            return;
+        }
+
+        // We store it in a ephemeral ring
+        tcpLights.add(type, eid, ex, ey);
+    }
+
+    // --- Text lines, a byte at a time into lineBuf ---
+
+    // Next line into lineBuf (cut short if it's too long); false at end of stream
+    private boolean readLine() throws IOException {
+        lineLen = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c != '\r' && lineLen < lineBuf.length) lineBuf[lineLen++] = (byte) c;
+        }
+        return c != -1 || lineLen > 0;
+    }
+
+    private boolean lineStartsWith(String prefix) {
+        if (lineLen < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (lineBuf[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // The LightType named at linePos, as its code; 0 if it isn't one
+    private byte nextType() {
+        int end = linePos;
+        while (end < lineLen && lineBuf[end] != ' ') end++;
+        int len = end - linePos;
+        for (LightType type : LIGHT_TYPES) {
+            String name = type.name();
+            if (name.length() != len) continue;
+            int i = 0;
+            while (i < len && lineBuf[linePos + i] == name.charAt(i)) i++;
+            if (i == len) {
+                linePos = end + 1;
+                return type.code();
+            }
+        }
+        return 0;
+    }
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     /**
-     * We treat all LIGHT events as ephemeral, storing them in visibleLightEvents for
-     * one render frame only. Then we clear them.
+     * The number at linePos, in the form Double.toString() writes ("-12",
+     * "523.4567891234567", "1.0E-4"); NaN if it's something else. Up to 18
+     * significant digits go into a long, which is then scaled by a power of
+     * ten, so it can be an ulp or so off Double.parseDouble(). Plenty for
+     * pixels.
      */
-    private void parseLightMessage(String data) {
-        // e.g. "P 1 500.0 300.0"
-        //      "BULLET 2 520.0 320.0"
-        //      "SHOT 1 500.0 300.0"
-        //      "EXPLOSION 1 500.0 300.0"
-        String[] parts = data.split(" ");
-        String type = parts[0];
-        int eid     = Integer.parseInt(parts[1]);
-        double ex   = Double.parseDouble(parts[2]);
-        double ey   = Double.parseDouble(parts[3]);
-
-        // We store it in a ephemeral list
-        visibleLightEvents.add(new LightEvent(type, eid, ex, ey));
+    private double nextNumber() {
+        int i = linePos;
+        boolean negative = i < lineLen && lineBuf[i] == '-';
+        if (negative) i++;
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean any = false;
+        for (; i < lineLen && lineBuf[i] >= '0' && lineBuf[i] <= '9'; i++, any = true) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (lineBuf[i] - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+        }
+        if (i < lineLen && lineBuf[i] == '.') {
+            for (i++; i < lineLen && lineBuf[i] >= '0' && lineBuf[i] <= '9'; i++, any = true) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (lineBuf[i] - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+            }
+        }
+        if (any && i < lineLen && (lineBuf[i] == 'E' || lineBuf[i] == 'e')) {
+            i++;
+            boolean negativeExp = i < lineLen && lineBuf[i] == '-';
+            if (negativeExp || (i < lineLen && lineBuf[i] == '+')) i++;
+            int e = 0;
+            boolean expDigits = false;
+            for (; i < lineLen && lineBuf[i] >= '0' && lineBuf[i] <= '9'; i++, expDigits = true) {
+                if (e < 10_000) e = e * 10 + (lineBuf[i] - '0');
+            }
+            if (!expDigits) any = false;
+            exponent += negativeExp ? -e : e;
+        }
+        if (!any || (i < lineLen && lineBuf[i] != ' ')) {
+            return Double.NaN;
+        }
+        linePos = i + 1;
+
+        double v = mantissa;
+        for (; exponent >= POW10.length; exponent -= 22) v *= 1e22;
+        for (; exponent <= -POW10.length; exponent += 22) v /= 1e22;
+        v = exponent >= 0 ? v * POW10[exponent] : v / POW10[-exponent];
+        return negative ? -v : v;
     }
 
     private void sendMovement() {
-        if (!iAmAlive) return;
+        if (!iAmAlive || !connected) return;
 
         double speed = 2.0;
         double dx = 0, dy = 0;
@@ -123,98 +471,188 @@ public class ClientMain extends JFrame {
 
         // Let the server know we moved
         if (dx != 0 || dy != 0) {
-            out.println("MOVE " + dx + " " + dy);
+            if (binary) {
+                sendFrame.clear();
+                BinaryProtocol.writeMove(sendFrame, dx, dy);
+                sendFrame();
+            } else {
+                out.println("MOVE " + dx + " " + dy);
+            }
         }
     }
 
     private void sendShoot(double mx, double my) {
-        if (!iAmAlive) return;
-        out.println("SHOOT " + mx + " " + my);
+        if (!iAmAlive || !connected) return;
+        if (binary) {
+            sendFrame.clear();
+            BinaryProtocol.writeShoot(sendFrame, mx, my);
+            sendFrame();
+        } else {
+            out.println("SHOOT " + mx + " " + my);
+        }
     }
 
-    private class ClientPanel extends JPanel implements KeyListener, MouseListener {
-        public ClientPanel() {
-            setFocusable(true);
-            requestFocusInWindow();
-            addKeyListener(this);
-            addMouseListener(this);
+    private void sendFrame() {
+        try {
+            UdpClient udp = udpClient;
+            if (udp != null && udp.isWelcomed()) {
+                if (!udp.sendReliable(sendFrame)) System.out.println("DEBUG: Server isn't acking over UDP");
+                return;
+            }
+            rawOut.write(sendFrame.array(), 0, sendFrame.position());
+            rawOut.flush();
+        } catch (IOException e) {
+            System.out.println("DEBUG: Send failed: " + e);
         }
+    }
 
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-
-            // Background
-            g.setColor(Color.BLACK);
-            g.fillRect(0, 0, getWidth(), getHeight());
+    private void renderLoop() {
+        BufferStrategy strategy = canvas.getBufferStrategy();
+        long frameNanos = 1_000_000_000L / FRAME_RATE;
+        long next = System.nanoTime();
+        lastSummary = next;
+        while (true) {
+            long start = System.nanoTime();
+            int tcpCount = tcpLights.acquire();
+            int udpCount = udpLights.acquire();
+
+            // The usual BufferStrategy dance: redo the frame if the back buffer went away under us
+            do {
+                do {
+                    Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                    try {
+                        render(g, canvas.getWidth(), canvas.getHeight(), tcpCount, udpCount);
+                    } finally {
+                        g.dispose();
+                    }
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+            Toolkit.getDefaultToolkit().sync();
 
-            // Draw the local player's position (green circle, no flicker)
-            if (iAmAlive) {
-                g.setColor(Color.GREEN);
+            // CLEAR ephemeral events now that we've drawn them
+            tcpLights.release();
+            udpLights.release();
+            long now = System.nanoTime();
+            recordFrame(now - start, now, tcpCount + udpCount);
+
+            next += frameNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
             } else {
-                g.setColor(Color.RED);
-            }
-            int rx = (int)(localX - 10);
-            int ry = (int)(localY - 10);
-            g.fillOval(rx, ry, 20, 20);
-            g.setColor(Color.WHITE);
-            g.drawString("Me (P" + playerId + ")", rx, ry - 2);
-            if (!iAmAlive) {
-                g.drawString("(DEAD)", rx, ry - 14);
+                next = System.nanoTime(); // running behind, don't try to catch up
             }
+        }
+    }
 
-            // Now draw ephemeral Light events:
-            // For example, "P <id>" => draw a BLUE circle for that player once
-            // "BULLET <bid>" => small YELLOW circle
-            // "EXPLOSION" => ORANGE burst
-            // "SHOT" => muzzle flash
-            for (LightEvent evt : visibleLightEvents) {
-                switch (evt.type) {
-                    case "P":
-                        // Show a player in BLUE, ignoring if it's our ID
-                        if (evt.id == playerId) {
-                            // We skip, because we handle ourselves locally
-                            break;
-                        }
-                        g.setColor(Color.BLUE);
-                        g.fillOval((int)(evt.x - 10), (int)(evt.y - 10), 20, 20);
-                        g.setColor(Color.WHITE);
-                        g.drawString("P" + evt.id, (int)(evt.x - 10), (int)(evt.y - 12));
-                        break;
-
-                    case "BULLET":
-                        g.setColor(Color.YELLOW);
-                        g.fillOval((int)(evt.x - 3), (int)(evt.y - 3), 6, 6);
-                        break;
-
-                    case "SHOT":
-                        // muzzle flash
-                        g.setColor(Color.MAGENTA);
-                        g.fillOval((int)(evt.x - 5), (int)(evt.y - 5), 10, 10);
-                        break;
-
-                    case "EXPLOSION":
-                        g.setColor(Color.ORANGE);
-                        g.fillOval((int)(evt.x - 15), (int)(evt.y - 15), 30, 30);
-                        break;
-                }
-            }
+    // tcpCount and udpCount are what the rings handed out for this frame
+    private void render(Graphics2D g, int width, int height, int tcpCount, int udpCount) {
+        if (sprites == null) {
+            Font font = new Font(Font.DIALOG, Font.PLAIN, 12);
+            sprites = new SpriteCache(canvas.getGraphicsConfiguration(), font, canvas.getFontMetrics(font));
+        }
+        if (playerId >= 0) sprites.setPlayerId(playerId);
+        int ascent = sprites.labelAscent();
+
+        // Background
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+
+        // Draw the local player's position (green circle, no flicker)
+        boolean alive = iAmAlive;
+        int rx = (int) (localX - 10);
+        int ry = (int) (localY - 10);
+        g.drawImage(sprites.me(alive), rx, ry, null);
+        g.drawImage(sprites.label(SpriteCache.ME_LABEL), rx, ry - 2 - ascent, null);
+        if (!alive) {
+            g.drawImage(sprites.label(SpriteCache.DEAD_LABEL), rx, ry - 14 - ascent, null);
+        }
 
-            // If I'm dead, show a label
-            if (!iAmAlive) {
-                g.setColor(Color.ORANGE);
-                g.drawString("YOU ARE DEAD", getWidth()/2 - 40, getHeight()/2);
-            }
+        // Now draw ephemeral Light events, a type at a time so it's the same sprite
+        // over and over: P => a BLUE circle for that player, BULLET => small YELLOW
+        // circle, SHOT => muzzle flash, EXPLOSION => ORANGE burst
+        int me = playerId;
+        for (LightType type : LIGHT_TYPES) {
+            VolatileImage sprite = sprites.light(type);
+            drawLights(g, tcpLights, tcpCount, type, sprite, me);
+            drawLights(g, udpLights, udpCount, type, sprite, me);
+        }
+        // Labels on top
+        drawLabels(g, tcpLights, tcpCount, me, ascent);
+        drawLabels(g, udpLights, udpCount, me, ascent);
 
-            // CLEAR ephemeral events now that we've drawn them
-            visibleLightEvents.clear();
+        // If I'm dead, show a label
+        if (!alive) {
+            g.drawImage(sprites.label(SpriteCache.YOU_ARE_DEAD), width / 2 - 40, height / 2 - ascent, null);
+        }
+
+        if (showOverlay) {
+            g.setColor(Color.LIGHT_GRAY);
+            g.drawString(overlay, 8, height - 8);
+        }
+    }
+
+    private void drawLights(Graphics2D g, LightEventRing lights, int count, LightType type, VolatileImage sprite, int me) {
+        byte code = type.code();
+        int r = SpriteCache.size(type) / 2;
+        for (int i = 0; i < count; i++) {
+            if (lights.type(i) != code) continue;
+            // We skip our own P, because we handle ourselves locally
+            if (type == LightType.P && lights.id(i) == me) continue;
+            g.drawImage(sprite, (int) lights.x(i) - r, (int) lights.y(i) - r, null);
+        }
+    }
+
+    private void drawLabels(Graphics2D g, LightEventRing lights, int count, int me, int ascent) {
+        byte p = LightType.P.code();
+        for (int i = 0; i < count; i++) {
+            int id = lights.id(i);
+            if (lights.type(i) != p || id == me || id < 0) continue;
+            sprites.drawPlayerLabel(g, id, (int) (lights.x(i) - 10), (int) (lights.y(i) - 12) - ascent);
+        }
+    }
+
+    // Keep the frame time, and every half second turn the recent ones into the overlay line
+    private void recordFrame(long nanos, long now, int events) {
+        frameTimes[frames++ % FRAME_SAMPLES] = nanos;
+        framesSinceSummary++;
+        if (now - lastSummary < 500_000_000L) return;
+
+        int n = Math.min(frames, FRAME_SAMPLES);
+        System.arraycopy(frameTimes, 0, sortedFrames, 0, n);
+        Arrays.sort(sortedFrames, 0, n);
+        long sum = 0;
+        for (int i = 0; i < n; i++) sum += sortedFrames[i];
+        double fps = framesSinceSummary * 1e9 / (now - lastSummary);
+        overlay = String.format(Locale.ROOT, "%.0f fps   frame ms: avg %.2f  p99 %.2f  max %.2f   %d events   (F3 hides)",
+                fps, sum / 1e6 / n, sortedFrames[Math.max(0, (int) Math.ceil(0.99 * n) - 1)] / 1e6,
+                sortedFrames[n - 1] / 1e6, events);
+        long dropped = tcpLights.dropped() + udpLights.dropped();
+        if (dropped > 0) overlay += "   " + dropped + " dropped";
+        framesSinceSummary = 0;
+        lastSummary = now;
+    }
+
+    private class GameCanvas extends Canvas implements KeyListener, MouseListener {
+        public GameCanvas() {
+            setIgnoreRepaint(true);
+            setBackground(Color.BLACK);
+            setFocusable(true);
+            addKeyListener(this);
+            addMouseListener(this);
         }
 
         // KeyListener
         @Override
         public void keyPressed(KeyEvent e) {
-            if (!iAmAlive) return;
             int c = e.getKeyCode();
+            if (c == KeyEvent.VK_F3) showOverlay = !showOverlay;
+            if (!iAmAlive) return;
             if (c == KeyEvent.VK_W) upPressed = true;
             if (c == KeyEvent.VK_S) downPressed = true;
             if (c == KeyEvent.VK_A) leftPressed = true;
@@ -242,17 +680,4 @@ public class ClientMain extends JFrame {
         @Override public void mouseEntered(MouseEvent e) {}
         @Override public void mouseExited(MouseEvent e) {}
     }
-
-    // Ephemeral event container for the client
-    private static class LightEvent {
-        String type;
-        int id;
-        double x, y;
-        public LightEvent(String type, int id, double x, double y) {
-            this.type = type;
-            this.id = id;
-            this.x = x;
-            this.y = y;
-        }
-    }
 }
@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+
+/**
+ * What a connection does with the bytes it gets, and how it renders queued
+ * messages, shared by the blocking ClientHandler and the NIO transport.
+ */
+public final class ClientProtocol {
+    /** Longest text message we ever produce, newline included. */
+    public static final int MAX_TEXT_LINE = 128;
+
+    /**
+     * Reconnecting. After "ID n" the server says "SESSION <arena> <token>";
+     * a client that loses its connection can connect again and, before
+     * anything else, send "RESUME <arena> <id> <token>" to get that player
+     * back instead of the one it was just given. The server answers "ID",
+     * "SESSION" (a fresh token) and the UDP offer again, or RESUME_FAILED.
+     */
+    public static final String SESSION = "SESSION";
+    public static final String RESUME = "RESUME";
+    public static final String RESUME_FAILED = "RESUME_FAILED";
+
+    private ClientProtocol() {}
+
+    /** Apply a text command ("MOVE dx dy" / "SHOOT tx ty"), counting it in stats. */
+    public static void applyCommand(Game game, Player player, String line, NetStats stats) {
+        if (Debug.VERBOSE) System.out.println("DEBUG: From client " + player.getId() + ": " + line);
+        stats.messagesIn.increment();
+        stats.bytesIn.add(line.length() + 1);
+        try {
+            String[] parts = line.split(" ");
+            if ("MOVE".equals(parts[0])) {
+                double dx = Double.parseDouble(parts[1]);
+                double dy = Double.parseDouble(parts[2]);
+                game.movePlayer(player.getId(), dx, dy);
+            } else if ("SHOOT".equals(parts[0])) {
+                double tx = Double.parseDouble(parts[1]);
+                double ty = Double.parseDouble(parts[2]);
+                game.playerShoot(player.getId(), tx, ty);
+            }
+        } catch (Exception e) {
+            if (stats.parseFailed()) {
+                System.out.println("DEBUG: Bad command: " + line + " => " + e
+                        + " (" + stats.parseFailures.sum() + " so far)");
+            }
+        }
+    }
+
+    /** {arena, token} from a SESSION line, or null if it isn't one. */
+    public static long[] parseSession(String line) {
+        if (!line.startsWith(SESSION + " ")) return null;
+        String[] parts = line.split(" ");
+        if (parts.length != 3) return null;
+        return new long[] { Integer.parseInt(parts[1]), Long.parseLong(parts[2]) };
+    }
+
+    /** {arena, player, token} from a RESUME line, or null if it isn't one. */
+    public static long[] parseResume(String line) {
+        if (!line.startsWith(RESUME + " ")) return null;
+        String[] parts = line.split(" ");
+        if (parts.length != 4) return null;
+        try {
+            return new long[] { Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Long.parseLong(parts[3]) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Apply one binary frame body (opcode onwards), counting it in stats. */
+    public static void applyFrame(Game game, Player player, ByteBuffer frame, NetStats stats) {
+        stats.messagesIn.increment();
+        stats.bytesIn.add(2 + frame.remaining());
+        byte op = frame.get();
+        if (op == BinaryProtocol.OP_MOVE && frame.remaining() >= 8) {
+            double dx = BinaryProtocol.readCoord(frame);
+            double dy = BinaryProtocol.readCoord(frame);
+            game.movePlayer(player.getId(), dx, dy);
+        } else if (op == BinaryProtocol.OP_SHOOT && frame.remaining() >= 8) {
+            double tx = BinaryProtocol.readCoord(frame);
+            double ty = BinaryProtocol.readCoord(frame);
+            game.playerShoot(player.getId(), tx, ty);
+        } else if (stats.parseFailed()) {
+            System.out.println("DEBUG: Bad frame from client " + player.getId() + ": op " + op
+                    + " (" + stats.parseFailures.sum() + " so far)");
+        }
+    }
+
+    /**
+     * Text form of message i, e.g. "LIGHT P 1 500.0 300.0" or "YOU_DEAD",
+     * without the newline. Reuses line.
+     */
+    public static StringBuilder formatText(MessageQueue msgs, int i, StringBuilder line) {
+        line.setLength(0);
+        if (msgs.kind(i) == MessageQueue.YOU_DEAD) {
+            return line.append("YOU_DEAD");
+        }
+        return line.append("LIGHT ")
+                .append(LightType.fromCode(msgs.typeCode(i)).name()).append(' ')
+                .append(msgs.id(i)).append(' ')
+                .append(msgs.x(i)).append(' ')
+                .append(msgs.y(i));
+    }
+
+    /** Binary frame for message i. */
+    public static void writeFrame(ByteBuffer buf, MessageQueue msgs, int i) {
+        if (msgs.kind(i) == MessageQueue.YOU_DEAD) {
+            BinaryProtocol.writeYouDead(buf);
+        } else {
+            BinaryProtocol.writeLight(buf, msgs.typeCode(i), msgs.id(i), msgs.x(i), msgs.y(i));
+        }
+    }
+
+    /** Binary frame for message i, LIGHTs delta coded against deltas (null = plain frames). */
+    public static void writeFrame(ByteBuffer buf, MessageQueue msgs, int i, PositionDeltas deltas) {
+        if (deltas == null || msgs.kind(i) == MessageQueue.YOU_DEAD) {
+            writeFrame(buf, msgs, i);
+        } else {
+            deltas.writeLight(buf, msgs.typeCode(i), msgs.id(i), msgs.x(i), msgs.y(i));
+        }
+    }
+
+    /** Append a line of ASCII text plus newline. */
+    public static void writeLine(ByteBuffer buf, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            buf.put((byte) text.charAt(i));
+        }
+        buf.put((byte) '\n');
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * Spatial hash of player positions for bullet collision checks.
+ * Rebuilt once per tick (players don't move while bullets are resolved), then
+ * each bullet only tests the players in the 3x3 cells around it.
+ *
+ * Entries are addressed by their index in Game's player list so that
+ * firstHit() can pick the same player the old linear scan would have.
+ *
+ * LightScheduler keeps one of viewers too, for area-of-interest culling.
+ */
+public class CollisionGrid {
+    private final double cellSize;
+
+    private int[] head = new int[16];   // bucket -> first entry, -1 if empty
+    private int[] next = new int[16];   // entry -> next entry in the same bucket
+    private double[] xs = new double[16];
+    private double[] ys = new double[16];
+    private boolean[] present = new boolean[16];
+    private int mask = 15;
+
+    /** cellSize must be at least the largest radius passed to firstHit(). */
+    public CollisionGrid(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /** Start over for up to capacity entries with indices 0..capacity-1. */
+    public void reset(int capacity) {
+        if (next.length < capacity) {
+            int n = Math.max(capacity, next.length * 2);
+            next = new int[n];
+            xs = new double[n];
+            ys = new double[n];
+            present = new boolean[n];
+        }
+        Arrays.fill(present, false);
+
+        int buckets = 16;
+        while (buckets < capacity * 2) buckets <<= 1;
+        if (head.length != buckets) head = new int[buckets];
+        Arrays.fill(head, -1);
+        mask = buckets - 1;
+    }
+
+    public void insert(int index, double x, double y) {
+        int b = bucket(cell(x), cell(y));
+        xs[index] = x;
+        ys[index] = y;
+        present[index] = true;
+        next[index] = head[b];
+        head[b] = index;
+    }
+
+    public void remove(int index) {
+        present[index] = false;
+    }
+
+    /**
+     * Lowest-index entry strictly within radius of (x, y), or -1.
+     */
+    public int firstHit(double x, double y, double radius) {
+        double r2 = radius * radius;
+        int cx = cell(x);
+        int cy = cell(y);
+        int best = -1;
+
+        for (int gx = cx - 1; gx <= cx + 1; gx++) {
+            for (int gy = cy - 1; gy <= cy + 1; gy++) {
+                // Different cells can share a bucket; the distance test sorts that out
+                for (int i = head[bucket(gx, gy)]; i != -1; i = next[i]) {
+                    if (!present[i] || (best != -1 && i >= best)) continue;
+                    double dx = xs[i] - x;
+                    double dy = ys[i] - y;
+                    if (dx*dx + dy*dy < r2) {
+                        best = i;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Put the entries in the 3x3 cells around (x, y) into out and return how
+     * many: everything within cellSize, plus some further off. Each entry at
+     * most once; out must have room for all of them.
+     */
+    public int candidates(double x, double y, int[] out) {
+        int cx = cell(x);
+        int cy = cell(y);
+        int n = 0;
+        for (int gx = cx - 1; gx <= cx + 1; gx++) {
+            for (int gy = cy - 1; gy <= cy + 1; gy++) {
+                int b = bucket(gx, gy);
+                // Already walked this bucket for an earlier cell?
+                if (seenBucket(b, cx, cy, gx, gy)) continue;
+                for (int i = head[b]; i != -1; i = next[i]) {
+                    if (present[i]) out[n++] = i;
+                }
+            }
+        }
+        return n;
+    }
+
+    private boolean seenBucket(int b, int cx, int cy, int gx, int gy) {
+        for (int ox = cx - 1; ox <= gx; ox++) {
+            for (int oy = cy - 1; oy <= cy + 1; oy++) {
+                if (ox == gx && oy == gy) return false;
+                if (bucket(ox, oy) == b) return true;
+            }
+        }
+        return false;
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private int bucket(int cx, int cy) {
+        int h = cx * 0x9E3779B1 + cy * 0x85EBCA77;
+        h ^= (h >>> 16);
+        return h & mask;
+    }
+}
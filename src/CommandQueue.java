@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of player commands: any number of I/O threads
+ * offer(), the game loop thread alone drains().
+ *
+ * A ring of primitive records with a per-slot sequence number (Vyukov's
+ * bounded queue). A producer claims a slot with one CAS on tail, fills it in
+ * and publishes it by bumping the slot's sequence; the consumer only reads a
+ * slot once its sequence says it's published. Nothing allocates per command.
+ */
+public class CommandQueue {
+    public static final byte MOVE = 1;
+    public static final byte SHOOT = 2;
+    public static final byte LEAVE = 3;
+
+    public interface Handler {
+        void apply(byte kind, int playerId, double a, double b);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequence;
+    private final byte[] kinds;
+    private final int[] playerIds;
+    private final double[] as;
+    private final double[] bs;
+
+    private final AtomicLong tail = new AtomicLong(); // next position producers claim
+    private long head = 0;                            // next position the consumer reads
+
+    /** capacity is rounded up to a power of two. */
+    public CommandQueue(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = n;
+        this.mask = n - 1;
+        this.sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            sequence.set(i, i);
+        }
+        this.kinds = new byte[n];
+        this.playerIds = new int[n];
+        this.as = new double[n];
+        this.bs = new double[n];
+    }
+
+    /** Any thread. Returns false if the queue is full. */
+    public boolean offer(byte kind, int playerId, double a, double b) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long diff = sequence.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    kinds[idx] = kind;
+                    playerIds[idx] = playerId;
+                    as[idx] = a;
+                    bs[idx] = b;
+                    sequence.set(idx, pos + 1); // publish
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // consumer hasn't freed this slot yet: full
+            } else {
+                pos = tail.get(); // someone else took it
+            }
+        }
+    }
+
+    /**
+     * Consumer thread only. Hands every published command to handler, at
+     * most one queue's worth so producers can't keep the loop here forever.
+     */
+    public int drain(Handler handler) {
+        int count = 0;
+        while (count < capacity) {
+            int idx = (int) (head & mask);
+            if (sequence.get(idx) != head + 1) break;
+
+            byte kind = kinds[idx];
+            int playerId = playerIds[idx];
+            double a = as[idx];
+            double b = bs[idx];
+            sequence.set(idx, head + capacity); // hand the slot back to producers
+            head++;
+            count++;
+
+            handler.apply(kind, playerId, a, b);
+        }
+        return count;
+    }
+}
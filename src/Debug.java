@@ -0,0 +1,11 @@
+/**
+ * Switch for the DEBUG lines that would fire on every client command
+ * (per-command echo, shooting without ammo, ...). Off by default since at
+ * real input rates printing them costs more than handling the commands;
+ * run with -Ddebug.verbose=true to get them back.
+ */
+public final class Debug {
+    public static final boolean VERBOSE = Boolean.getBoolean("debug.verbose");
+
+    private Debug() {}
+}
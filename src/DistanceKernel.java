@@ -0,0 +1,172 @@
+import java.util.SplittableRandom;
+
+/**
+ * The inner loop of LightScheduler's exact visibility check: for a batch of
+ * light events (copied out of the LightStore into plain arrays, one event per
+ * index) and one viewer, how far away each event is and whether its
+ * wavefront, radius (now - timestamp) * c, has reached the viewer yet.
+ *
+ * This class is the plain scalar loop. VectorDistanceKernel does the same
+ * with jdk.incubator.vector, several events per instruction; it's only
+ * usable when the JVM was started with --add-modules jdk.incubator.vector,
+ * so it's loaded by name and never referenced directly. get() picks one at
+ * startup (see use()). Both give bit-for-bit the same answers, which
+ * selfCheck() confirms before a vector kernel is ever handed out: a match
+ * must play out the same whichever one runs it (MatchReplay --resim relies
+ * on that).
+ *
+ * Stateless, so one instance serves every scheduler and thread.
+ */
+public class DistanceKernel {
+    public static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private static volatile DistanceKernel current;
+
+    /**
+     * For i below n: dist[i] = distance from (px, py) to (xs[i], ys[i]),
+     * arrived[i] = (now - ts[i]) * c >= dist[i]. Returns how many arrived.
+     *
+     * Distances, not squared ones: the entries that haven't arrived need the
+     * distance for their new key anyway, and comparing squares rounds
+     * differently right at the wavefront, which would change who sees what.
+     */
+    public int arrivals(double[] xs, double[] ys, double[] ts, int n,
+                        double px, double py, double now, double c,
+                        double[] dist, boolean[] arrived) {
+        return scalar(xs, ys, ts, 0, n, px, py, now, c, dist, arrived);
+    }
+
+    /** arrivals() for i from..n-1 only; the vector kernel's tail. */
+    static int scalar(double[] xs, double[] ys, double[] ts, int from, int n,
+                      double px, double py, double now, double c,
+                      double[] dist, boolean[] arrived) {
+        int count = 0;
+        for (int i = from; i < n; i++) {
+            double dx = xs[i] - px;
+            double dy = ys[i] - py;
+            double d = Math.sqrt(dx*dx + dy*dy);
+            boolean a = (now - ts[i]) * c >= d;
+            dist[i] = d;
+            arrived[i] = a;
+            if (a) count++;
+        }
+        return count;
+    }
+
+    /** Events per step. */
+    public int lanes() {
+        return 1;
+    }
+
+    /** For the log. */
+    public String describe() {
+        return "scalar";
+    }
+
+    /** The kernel new LightSchedulers use; picks one the first time, as use("auto") would. */
+    public static DistanceKernel get() {
+        DistanceKernel k = current;
+        if (k == null) {
+            synchronized (DistanceKernel.class) {
+                if (current == null) current = choose("auto");
+                k = current;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Startup, before any Game is made: "scalar", "vector" (if this JVM can
+     * run it, else scalar with a warning) or "auto" (vector if it's there and
+     * at least 4 doubles wide; narrower isn't worth it).
+     */
+    public static DistanceKernel use(String mode) {
+        DistanceKernel k = choose(mode);
+        current = k;
+        return k;
+    }
+
+    private static DistanceKernel choose(String mode) {
+        DistanceKernel scalar = new DistanceKernel();
+        if (mode.equals("scalar")) return scalar;
+        if (!mode.equals("auto") && !mode.equals("vector")) {
+            System.out.println("DEBUG: Unknown kernel " + mode + ", using scalar");
+            return scalar;
+        }
+
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            if (mode.equals("vector")) {
+                System.out.println("DEBUG: Vector kernel needs --add-modules " + VECTOR_MODULE + ", using scalar");
+            }
+            return scalar;
+        }
+        DistanceKernel vector;
+        try {
+            vector = (DistanceKernel) Class.forName("VectorDistanceKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.out.println("DEBUG: Vector kernel unavailable (" + e + "), using scalar");
+            return scalar;
+        }
+        if (mode.equals("auto") && vector.lanes() < 4) {
+            return scalar;
+        }
+        String mismatch = selfCheck(scalar, vector, 64, 1);
+        if (mismatch != null) {
+            System.out.println("DEBUG: Vector kernel disagrees with scalar (" + mismatch + "), using scalar");
+            return scalar;
+        }
+        return vector;
+    }
+
+    /**
+     * Runs both kernels over rounds of random batches, including events
+     * sitting exactly on the wavefront, distances of zero and batches of
+     * every length up to a few vectors. Null if they agree bit for bit,
+     * else what differed.
+     */
+    public static String selfCheck(DistanceKernel expected, DistanceKernel actual, int rounds, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int size = 64;
+        double[] xs = new double[size], ys = new double[size], ts = new double[size];
+        double[] dist1 = new double[size], dist2 = new double[size];
+        boolean[] arrived1 = new boolean[size], arrived2 = new boolean[size];
+        double c = 30;
+
+        for (int round = 0; round < rounds; round++) {
+            double px = random.nextDouble(800), py = random.nextDouble(600);
+            double now = 10 + random.nextDouble(100);
+            int n = random.nextInt(size + 1);
+            for (int i = 0; i < n; i++) {
+                xs[i] = random.nextDouble(800);
+                ys[i] = random.nextDouble(600);
+                switch (random.nextInt(4)) {
+                    case 0: // exactly on the wavefront
+                        double dx = xs[i] - px, dy = ys[i] - py;
+                        ts[i] = now - Math.sqrt(dx*dx + dy*dy) / c;
+                        break;
+                    case 1: // on top of the viewer
+                        xs[i] = px;
+                        ys[i] = py;
+                        ts[i] = now;
+                        break;
+                    default:
+                        ts[i] = now - random.nextDouble(40);
+                }
+            }
+
+            int count1 = expected.arrivals(xs, ys, ts, n, px, py, now, c, dist1, arrived1);
+            int count2 = actual.arrivals(xs, ys, ts, n, px, py, now, c, dist2, arrived2);
+            for (int i = 0; i < n; i++) {
+                if (Double.doubleToRawLongBits(dist1[i]) != Double.doubleToRawLongBits(dist2[i])
+                        || arrived1[i] != arrived2[i]) {
+                    return "round " + round + ", entry " + i + " of " + n + ": "
+                            + dist1[i] + "/" + arrived1[i] + " vs " + dist2[i] + "/" + arrived2[i];
+                }
+            }
+            if (count1 != count2) {
+                return "round " + round + ": " + count1 + " vs " + count2 + " arrived";
+            }
+        }
+        return null;
+    }
+}
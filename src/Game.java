@@ -1,170 +1,452 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * The simulation. Single writer: everything here belongs to the game loop
+ * thread, except movePlayer(), playerShoot(), addPlayer() and removePlayer(),
+ * which any thread may call. Those only queue the request; the loop applies queued
+ * requests in a batch at the start of the next tick().
+ */
 public class Game {
-    public static double currentTime = 0.0;
+    private double currentTime = 0.0;
     public static final double SPEED_OF_LIGHT = 5.0;
 
+    // Simulation time per tick. Time is measured in 60 Hz frames, so this is
+    // 1.0 at 60 Hz and 0.5 at 120 Hz; velocities are per frame as well.
+    private double timeStep = 1.0;
+
     private List<Player> players = new ArrayList<>();
     private List<Bullet> bullets = new ArrayList<>();
-    private List<Light> lightEvents = new ArrayList<>();
+    private int nextBulletId = 0;
+
+    // Spent bullets, reused by the next shots instead of allocating
+    private Bullet[] spareBullets = new Bullet[16];
+    private int spareCount = 0;
+
+    // Live light events, each queued per viewer by when it will arrive
+    private LightScheduler lightEvents = new LightScheduler(SPEED_OF_LIGHT, this::enqueueLightMessage);
+
+    // Broadphase for bullet/player hits, rebuilt every updateBullets()
+    private CollisionGrid collisionGrid = new CollisionGrid(2 * Bullet.HIT_RADIUS);
+
+    // Each player's pending messages, and the player, indexed by player id
+    private MessageQueue[] pendingMessages = new MessageQueue[16];
+    private Player[] playersById = new Player[16];
+
+    // Inbound requests from I/O threads, applied at the start of each tick
+    private final CommandQueue commands = new CommandQueue(64 * 1024);
+    private final ConcurrentLinkedQueue<Player> joining = new ConcurrentLinkedQueue<>();
+    private final CommandQueue.Handler applyCommand = this::applyCommand;
+
+    private final TickStats stats = new TickStats();
+
+    // Light settings as given, for the journal header
+    private double aoiRadius = 0;
+    private double lightHorizon = 0;
+    private int lightBudget = 0;
+    private LightScheduler.EvictionPolicy evictionPolicy = LightScheduler.EvictionPolicy.OLDEST;
+
+    // Match journal, if recording; recordedUpTo[id] is how much of that player's queue it has seen
+    private MatchRecorder recorder;
+    private int[] recordedUpTo = new int[16];
+
+    /** Any thread. The player joins at the start of the next tick. */
+    public void addPlayer(Player p) {
+        joining.add(p);
+    }
+
+    /**
+     * Any thread. The player leaves the match at the start of the next tick,
+     * after any joins; used when a reconnecting client takes its old player
+     * back and the one it was just given goes.
+     */
+    public void removePlayer(int playerId) {
+        if (!commands.offer(CommandQueue.LEAVE, playerId, 0, 0)) {
+            System.out.println("DEBUG: Command queue full, dropped LEAVE of " + playerId);
+        }
+    }
 
-    // Each player's pending messages
-    private Map<Integer, List<String>> pendingMessages = new HashMap<>();
+    /** Any thread. */
+    public void movePlayer(int playerId, double dx, double dy) {
+        if (!commands.offer(CommandQueue.MOVE, playerId, dx, dy)) {
+            System.out.println("DEBUG: Command queue full, dropped MOVE from " + playerId);
+        }
+    }
+
+    /** Any thread. */
+    public void playerShoot(int playerId, double tx, double ty) {
+        if (!commands.offer(CommandQueue.SHOOT, playerId, tx, ty)) {
+            System.out.println("DEBUG: Command queue full, dropped SHOOT from " + playerId);
+        }
+    }
+
+    /**
+     * One simulation step.
+     */
+    public void tick() {
+        long t = System.nanoTime();
+        if (recorder != null) recorder.beginTick(currentTime + timeStep);
+        applyPendingCommands();
+        t = stats.endPhase(TickStats.Phase.COMMANDS, t);
+        updateTime();
+        t = stats.endPhase(TickStats.Phase.TIME, t);
+        updateBullets();
+        t = stats.endPhase(TickStats.Phase.BULLETS, t);
+        processLightVisibility();
+        t = stats.endPhase(TickStats.Phase.VISIBILITY, t);
+        updateLoc();
+        stats.endPhase(TickStats.Phase.MOVEMENT, t);
+        if (recorder != null) recordDeliveries();
+
+        stats.setGauges(lightEvents.liveEventCount(), players.size(),
+                lightEvents.evictedByAge(), lightEvents.evictedByBudget());
+    }
 
-    public synchronized void addPlayer(Player p) {
+    public TickStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Journal everything from the next tick on (see MatchRecorder). Game loop
+     * thread, before the first tick, and after the other settings.
+     */
+    public void setRecorder(MatchRecorder recorder) throws IOException {
+        recorder.start(timeStep, aoiRadius, lightHorizon, lightBudget, evictionPolicy);
+        this.recorder = recorder;
+    }
+
+    // Whatever has been queued for each player since we last looked
+    private void recordDeliveries() {
+        for (int id = 0; id < pendingMessages.length; id++) {
+            MessageQueue msgs = pendingMessages[id];
+            if (msgs == null) continue;
+            for (int i = recordedUpTo[id]; i < msgs.size(); i++) {
+                recorder.delivery(id, msgs, i);
+            }
+            recordedUpTo[id] = msgs.size();
+        }
+        recorder.endTick();
+    }
+
+    /**
+     * Joins first, then inputs in the order they were queued.
+     */
+    public void applyPendingCommands() {
+        Player p;
+        while ((p = joining.poll()) != null) {
+            join(p);
+        }
+        commands.drain(applyCommand);
+    }
+
+    private void join(Player p) {
         players.add(p);
-        pendingMessages.put(p.getId(), new ArrayList<>());
+        int id = p.getId();
+        if (id >= pendingMessages.length) {
+            int n = Math.max(id + 1, pendingMessages.length * 2);
+            pendingMessages = Arrays.copyOf(pendingMessages, n);
+            playersById = Arrays.copyOf(playersById, n);
+            recordedUpTo = Arrays.copyOf(recordedUpTo, n);
+        }
+        if (recorder != null) recorder.join(id, p.getX(), p.getY());
+        pendingMessages[id] = new MessageQueue();
+        playersById[id] = p;
+        if (p.isAlive()) {
+            lightEvents.addViewer(p);
+        }
+    }
+
+    private void applyCommand(byte kind, int playerId, double a, double b) {
+        if (recorder != null) recorder.command(kind, playerId, a, b);
+        if (kind == CommandQueue.MOVE) {
+            applyMove(playerId, a, b);
+        } else if (kind == CommandQueue.SHOOT) {
+            applyShoot(playerId, a, b);
+        } else if (kind == CommandQueue.LEAVE) {
+            applyLeave(playerId);
+        }
+    }
+
+    // Gone without a trace: no explosion, and the scheduler drops it as a viewer (it's "dead") next pass
+    private void applyLeave(int playerId) {
+        Player p = playerFor(playerId);
+        if (p == null) return;
+        p.kill();
+        players.remove(p);
+        playersById[playerId] = null;
+        pendingMessages[playerId] = null;
+        recordedUpTo[playerId] = 0;
+    }
+
+    public List<Player> getPlayers() { return players; }
+    public List<Bullet> getBullets() { return bullets; }
+
+    public void addLightEvent(Light e) {
+        lightEvents.emit(e.getType(), e.id, e.x, e.y, e.timestamp);
     }
 
-    public synchronized List<Player> getPlayers() { return players; }
-    public synchronized List<Bullet> getBullets() { return bullets; }
+    public int getLightEventCount() {
+        return lightEvents.liveEventCount();
+    }
+
+    private void emitLight(LightType type, int id, double x, double y) {
+        lightEvents.emit(type, id, x, y, currentTime);
+    }
+
+    public double getCurrentTime() {
+        return currentTime;
+    }
+
+    public void setTimeStep(double timeStep) {
+        this.timeStep = timeStep;
+    }
+
+    /**
+     * Split the visibility pass across pool once at least minViewers players
+     * are watching; null keeps it on the tick thread.
+     */
+    public void setVisibilityParallelism(ForkJoinPool pool, int minViewers) {
+        lightEvents.setParallelism(pool, minViewers);
+    }
+
+    /**
+     * Light events stop once their wavefront has travelled maxRadius (so after
+     * maxRadius / SPEED_OF_LIGHT); 0 or less means they go on until everyone has seen them.
+     */
+    public void setLightHorizon(double maxRadius) {
+        lightHorizon = maxRadius;
+        lightEvents.setHorizon(maxRadius > 0 ? maxRadius : Double.POSITIVE_INFINITY);
+    }
 
-    public synchronized void addLightEvent(Light e) {
-        lightEvents.add(e);
+    /**
+     * Players only get light events that start within radius of them; the
+     * rest count as seen. 0 or less means everyone gets everything.
+     */
+    public void setAreaOfInterest(double radius) {
+        aoiRadius = radius;
+        lightEvents.setAreaOfInterest(radius > 0 ? radius : Double.POSITIVE_INFINITY);
     }
 
-    public synchronized void updateTime() {
-        currentTime += 1.0;
+    /** At most maxEvents light events alive at once (0 = no limit); see LightScheduler. */
+    public void setLightBudget(int maxEvents, LightScheduler.EvictionPolicy policy) {
+        lightBudget = maxEvents;
+        evictionPolicy = policy;
+        lightEvents.setBudget(maxEvents > 0 ? maxEvents : Integer.MAX_VALUE, policy);
     }
 
-    public synchronized void updateBullets() {
-        Iterator<Bullet> it = bullets.iterator();
-        while (it.hasNext()) {
-            Bullet b = it.next();
+    public void updateTime() {
+        currentTime += timeStep;
+    }
+
+    public void updateBullets() {
+        // Players don't move while bullets resolve, so index them once up front
+        collisionGrid.reset(players.size());
+        for (int i = 0; i < players.size(); i++) {
+            Player p = players.get(i);
+            if (p.isAlive()) {
+                collisionGrid.insert(i, p.getX(), p.getY());
+            }
+        }
+
+        // Survivors are packed down in place (keeping their order), the rest recycled
+        int kept = 0;
+        for (int i = 0; i < bullets.size(); i++) {
+            Bullet b = bullets.get(i);
             b.updatePosition(currentTime, SPEED_OF_LIGHT);
 
             if (!b.isActive()) {
-                it.remove();
+                recycle(b);
                 continue;
             }
 
             // Generate ephemeral bullet events each frame
-            Light bulletLight = new Light("BULLET", b.getBulletId(), b.getX(), b.getY(), currentTime);
-            addLightEvent(bulletLight);
-
-            // Collision checks
-            for (Player p : players) {
-                if (p.isAlive() && b.canCollideWith(p.getX(), p.getY())) {
-                    p.kill();
-                    enqueueImmediateMessage(p.getId(), "YOU_DEAD");
-
-                    // Explosion
-                    addLightEvent(new Light("EXPLOSION", p.getId(), p.getX(), p.getY(), currentTime));
-                    it.remove();
-                    break;
-                }
+            emitLight(LightType.BULLET, b.getBulletId(), b.getX(), b.getY());
+
+            // Collision checks: first player (in join order) in range dies, one kill per bullet
+            int hit = b.isArmed() ? collisionGrid.firstHit(b.getX(), b.getY(), Bullet.HIT_RADIUS) : -1;
+            if (hit == -1) {
+                bullets.set(kept++, b);
+            } else {
+                Player p = players.get(hit);
+                p.kill();
+                collisionGrid.remove(hit);
+                MessageQueue queue = pendingFor(p.getId());
+                if (queue != null) queue.addYouDead();
+
+                // Explosion
+                emitLight(LightType.EXPLOSION, p.getId(), p.getX(), p.getY());
+                recycle(b);
             }
         }
+        for (int i = bullets.size() - 1; i >= kept; i--) {
+            bullets.remove(i);
+        }
     }
 
-    public synchronized void movePlayer(int playerId, double dx, double dy) {
-        for (Player p : players) {
-            if (p.getId() == playerId && p.isAlive()) {
-                p.accelerate(dx, dy);
-                break;
-            }
+    private void recycle(Bullet b) {
+        if (spareCount == spareBullets.length) {
+            spareBullets = Arrays.copyOf(spareBullets, spareCount * 2);
+        }
+        spareBullets[spareCount++] = b;
+    }
+
+    private void applyMove(int playerId, double dx, double dy) {
+        Player p = playerFor(playerId);
+        if (p != null && p.isAlive()) {
+            p.accelerate(dx, dy);
         }
     }
 
     /**
      * update location for all players
      */
-    public synchronized void updateLoc() {
-        for (Player p : players) {
+    public void updateLoc() {
+        for (int i = 0; i < players.size(); i++) {
+            Player p = players.get(i);
             double vx = p.getVx();
             double vy = p.getVy();
-            p.move(vx, vy);
-            // Generate a "P" event for that new position
-            Light evt = new Light("P", p.getId(), p.getX(), p.getY(), currentTime);
-            addLightEvent(evt);
-        }
-    }
-
-    public synchronized void playerShoot(int playerId, double tx, double ty) {
-        for (Player p : players) {
-            if (p.getId() == playerId && p.isAlive()) {
-                if (p.getShotsRemaining() > 0) {
-                    p.decrementShots();
-                    Bullet b = new Bullet(p.getX(), p.getY(), tx, ty, currentTime);
-                    bullets.add(b);
-
-                    Light muzzleFlash = new Light("SHOT", p.getId(), p.getX(), p.getY(), currentTime);
-                    addLightEvent(muzzleFlash);
-                } else {
-                    System.out.println("DEBUG: Player " + playerId + " tried to shoot but has no ammo!");
-                }
-                break;
+            p.move(vx * timeStep, vy * timeStep);
+        }
+        lightEvents.viewersMoved();
+        // Generate a "P" event for everyone's new position
+        for (int i = 0; i < players.size(); i++) {
+            Player p = players.get(i);
+            emitLight(LightType.P, p.getId(), p.getX(), p.getY());
+        }
+    }
+
+    private void applyShoot(int playerId, double tx, double ty) {
+        Player p = playerFor(playerId);
+        if (p == null || !p.isAlive()) return;
+
+        if (p.getShotsRemaining() > 0) {
+            p.decrementShots();
+            Bullet b;
+            if (spareCount > 0) {
+                b = spareBullets[--spareCount];
+                spareBullets[spareCount] = null;
+                b.reset(nextBulletId++, p.getX(), p.getY(), tx, ty, currentTime);
+            } else {
+                b = new Bullet(nextBulletId++, p.getX(), p.getY(), tx, ty, currentTime);
             }
+            bullets.add(b);
+
+            emitLight(LightType.SHOT, p.getId(), p.getX(), p.getY());
+        } else {
+            if (Debug.VERBOSE) System.out.println("DEBUG: Player " + playerId + " tried to shoot but has no ammo!");
         }
     }
 
     /**
      * The main visibility check.
+     * Only deliveries whose wavefront is due this tick are looked at; see LightScheduler.
      * "P" events are not sent back to the same player => no self flicker.
      * Once all alive players have seen the event, we remove it.
      */
-    public synchronized void processLightVisibility() {
-        Iterator<Light> it = lightEvents.iterator();
-        while (it.hasNext()) {
-            Light evt = it.next();
-            List<Player> notYetSeen = new ArrayList<>();
-
-            for (Player p : players) {
-                if (!p.isAlive()) continue;
-
-                // Skip sending "P" events to same player => ignore them
-                if (evt.type.equals("P") && evt.id == p.getId()) {
-                    // do nothing
-                    continue;
-                }
-
-                double dist = distance(evt.x, evt.y, p.getX(), p.getY());
-                double travelTime = currentTime - evt.timestamp;
-
-                // If wavefront has arrived => enqueue
-                if (travelTime * SPEED_OF_LIGHT >= dist) {
-                    enqueueLightMessage(p.getId(), evt);
-                } else {
-                    notYetSeen.add(p);
-                }
-            }
+    public void processLightVisibility() {
+        lightEvents.process(currentTime);
+    }
 
-            // Remove if no one left to see it
-            if (notYetSeen.isEmpty()) {
-                it.remove();
-            }
+    // --- Checkpoints (see Checkpointer) ---
+
+    /**
+     * Game loop thread, between ticks. Appends the clock, every player and
+     * bullet, and the light events still on their way:
+     *
+     *     f64 time, i32 next bullet id
+     *     u32 players, each i32 id, f64 x, f64 y, f64 vx, f64 vy, i32 shots, u8 alive
+     *     u32 bullets, each i32 id, f64 start x, f64 start y, f64 dir x, f64 dir y,
+     *                       f64 start time, f64 x, f64 y
+     *     then LightScheduler.writeCheckpoint()
+     *
+     * Queued commands and undelivered messages aren't included.
+     */
+    public void writeCheckpoint(ByteBuffer buf) {
+        buf.putDouble(currentTime);
+        buf.putInt(nextBulletId);
+        buf.putInt(players.size());
+        for (int i = 0; i < players.size(); i++) {
+            Player p = players.get(i);
+            buf.putInt(p.getId());
+            buf.putDouble(p.getX());
+            buf.putDouble(p.getY());
+            buf.putDouble(p.getVx());
+            buf.putDouble(p.getVy());
+            buf.putInt(p.getShotsRemaining());
+            buf.put((byte) (p.isAlive() ? 1 : 0));
+        }
+        buf.putInt(bullets.size());
+        for (int i = 0; i < bullets.size(); i++) {
+            Bullet b = bullets.get(i);
+            buf.putInt(b.getBulletId());
+            buf.putDouble(b.getStartX());
+            buf.putDouble(b.getStartY());
+            buf.putDouble(b.getDirX());
+            buf.putDouble(b.getDirY());
+            buf.putDouble(b.getStartTime());
+            buf.putDouble(b.getX());
+            buf.putDouble(b.getY());
         }
+        lightEvents.writeCheckpoint(buf);
     }
 
-    public synchronized List<String> consumePendingMessages(int playerId) {
-        List<String> msgs = pendingMessages.get(playerId);
-        if (msgs == null) return new ArrayList<>();
-        List<String> copy = new ArrayList<>(msgs);
-        msgs.clear();
-        return copy;
+    /**
+     * Game loop thread, on a fresh Game (settings applied, nothing ticked
+     * yet): put back what writeCheckpoint() wrote.
+     */
+    public void readCheckpoint(ByteBuffer buf) {
+        currentTime = buf.getDouble();
+        nextBulletId = buf.getInt();
+        int playerCount = buf.getInt();
+        for (int i = 0; i < playerCount; i++) {
+            Player p = new Player(buf.getInt(), buf.getDouble(), buf.getDouble());
+            p.restore(buf.getDouble(), buf.getDouble(), buf.getInt(), buf.get() != 0);
+            join(p);
+        }
+        int bulletCount = buf.getInt();
+        for (int i = 0; i < bulletCount; i++) {
+            bullets.add(Bullet.restore(buf.getInt(), buf.getDouble(), buf.getDouble(), buf.getDouble(),
+                    buf.getDouble(), buf.getDouble(), buf.getDouble(), buf.getDouble()));
+        }
+        lightEvents.readCheckpoint(buf);
     }
 
-    private void enqueueLightMessage(int playerId, Light evt) {
-        List<String> queue = pendingMessages.get(playerId);
-        if (queue == null) return;
+    /**
+     * Hand over everything queued for playerId without copying: returns the
+     * player's queue and puts spare (empty) in its place. The caller clears
+     * what it got back and passes it in as the spare next time.
+     * Game loop thread (connections flush from there after each tick).
+     */
+    public MessageQueue swapPendingMessages(int playerId, MessageQueue spare) {
+        MessageQueue msgs = pendingFor(playerId);
+        if (msgs == null) return spare;
+        stats.pendingDepth.record(msgs.size());
+        if (msgs.isEmpty()) return spare;
 
-        String line = "LIGHT " + evt.type + " " + evt.id + " " + evt.x + " " + evt.y;
-        queue.add(line);
+        spare.clear();
+        pendingMessages[playerId] = spare;
+        recordedUpTo[playerId] = 0;
+        return msgs;
     }
 
-    private void enqueueImmediateMessage(int playerId, String message) {
-        List<String> queue = pendingMessages.get(playerId);
+    private void enqueueLightMessage(int playerId, LightStore store, int slot) {
+        MessageQueue queue = pendingFor(playerId);
         if (queue == null) return;
-        queue.add(message);
+        queue.addLight(store.typeCode(slot), store.id(slot), store.x(slot), store.y(slot));
+    }
+
+    private Player playerFor(int playerId) {
+        if (playerId < 0 || playerId >= playersById.length) return null;
+        return playersById[playerId];
     }
 
-    private double distance(double x1, double y1, double x2, double y2) {
-        double dx = x2 - x1;
-        double dy = y2 - y1;
-        return Math.sqrt(dx*dx + dy*dy);
+    private MessageQueue pendingFor(int playerId) {
+        if (playerId < 0 || playerId >= pendingMessages.length) return null;
+        return pendingMessages[playerId];
     }
 }
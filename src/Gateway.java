@@ -0,0 +1,421 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Front door for several ServerMain processes on the same machine, so a
+ * match can use more cores than one process does and one crashing doesn't
+ * take the rest down. Clients connect to the gateway as if it were a
+ * server; it picks the least loaded backend and relays the TCP stream both
+ * ways, unchanged. Nothing in the client protocol knows about it. UDP (the
+ * OFFER a backend sends carries its own port) goes to the backend directly.
+ *
+ * Backends run with --gateway=CONTROL_PORT (see GatewayReporter) and keep a
+ * control connection to the gateway on loopback. On it they send
+ *
+ *     BACKEND <client port> <capacity>     once; the gateway answers OK
+ *     LOAD <players> <tick us> <busy %>    every GatewayReporter.REPORT_MILLIS
+ *
+ * where tick us is the mean tick time of its worst arena and busy % how much
+ * of the time its arena workers spent ticking. A backend is routed to while
+ * its control connection is up and its last LOAD is under --stale-ms old. A
+ * failed connect to it takes it out until its next LOAD.
+ *
+ * New clients go to the backend with the lowest load, the larger of
+ * players / capacity and busy %, counting the clients sent its way since its
+ * last report; ties go to the faster ticks. A full backend is skipped.
+ *
+ * The relay is a few selector threads like NioServer's, each connection
+ * moving through one direct buffer per direction: bytes go socket to buffer
+ * to socket without being copied onto the heap. When one side stops
+ * reading, the other stops being read from. When either side closes, what's
+ * in flight is passed on and both are closed.
+ *
+ * Usage: Gateway [--port=12345] [--control-port=12340] [--io-threads=2]
+ *                [--buffer=65536] [--stale-ms=2000]
+ * then e.g. ServerMain --port=12350 --gateway=12340, ServerMain --port=12360 --gateway=12340
+ */
+public class Gateway {
+    public static final String BACKEND = "BACKEND";
+    public static final String LOAD = "LOAD";
+    public static final String OK = "OK";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 500;
+
+    private int port = 12345;
+    private int controlPort = 12340;
+    private int ioThreads = 2;
+    private int bufferSize = 64 * 1024;
+    private long staleMillis = 2000;
+
+    // By client port
+    private final ConcurrentHashMap<Integer, Backend> backends = new ConcurrentHashMap<>();
+    private RelayLoop[] loops;
+
+    public static void main(String[] args) throws IOException {
+        Gateway gateway = new Gateway();
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                gateway.port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--control-port=")) {
+                gateway.controlPort = Integer.parseInt(arg.substring("--control-port=".length()));
+            } else if (arg.startsWith("--io-threads=")) {
+                gateway.ioThreads = Integer.parseInt(arg.substring("--io-threads=".length()));
+            } else if (arg.startsWith("--buffer=")) {
+                gateway.bufferSize = Integer.parseInt(arg.substring("--buffer=".length()));
+            } else if (arg.startsWith("--stale-ms=")) {
+                gateway.staleMillis = Long.parseLong(arg.substring("--stale-ms=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+            }
+        }
+        gateway.run();
+    }
+
+    /** One registered ServerMain. Its reader thread writes the load, the accept thread reads it. */
+    static class Backend {
+        final int port;
+        final int capacity;
+        final Socket control;
+        volatile int players;
+        volatile int tickMicros;
+        volatile int busyPercent;
+        volatile long lastReport = System.nanoTime();
+        volatile boolean down = false;               // a connect failed; cleared by the next LOAD
+        final AtomicInteger routed = new AtomicInteger();     // clients sent since the last LOAD
+        final AtomicInteger relaying = new AtomicInteger();   // open relays to it
+        final AtomicLong bytesUp = new AtomicLong();
+        final AtomicLong bytesDown = new AtomicLong();
+
+        Backend(int port, int capacity, Socket control) {
+            this.port = port;
+            this.capacity = capacity;
+            this.control = control;
+        }
+
+        double load() {
+            double filled = (double) (players + routed.get()) / Math.max(1, capacity);
+            return Math.max(filled, busyPercent / 100.0);
+        }
+
+        boolean isFull() {
+            return players + routed.get() >= capacity;
+        }
+    }
+
+    public void run() throws IOException {
+        loops = new RelayLoop[ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new RelayLoop(Selector.open());
+            Thread t = new Thread(loops[i], "gateway-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        ServerSocket control = new ServerSocket(controlPort, 50, InetAddress.getLoopbackAddress());
+        Thread controlThread = new Thread(() -> acceptBackends(control), "gateway-control");
+        controlThread.setDaemon(true);
+        controlThread.start();
+
+        Thread status = new Thread(this::logStatus, "gateway-status");
+        status.setDaemon(true);
+        status.start();
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Gateway listening on port " + port + " (" + loops.length
+                    + " I/O threads), backends register on 127.0.0.1:" + controlPort);
+
+            int next = 0;
+            while (true) {
+                SocketChannel client = serverChannel.accept();
+                SocketChannel backendChannel = null;
+                Backend backend = null;
+                for (Backend candidate : candidates()) {
+                    backendChannel = connect(candidate);
+                    if (backendChannel != null) {
+                        backend = candidate;
+                        break;
+                    }
+                }
+                if (backend == null) {
+                    System.out.println("DEBUG: No backend for " + client.getRemoteAddress() + ", closing it");
+                    client.close();
+                    continue;
+                }
+                backend.routed.incrementAndGet();
+                backend.relaying.incrementAndGet();
+                System.out.println("DEBUG: Client " + client.getRemoteAddress() + " -> backend " + backend.port);
+
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                RelayLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(new Relay(client, backendChannel, backend, bufferSize));
+            }
+        } finally {
+            control.close();
+            for (RelayLoop loop : loops) loop.selector.close();
+        }
+    }
+
+    // Healthy backends with room, least loaded first
+    private List<Backend> candidates() {
+        long now = System.nanoTime();
+        List<Backend> list = new ArrayList<>();
+        for (Backend b : backends.values()) {
+            if (b.down || b.isFull() || now - b.lastReport > staleMillis * 1_000_000L) continue;
+            list.add(b);
+        }
+        list.sort((a, b) -> {
+            int c = Double.compare(a.load(), b.load());
+            return c != 0 ? c : Integer.compare(a.tickMicros, b.tickMicros);
+        });
+        return list;
+    }
+
+    private SocketChannel connect(Backend backend) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), backend.port),
+                    CONNECT_TIMEOUT_MILLIS);
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            return channel;
+        } catch (IOException e) {
+            System.out.println("DEBUG: Backend " + backend.port + " didn't take a connection (" + e.getMessage()
+                    + "), skipping it until it reports again");
+            backend.down = true;
+            if (channel != null) {
+                try { channel.close(); } catch (IOException ex) {}
+            }
+            return null;
+        }
+    }
+
+    // --- Control connections ---
+
+    private void acceptBackends(ServerSocket control) {
+        while (!control.isClosed()) {
+            try {
+                Socket socket = control.accept();
+                Thread t = new Thread(() -> serveBackend(socket), "gateway-backend-" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!control.isClosed()) e.printStackTrace();
+            }
+        }
+    }
+
+    private void serveBackend(Socket socket) {
+        Backend backend = null;
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = s.getOutputStream();
+            String[] hello = split(in.readLine());
+            if (hello == null || hello.length != 3 || !hello[0].equals(BACKEND)) {
+                out.write("ERROR expected BACKEND <port> <capacity>\n".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            backend = new Backend(Integer.parseInt(hello[1]), Integer.parseInt(hello[2]), s);
+            Backend old = backends.put(backend.port, backend);
+            if (old != null) {
+                try { old.control.close(); } catch (IOException e) {}
+            }
+            out.write((OK + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            System.out.println("Backend " + backend.port + " registered, room for " + backend.capacity + " players");
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = split(line);
+                if (parts.length != 4 || !parts[0].equals(LOAD)) {
+                    System.out.println("DEBUG: Backend " + backend.port + " sent: " + line);
+                    continue;
+                }
+                backend.players = Integer.parseInt(parts[1]);
+                backend.tickMicros = Integer.parseInt(parts[2]);
+                backend.busyPercent = Integer.parseInt(parts[3]);
+                backend.routed.set(0);
+                backend.down = false;
+                backend.lastReport = System.nanoTime();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("DEBUG: Backend control connection failed: " + e);
+        } finally {
+            if (backend != null && backends.remove(backend.port, backend)) {
+                System.out.println("Backend " + backend.port + " gone; its clients are cut off as it closes them");
+            }
+        }
+    }
+
+    private static String[] split(String line) {
+        return line == null ? null : line.trim().split("\\s+");
+    }
+
+    private void logStatus() {
+        while (true) {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Backend b : backends.values()) {
+                boolean stale = now - b.lastReport > staleMillis * 1_000_000L;
+                System.out.println(String.format(Locale.ROOT,
+                        "DEBUG: Backend %d: %s, %d/%d players, tick %d us, %d%% busy; %d relayed, %d KB up, %d KB down",
+                        b.port, b.down ? "down" : stale ? "stale" : "ok", b.players, b.capacity, b.tickMicros,
+                        b.busyPercent, b.relaying.get(), b.bytesUp.get() / 1024, b.bytesDown.get() / 1024));
+            }
+        }
+    }
+
+    // --- Relay ---
+
+    /** One client and its backend connection; each End reads its socket into its own buffer for the other. */
+    static class Relay {
+        final End client;
+        final End backend;
+        final Backend target;
+        boolean closed = false;
+
+        Relay(SocketChannel client, SocketChannel backend, Backend target, int bufferSize) {
+            this.client = new End(this, client, ByteBuffer.allocateDirect(bufferSize), target.bytesUp);
+            this.backend = new End(this, backend, ByteBuffer.allocateDirect(bufferSize), target.bytesDown);
+            this.client.peer = this.backend;
+            this.backend.peer = this.client;
+            this.target = target;
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            target.relaying.decrementAndGet();
+            for (End e : new End[] { client, backend }) {
+                if (e.key != null) e.key.cancel();
+                try { e.channel.close(); } catch (IOException ex) {}
+            }
+        }
+    }
+
+    static class End {
+        final Relay relay;
+        final SocketChannel channel;
+        final ByteBuffer buffer; // read from channel, not yet written to peer; kept in fill mode
+        final AtomicLong counter;
+        End peer;
+        SelectionKey key;
+        boolean eof = false;
+
+        End(Relay relay, SocketChannel channel, ByteBuffer buffer, AtomicLong counter) {
+            this.relay = relay;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.counter = counter;
+        }
+
+        void onReadable() throws IOException {
+            int n = channel.read(buffer);
+            if (n < 0) {
+                eof = true;
+            } else {
+                counter.addAndGet(n);
+            }
+            flush();
+        }
+
+        // Passes what we've read on to the peer; stops reading us while the peer can't keep up
+        void flush() throws IOException {
+            buffer.flip();
+            peer.channel.write(buffer);
+            boolean pending = buffer.hasRemaining();
+            buffer.compact();
+
+            if (pending) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                peer.key.interestOps(peer.key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (eof) {
+                relay.close();
+            } else {
+                peer.key.interestOps(peer.key.interestOps() & ~SelectionKey.OP_WRITE);
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        void onWritable() throws IOException {
+            peer.flush();
+        }
+    }
+
+    /** One I/O thread; the accept thread hands it relays through register(). */
+    static class RelayLoop implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Relay> newRelays = new ConcurrentLinkedQueue<>();
+
+        RelayLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Relay relay) {
+            newRelays.add(relay);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+
+                    Relay relay;
+                    while ((relay = newRelays.poll()) != null) {
+                        try {
+                            relay.client.key = relay.client.channel.register(selector, SelectionKey.OP_READ, relay.client);
+                            relay.backend.key = relay.backend.channel.register(selector, SelectionKey.OP_READ, relay.backend);
+                        } catch (IOException e) {
+                            relay.close();
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        End end = (End) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) end.onReadable();
+                            if (key.isValid() && key.isWritable()) end.onWritable();
+                        } catch (IOException e) {
+                            end.relay.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen()) e.printStackTrace();
+            }
+        }
+    }
+}
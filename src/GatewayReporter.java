@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A ServerMain's side of the Gateway: keeps a control connection to the
+ * gateway on loopback, registers this server's client port on it and then
+ * reports how loaded it is every REPORT_MILLIS (see Gateway for the lines).
+ * If the gateway isn't there, or goes away, it keeps trying to reconnect,
+ * so gateway and servers can be started and restarted in any order.
+ *
+ * Load is read off the arenas' TickStats: the mean tick time of the worst
+ * arena, and how busy the arena workers were, since the last report.
+ */
+public class GatewayReporter implements Runnable {
+    public static final int REPORT_MILLIS = 500;
+    private static final int RETRY_MILLIS = 1000;
+
+    private final int gatewayPort;
+    private final int clientPort;
+    private final Arena[] arenas;
+    private final int capacity;
+    private final int workers;
+
+    // Per arena, at the last report: total tick nanos and ticks
+    private final long[] lastNanos;
+    private final long[] lastTicks;
+    private long lastReport;
+
+    public GatewayReporter(int gatewayPort, int clientPort, Arena[] arenas, int arenaSize, int workers) {
+        this.gatewayPort = gatewayPort;
+        this.clientPort = clientPort;
+        this.arenas = arenas;
+        this.capacity = arenas.length * arenaSize;
+        this.workers = workers;
+        this.lastNanos = new long[arenas.length];
+        this.lastTicks = new long[arenas.length];
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "gateway-reporter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        boolean warned = false;
+        while (true) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), gatewayPort)) {
+                socket.setTcpNoDelay(true);
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                out.write(Gateway.BACKEND + " " + clientPort + " " + capacity + "\n");
+                out.flush();
+                String reply = in.readLine();
+                if (!Gateway.OK.equals(reply)) {
+                    System.out.println("DEBUG: Gateway on port " + gatewayPort + " refused us: " + reply);
+                    return;
+                }
+                System.out.println("Registered with the gateway on port " + gatewayPort);
+                warned = false;
+
+                sample(); // starts the first window
+                while (true) {
+                    Thread.sleep(REPORT_MILLIS);
+                    out.write(sample());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!warned) {
+                    System.out.println("DEBUG: No gateway on port " + gatewayPort + " (" + e.getMessage() + "), retrying");
+                    warned = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // The LOAD line for the window since the last call, and start the next one
+    private String sample() {
+        long now = System.nanoTime();
+        int players = 0;
+        long busyNanos = 0;
+        double worstTick = 0;
+        for (int i = 0; i < arenas.length; i++) {
+            players += arenas[i].getClientCount();
+            TickStats stats = arenas[i].getGame().getStats();
+            long nanos = 0;
+            for (TickStats.Phase phase : TickStats.Phase.values()) {
+                nanos += stats.phase(phase).sum();
+            }
+            // Every tick records COMMANDS, so its count is the tick count
+            long ticks = stats.phase(TickStats.Phase.COMMANDS).count();
+            if (ticks > lastTicks[i]) {
+                worstTick = Math.max(worstTick, (double) (nanos - lastNanos[i]) / (ticks - lastTicks[i]));
+            }
+            busyNanos += nanos - lastNanos[i];
+            lastNanos[i] = nanos;
+            lastTicks[i] = ticks;
+        }
+        double busy = lastReport == 0 ? 0 : (double) busyNanos / ((now - lastReport) * (double) workers);
+        lastReport = now;
+        return String.format(Locale.ROOT, "%s %d %.0f %.0f\n",
+                Gateway.LOAD, players, worstTick / 1e3, Math.min(100, busy * 100));
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram of non-negative longs (nanoseconds, queue
+ * depths, ...). Values below 16 get their own bucket; above that each power
+ * of two is split into 16 buckets, so anything read back is within ~6%.
+ *
+ * One thread records, without allocating or locking; any thread may read.
+ * Readers see each bucket atomically but not a consistent cut across them,
+ * which is fine for monitoring.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // Single writer, so plain read-then-write is enough; volatile for the readers
+    private volatile long count;
+    private volatile long sum;
+    private volatile long max;
+
+    /** Recording thread only. */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int i = bucket(value);
+        counts.lazySet(i, counts.get(i) + 1);
+        sum = sum + value;
+        if (value > max) max = value;
+        count = count + 1;
+    }
+
+    public long count() { return count; }
+    public long sum()   { return sum; }
+    public long max()   { return max; }
+
+    /** Add this histogram's buckets into counts (BUCKETS long), e.g. to merge several. */
+    public void addTo(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] += counts.get(i);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return SUB + (exp - SUB_BITS) * SUB + sub;
+    }
+
+    /** Upper edge of bucket i, the value we report for anything in it. */
+    static long bucketValue(int i) {
+        if (i < SUB) return i;
+        int exp = (i - SUB) / SUB + SUB_BITS;
+        long sub = (i - SUB) % SUB;
+        long width = 1L << (exp - SUB_BITS);
+        return (1L << exp) + sub * width + (width - 1);
+    }
+
+    /** Value at quantile q (0..1) of merged bucket counts, or 0 if empty. */
+    static long quantile(long[] counts, long total, double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return bucketValue(i);
+        }
+        return bucketValue(counts.length - 1);
+    }
+}
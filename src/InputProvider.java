@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Plays one player in a headless match (see BatchRunner): each tick it's
+ * shown what the player was sent, then asked for its input. Like a real
+ * client it only knows what the light has told it, so whatever it "sees"
+ * of the others is where they were, not where they are.
+ */
+public interface InputProvider {
+
+    /** Messages delivered to the player this tick. */
+    void observe(MessageQueue msgs);
+
+    /** Queue this tick's input, through game.movePlayer() / playerShoot(). */
+    void act(Game game, Player self, long tick);
+
+    /** Makes a provider per player; random is seeded from the match and the player. */
+    interface Factory {
+        InputProvider create(int playerId, SplittableRandom random);
+    }
+
+    /**
+     * Wanders about (a mean-reverting random walk, like LoadGenerator's bots)
+     * and fires at random points now and then.
+     */
+    class RandomWalk implements InputProvider {
+        private final SplittableRandom random;
+        private final double shootChance; // per tick
+        private double vx, vy;
+
+        public RandomWalk(SplittableRandom random, double shootChance) {
+            this.random = random;
+            this.shootChance = shootChance;
+        }
+
+        @Override
+        public void observe(MessageQueue msgs) {
+        }
+
+        @Override
+        public void act(Game game, Player self, long tick) {
+            if (tick % 3 == 0) {
+                double dx = -0.2 * vx + random.nextDouble(-0.3, 0.3);
+                double dy = -0.2 * vy + random.nextDouble(-0.3, 0.3);
+                vx += dx;
+                vy += dy;
+                game.movePlayer(self.getId(), dx, dy);
+            }
+            if (random.nextDouble() < shootChance) {
+                game.playerShoot(self.getId(), random.nextDouble(800), random.nextDouble(600));
+            }
+        }
+    }
+
+    /**
+     * Aims at whoever it saw most recently, at the spot it saw them, with a
+     * random pause between shots. Moves like RandomWalk.
+     */
+    class Hunter implements InputProvider {
+        private final int self;
+        private final SplittableRandom random;
+        private final RandomWalk legs;
+        private final int minReload, maxReload;
+        private long nextShot;
+
+        // Last sighting, -1 if nobody alive has been seen yet
+        private int target = -1;
+        private double targetX, targetY;
+
+        public Hunter(int self, SplittableRandom random, int minReload, int maxReload) {
+            this.self = self;
+            this.random = random;
+            this.legs = new RandomWalk(random, 0);
+            this.minReload = minReload;
+            this.maxReload = maxReload;
+            this.nextShot = random.nextInt(minReload, maxReload + 1);
+        }
+
+        @Override
+        public void observe(MessageQueue msgs) {
+            for (int i = 0; i < msgs.size(); i++) {
+                if (msgs.kind(i) != MessageQueue.LIGHT) continue;
+                byte type = msgs.typeCode(i);
+                if (type == LightType.P.code() && msgs.id(i) != self) {
+                    target = msgs.id(i);
+                    targetX = msgs.x(i);
+                    targetY = msgs.y(i);
+                } else if (type == LightType.EXPLOSION.code() && msgs.id(i) == target) {
+                    target = -1; // saw them die
+                }
+            }
+        }
+
+        @Override
+        public void act(Game game, Player me, long tick) {
+            legs.act(game, me, tick);
+            if (target >= 0 && tick >= nextShot) {
+                game.playerShoot(self, targetX, targetY);
+                nextShot = tick + random.nextInt(minReload, maxReload + 1);
+            }
+        }
+    }
+
+    /**
+     * Runs through a LoadGenerator-style script ("MOVE dx dy", "SHOOT tx ty",
+     * "WAIT n"), one command a tick, looping from a random line.
+     */
+    class Script implements InputProvider {
+        private final String[][] lines;
+        private int line;
+        private int waiting;
+
+        public Script(String[][] lines, SplittableRandom random) {
+            this.lines = lines;
+            this.line = random.nextInt(lines.length);
+        }
+
+        public static String[][] load(String file) throws IOException {
+            List<String[]> lines = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(file))) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                lines.add(line.split("\\s+"));
+            }
+            if (lines.isEmpty()) throw new IOException("Empty script: " + file);
+            return lines.toArray(new String[0][]);
+        }
+
+        @Override
+        public void observe(MessageQueue msgs) {
+        }
+
+        @Override
+        public void act(Game game, Player self, long tick) {
+            if (waiting > 0) {
+                waiting--;
+                return;
+            }
+            String[] cmd = lines[line];
+            line = (line + 1) % lines.length;
+            if (cmd[0].equals("MOVE")) {
+                game.movePlayer(self.getId(), Double.parseDouble(cmd[1]), Double.parseDouble(cmd[2]));
+            } else if (cmd[0].equals("SHOOT")) {
+                game.playerShoot(self.getId(), Double.parseDouble(cmd[1]), Double.parseDouble(cmd[2]));
+            } else if (cmd[0].equals("WAIT")) {
+                waiting = Integer.parseInt(cmd[1]) - 1;
+            }
+        }
+    }
+}
@@ -1,9 +1,13 @@
+/**
+ * Read-only snapshot of a light event. The simulation itself keeps events
+ * in LightStore; this is for callers that want a plain object to pass around.
+ */
 public class Light {
-    public double x;
-    public double y;
-    public double timestamp;
-    public String type; // e.g. "P", "BULLET", "SHOT", "EXPLOSION"
-    public int id;      // playerId or bulletId
+    public final double x;
+    public final double y;
+    public final double timestamp;
+    public final String type; // e.g. "P", "BULLET", "SHOT", "EXPLOSION"
+    public final int id;      // playerId or bulletId
 
     public Light(String type, int id, double x, double y, double timestamp) {
         this.type = type;
@@ -12,4 +16,12 @@ public class Light {
         this.y = y;
         this.timestamp = timestamp;
     }
+
+    public Light(LightType type, int id, double x, double y, double timestamp) {
+        this(type.name(), id, x, y, timestamp);
+    }
+
+    public LightType getType() {
+        return LightType.valueOf(type);
+    }
 }
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands LIGHT events from one network thread to ClientMain's render thread
+ * without locking or allocating: a fixed ring of primitive records (type
+ * code, id, x, y), one producer, one consumer.
+ *
+ * The producer add()s and publishes each event by moving tail on. Each frame
+ * the consumer acquire()s everything published so far, reads it in place,
+ * and release()s it when the frame is drawn; the producer can't reuse those
+ * slots until then. If the render thread stalls for a whole ring, new events
+ * are dropped (and counted) rather than waited for.
+ */
+public class LightEventRing {
+    private final byte[] types;
+    private final int[] ids;
+    private final double[] xs, ys;
+    private final int mask;
+
+    // tail is only advanced by the producer, head by the consumer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Producer only
+    private long writePos = 0;
+    private long headSeen = 0;
+    private volatile long dropped = 0;
+
+    // Consumer only: what the last acquire() handed out
+    private long readStart = 0;
+    private long readEnd = 0;
+
+    /** capacity is rounded up to a power of two. */
+    public LightEventRing(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.types = new byte[n];
+        this.ids = new int[n];
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.mask = n - 1;
+    }
+
+    // --- Producer ---
+
+    /** Queue an event; false (and counted) if the ring is full. */
+    public boolean add(byte type, int id, double x, double y) {
+        if (writePos - headSeen == types.length) {
+            headSeen = head.get();
+            if (writePos - headSeen == types.length) {
+                dropped++;
+                return false;
+            }
+        }
+        int i = (int) (writePos & mask);
+        types[i] = type;
+        ids[i] = id;
+        xs[i] = x;
+        ys[i] = y;
+        tail.lazySet(++writePos);
+        return true;
+    }
+
+    /** Events dropped so far because the ring was full. Any thread. */
+    public long dropped() {
+        return dropped;
+    }
+
+    // --- Consumer ---
+
+    /** Take everything published so far; returns how many, read with type(i) etc. for i below that. */
+    public int acquire() {
+        readStart = head.get();
+        readEnd = tail.get();
+        return (int) (readEnd - readStart);
+    }
+
+    public byte type(int i) {
+        return types[(int) ((readStart + i) & mask)];
+    }
+
+    public int id(int i) {
+        return ids[(int) ((readStart + i) & mask)];
+    }
+
+    public double x(int i) {
+        return xs[(int) ((readStart + i) & mask)];
+    }
+
+    public double y(int i) {
+        return ys[(int) ((readStart + i) & mask)];
+    }
+
+    /** Done with what acquire() handed out; the producer may reuse it. */
+    public void release() {
+        head.lazySet(readEnd);
+    }
+}
@@ -0,0 +1,710 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Event-driven light visibility.
+ *
+ * Rather than rescanning every live light event against every player each
+ * tick, every (event, viewer) pair sits in that viewer's ArrivalQueue keyed by
+ * the earliest time the wavefront could reach them. A viewer can close the gap
+ * to an event by at most the distance they've travelled since the key was
+ * computed, so keys are stored in "distance units":
+ *
+ *     key   = dist(event, viewer) + viewerPath + c * timestamp
+ *     clock = c * now + viewerPath
+ *
+ * Nothing can arrive while key > clock. Each tick we only pop the entries
+ * whose key has come due, do the exact check (a DistanceKernel, a viewer's
+ * whole batch at once), and either deliver or push them back with a fresh key.
+ *
+ * Events themselves live in a LightStore and are referred to by slot.
+ *
+ * Viewers are independent of each other during delivery, so with a
+ * ForkJoinPool set the per-viewer work is split across it: each task only
+ * touches its own viewers' queues and scratch, reads the store, and writes to
+ * those players' own message queues. The shared bookkeeping (pending counts,
+ * retirement) is done afterwards on the calling thread.
+ *
+ * Left alone, an event lives until every viewer has seen it, which a player
+ * far enough away (or running from it) can put off indefinitely. Two limits
+ * bound that, both off by default:
+ *  - a horizon: events are dropped once their wavefront has travelled
+ *    maxRadius, i.e. after maxRadius / c time units; nobody further away
+ *    ever sees them;
+ *  - a budget: at most maxEvents in the store; a new event over budget first
+ *    evicts a batch of old ones, picked by the EvictionPolicy.
+ * Evicted events are marked straight away (and skipped if they come due) but
+ * only purged from the viewers' queues in batches, since that means walking
+ * every queue.
+ *
+ * With an area of interest set, a viewer is only handed events that start
+ * within its radius; the rest count as already seen. Viewers are then kept in
+ * a CollisionGrid so emit() only has to look at the ones nearby.
+ */
+public class LightScheduler {
+
+    /** Which events go first when the store is over budget. */
+    public enum EvictionPolicy {
+        /** Strictly oldest first. */
+        OLDEST,
+        /** P first, then BULLET, SHOT and EXPLOSION last (LightType order); oldest first within a type. */
+        TYPE_PRIORITY
+    }
+
+    public interface Sink {
+        /**
+         * Event in store slot has reached playerId. In parallel mode this is
+         * called from pool threads, but never concurrently for the same player.
+         */
+        void deliver(int playerId, LightStore store, int slot);
+    }
+
+    // Viewers per fork/join task
+    private static final int VIEWERS_PER_TASK = 8;
+
+    // Keys are a lower bound, so popping a hair early is harmless (the exact
+    // check decides); popping late would delay a delivery by a tick.
+    private static final double KEY_SLACK = 1e-6;
+    private static final byte P = LightType.P.code();
+
+    private final double speedOfLight;
+    private final Sink sink;
+    private final LightStore store = new LightStore();
+    private final DistanceKernel kernel = DistanceKernel.get();
+
+    // Slots nobody is waiting on anymore; freed at the end of the next pass
+    private int[] retiring = new int[64];
+    private int retiringCount = 0;
+
+    // Horizon and budget; fifos (one per type, in emission order) only exist once either is set
+    private double maxAge = Double.POSITIVE_INFINITY;
+    private int maxEvents = Integer.MAX_VALUE;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.OLDEST;
+    private SlotFifo[] fifos;
+
+    // Marked evicted but still in the viewers' queues
+    private int[] evicting = new int[64];
+    private int evictingCount = 0;
+    private long evictedByAge = 0;
+    private long evictedByBudget = 0;
+
+    // Area of interest; null grid = every viewer gets every event
+    private double aoiRadius = Double.POSITIVE_INFINITY;
+    private CollisionGrid aoiGrid;
+    private boolean aoiGridValid = false;
+    private int[] nearby = new int[16];
+
+    private final List<Viewer> viewers = new ArrayList<>();
+    private final Map<Integer, Viewer> viewersById = new HashMap<>();
+
+    // Parallel delivery; null means always sequential
+    private ForkJoinPool pool;
+    private int parallelMinViewers;
+    private DeliverTask[] tasks = new DeliverTask[0];
+    private int taskCount;
+    private double taskNow; // written before pool.invoke(), which publishes it to the workers
+
+    // writeCheckpoint() scratch: slot -> its index in the checkpoint
+    private int[] checkpointIndex = new int[0];
+
+    private static class Viewer {
+        final Player player;
+        final ArrivalQueue queue = new ArrivalQueue();
+        // Entries popped this tick; afterwards the first deliveredCount are the delivered ones
+        int[] due = new int[16];
+        int deliveredCount;
+        // Where and when each due event was emitted, then what the DistanceKernel
+        // made of it; same indices as due
+        double[] dueX = new double[16], dueY = new double[16], dueTs = new double[16];
+        double[] dist = new double[16];
+        boolean[] arrived = new boolean[16];
+        double lastX, lastY;
+        double path; // total distance travelled, sampled whenever we look at the player
+
+        Viewer(Player player) {
+            this.player = player;
+            this.lastX = player.getX();
+            this.lastY = player.getY();
+        }
+
+        void growDue() {
+            int n = due.length * 2;
+            due = Arrays.copyOf(due, n);
+            dueX = Arrays.copyOf(dueX, n);
+            dueY = Arrays.copyOf(dueY, n);
+            dueTs = Arrays.copyOf(dueTs, n);
+            dist = new double[n];
+            arrived = new boolean[n];
+        }
+
+        void observe() {
+            double dx = player.getX() - lastX;
+            double dy = player.getY() - lastY;
+            if (dx != 0 || dy != 0) {
+                path += Math.sqrt(dx*dx + dy*dy);
+                lastX = player.getX();
+                lastY = player.getY();
+            }
+        }
+    }
+
+    public LightScheduler(double speedOfLight, Sink sink) {
+        this.speedOfLight = speedOfLight;
+        this.sink = sink;
+    }
+
+    /**
+     * Deliver in parallel on pool once there are at least minViewers alive
+     * viewers; smaller matches aren't worth the hand-off. Null pool turns it off.
+     */
+    public void setParallelism(ForkJoinPool pool, int minViewers) {
+        this.pool = pool;
+        this.parallelMinViewers = minViewers;
+    }
+
+    /** Drop events once their wavefront has gone maxRadius. Infinity turns it off. */
+    public void setHorizon(double maxRadius) {
+        this.maxAge = maxRadius / speedOfLight;
+        if (maxAge != Double.POSITIVE_INFINITY) trackAge();
+    }
+
+    /** Keep at most maxEvents in the store, evicting by policy. Integer.MAX_VALUE turns it off. */
+    public void setBudget(int maxEvents, EvictionPolicy policy) {
+        this.maxEvents = Math.max(1, maxEvents);
+        this.evictionPolicy = policy;
+        if (maxEvents != Integer.MAX_VALUE) trackAge();
+    }
+
+    // Start keeping the fifos; whatever is live now goes in, oldest first
+    private void trackAge() {
+        if (fifos != null) return;
+        fifos = new SlotFifo[LightType.values().length];
+        for (int i = 0; i < fifos.length; i++) {
+            fifos[i] = new SlotFifo();
+        }
+        int[] live = new int[store.liveCount()];
+        int n = 0;
+        for (int slot = 0; slot < store.highWater(); slot++) {
+            if (store.isLive(slot)) live[n++] = slot;
+        }
+        sortBySeq(live, n);
+        for (int i = 0; i < n; i++) {
+            fifos[store.typeCode(live[i]) - 1].add(live[i], store.seq(live[i]));
+        }
+    }
+
+    /**
+     * Only queue events for viewers within radius of where they start.
+     * Infinity turns it off.
+     */
+    public void setAreaOfInterest(double radius) {
+        this.aoiRadius = radius;
+        this.aoiGrid = radius == Double.POSITIVE_INFINITY ? null : new CollisionGrid(radius);
+        this.aoiGridValid = false;
+    }
+
+    /**
+     * Viewers may have moved since the last emit(). The grid is rebuilt the
+     * next time it's needed, so call this once after moving everyone rather
+     * than between moves.
+     */
+    public void viewersMoved() {
+        aoiGridValid = false;
+    }
+
+    public long evictedByAge()    { return evictedByAge; }
+    public long evictedByBudget() { return evictedByBudget; }
+
+    public LightStore store() {
+        return store;
+    }
+
+    public int liveEventCount() {
+        return store.liveCount();
+    }
+
+    public void addViewer(Player p) {
+        if (viewersById.containsKey(p.getId())) return;
+        Viewer v = new Viewer(p);
+        viewers.add(v);
+        viewersById.put(p.getId(), v);
+        aoiGridValid = false;
+
+        // Order doesn't matter here, deliveries are sorted by seq when they go out
+        for (int slot = 0; slot < store.highWater(); slot++) {
+            if (store.isLive(slot) && !store.isEvicted(slot)) {
+                schedule(v, slot);
+            }
+        }
+    }
+
+    public void emit(LightType type, int id, double x, double y, double timestamp) {
+        if (store.liveCount() >= maxEvents) {
+            makeRoom();
+        }
+        int slot = store.add(type.code(), id, x, y, timestamp);
+        if (fifos != null) {
+            SlotFifo fifo = fifos[type.code() - 1];
+            fifo.add(slot, store.seq(slot));
+            // Mostly retired entries by now; don't let them pile up
+            if (fifo.size() > 2 * store.liveCount() + 64) {
+                fifo.retainCurrent(store);
+            }
+        }
+
+        if (aoiGrid == null) {
+            for (int i = 0; i < viewers.size(); i++) {
+                schedule(viewers.get(i), slot);
+            }
+        } else {
+            if (!aoiGridValid) indexViewers();
+            int n = aoiGrid.candidates(x, y, nearby);
+            for (int k = 0; k < n; k++) {
+                schedule(viewers.get(nearby[k]), slot);
+            }
+        }
+        if (store.pending(slot) == 0) {
+            retire(slot);
+        }
+    }
+
+    /**
+     * Deliver every arrival that is due at time now, then retire events
+     * that every alive player has seen.
+     */
+    public void process(double now) {
+        for (int i = 0; i < viewers.size(); i++) {
+            Viewer v = viewers.get(i);
+            if (!v.player.isAlive()) {
+                dropViewer(v);
+                viewers.remove(i--);
+                aoiGridValid = false;
+            }
+        }
+
+        if (maxAge != Double.POSITIVE_INFINITY) {
+            expire(now - maxAge);
+        }
+
+        if (pool != null && viewers.size() >= parallelMinViewers) {
+            deliverParallel(now);
+        } else {
+            for (int i = 0; i < viewers.size(); i++) {
+                processViewer(viewers.get(i), now);
+            }
+        }
+
+        // Reduce: count off the deliveries, retire whatever everyone has now seen
+        for (int i = 0; i < viewers.size(); i++) {
+            Viewer v = viewers.get(i);
+            for (int k = 0; k < v.deliveredCount; k++) {
+                int slot = v.due[k];
+                if (store.decrementPending(slot) == 0) {
+                    retire(slot);
+                }
+            }
+            v.deliveredCount = 0;
+        }
+
+        for (int i = 0; i < retiringCount; i++) {
+            int slot = retiring[i];
+            // A late joiner may have picked it up since, or it's listed twice; evicted ones go in purge()
+            if (store.isLive(slot) && !store.isEvicted(slot) && store.pending(slot) == 0) {
+                store.remove(slot);
+            }
+        }
+        retiringCount = 0;
+
+        // Purging walks every queue, so wait until it's worth it (or compaction needs it done)
+        if (evictingCount > 0 && (evictingCount * 8 >= store.liveCount() || store.shouldCompact())) {
+            purge();
+        }
+
+        if (store.shouldCompact()) {
+            if (fifos != null) {
+                for (SlotFifo fifo : fifos) fifo.retainCurrent(store);
+            }
+            int movedFrom = store.liveCount();
+            store.compact();
+            for (int i = 0; i < viewers.size(); i++) {
+                viewers.get(i).queue.remap(store.forwarding(), movedFrom);
+            }
+            if (fifos != null) {
+                for (SlotFifo fifo : fifos) fifo.remap(store.forwarding(), movedFrom);
+            }
+        }
+    }
+
+    // Evict everything emitted before cutoff
+    private void expire(double cutoff) {
+        for (SlotFifo fifo : fifos) {
+            while (true) {
+                fifo.skipStale(store);
+                if (fifo.isEmpty() || store.timestamp(fifo.headSlot()) >= cutoff) break;
+                int slot = fifo.headSlot();
+                fifo.pop();
+                if (store.pending(slot) > 0) { // else it's retiring anyway
+                    evict(slot);
+                    evictedByAge++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Over budget: evict down to a little under it, so the purge that follows
+     * covers the next several over-budget emits too.
+     */
+    private void makeRoom() {
+        int target = maxEvents - Math.max(1, maxEvents / 16);
+        while (store.liveCount() - evictingCount > target) {
+            SlotFifo victim = null;
+            for (SlotFifo fifo : fifos) {
+                fifo.skipStale(store);
+                if (fifo.isEmpty()) continue;
+                if (evictionPolicy == EvictionPolicy.TYPE_PRIORITY) {
+                    victim = fifo;
+                    break;
+                }
+                if (victim == null || store.seq(fifo.headSlot()) < store.seq(victim.headSlot())) {
+                    victim = fifo;
+                }
+            }
+            if (victim == null) break;
+            int slot = victim.headSlot();
+            victim.pop();
+            if (store.pending(slot) == 0) {
+                // Everyone has it already, it's only waiting on retiring; free it now, not an eviction
+                store.remove(slot);
+                continue;
+            }
+            evict(slot);
+            evictedByBudget++;
+        }
+        purge();
+    }
+
+    private void evict(int slot) {
+        store.evict(slot);
+        if (evictingCount == evicting.length) {
+            evicting = Arrays.copyOf(evicting, evictingCount * 2);
+        }
+        evicting[evictingCount++] = slot;
+    }
+
+    // Take the evicted events out of every queue, then free their slots
+    private void purge() {
+        for (int i = 0; i < viewers.size(); i++) {
+            viewers.get(i).queue.removeEvicted(store);
+        }
+        for (int i = 0; i < evictingCount; i++) {
+            store.remove(evicting[i]);
+        }
+        evictingCount = 0;
+    }
+
+    // --- Checkpoints (see Checkpointer) ---
+
+    /**
+     * Append the live events, in slot order with their sequence numbers, and
+     * for each alive viewer which of them it's still waiting on. Evicted
+     * events and ones everybody has seen are left out. Arrival keys aren't
+     * kept: readCheckpoint() works them out again from where everyone is by
+     * then. (Sorting by seq here instead would be most of the cost.)
+     *
+     *     u32 events, each  u8 type, i32 id, f64 x, f64 y, f64 timestamp, i64 seq
+     *     u32 viewers, each i32 player, u32 n, n x u32 event index
+     */
+    public void writeCheckpoint(ByteBuffer buf) {
+        int highWater = store.highWater();
+        if (checkpointIndex.length < highWater) {
+            checkpointIndex = new int[Math.max(highWater, checkpointIndex.length * 2)];
+        }
+        int countAt = buf.position();
+        buf.putInt(0);
+        int n = 0;
+        for (int slot = 0; slot < highWater; slot++) {
+            if (!store.isLive(slot) || store.isEvicted(slot) || store.pending(slot) == 0) {
+                checkpointIndex[slot] = -1;
+                continue;
+            }
+            checkpointIndex[slot] = n++;
+            buf.put(store.typeCode(slot));
+            buf.putInt(store.id(slot));
+            buf.putDouble(store.x(slot));
+            buf.putDouble(store.y(slot));
+            buf.putDouble(store.timestamp(slot));
+            buf.putLong(store.seq(slot));
+        }
+        buf.putInt(countAt, n);
+
+        countAt = buf.position();
+        buf.putInt(0);
+        int written = 0;
+        for (int i = 0; i < viewers.size(); i++) {
+            Viewer v = viewers.get(i);
+            if (!v.player.isAlive()) continue; // dropped next process() anyway
+            buf.putInt(v.player.getId());
+            int pendingAt = buf.position();
+            buf.putInt(0);
+            int k = 0;
+            for (int j = 0; j < v.queue.size(); j++) {
+                int index = checkpointIndex[v.queue.peek(j)];
+                if (index >= 0) {
+                    buf.putInt(index);
+                    k++;
+                }
+            }
+            buf.putInt(pendingAt, k);
+            written++;
+        }
+        buf.putInt(countAt, written);
+    }
+
+    /**
+     * Put back what writeCheckpoint() wrote, into an empty scheduler whose
+     * viewers have already been added. A viewer waits on exactly what it was
+     * waiting on before, whether or not it's in its area of interest now.
+     */
+    public void readCheckpoint(ByteBuffer buf) {
+        int n = buf.getInt();
+        int[] slots = new int[n];
+        for (int i = 0; i < n; i++) {
+            byte type = buf.get();
+            int id = buf.getInt();
+            double x = buf.getDouble();
+            double y = buf.getDouble();
+            double timestamp = buf.getDouble();
+            slots[i] = store.restore(type, id, x, y, timestamp, buf.getLong());
+        }
+        // Out of seq order, so the fifos are redone from scratch
+        if (fifos != null) {
+            fifos = null;
+            trackAge();
+        }
+
+        int viewerCount = buf.getInt();
+        for (int i = 0; i < viewerCount; i++) {
+            Viewer v = viewersById.get(buf.getInt());
+            int k = buf.getInt();
+            for (int j = 0; j < k; j++) {
+                int slot = slots[buf.getInt()];
+                if (v == null) continue;
+                double dx = store.x(slot) - v.player.getX();
+                double dy = store.y(slot) - v.player.getY();
+                v.observe();
+                v.queue.push(keyFor(v, slot, Math.sqrt(dx*dx + dy*dy)), slot);
+                store.incrementPending(slot);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (store.pending(slots[i]) == 0) retire(slots[i]);
+        }
+    }
+
+    /**
+     * One chunk of VIEWERS_PER_TASK viewers per task. The tasks are kept and
+     * reinitialized every tick rather than allocated.
+     */
+    private void deliverParallel(double now) {
+        int n = (viewers.size() + VIEWERS_PER_TASK - 1) / VIEWERS_PER_TASK;
+        if (tasks.length < n) {
+            int old = tasks.length;
+            tasks = Arrays.copyOf(tasks, Math.max(n, old * 2));
+            for (int i = old; i < tasks.length; i++) {
+                tasks[i] = new DeliverTask(i * VIEWERS_PER_TASK);
+            }
+        }
+        taskCount = n;
+        taskNow = now;
+        root.reinitialize();
+        pool.invoke(root);
+    }
+
+    private final RecursiveAction root = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            for (int i = 1; i < taskCount; i++) {
+                tasks[i].reinitialize();
+                tasks[i].fork();
+            }
+            tasks[0].reinitialize();
+            tasks[0].invoke();
+            for (int i = 1; i < taskCount; i++) {
+                tasks[i].join();
+            }
+        }
+    };
+
+    private class DeliverTask extends RecursiveAction {
+        private final int lo;
+
+        DeliverTask(int lo) {
+            this.lo = lo;
+        }
+
+        @Override
+        protected void compute() {
+            int hi = Math.min(lo + VIEWERS_PER_TASK, viewers.size());
+            for (int i = lo; i < hi; i++) {
+                processViewer(viewers.get(i), taskNow);
+            }
+        }
+    }
+
+    /**
+     * Deliver what's due for one viewer. Touches only that viewer and reads
+     * the store, so viewers can run in parallel; the delivered slots are left
+     * at the front of v.due for process() to count off.
+     */
+    private void processViewer(Viewer v, double now) {
+        ArrivalQueue queue = v.queue;
+        v.deliveredCount = 0;
+        if (queue.isEmpty()) return;
+
+        v.observe();
+        double clock = speedOfLight * now + v.path;
+
+        int dueCount = 0;
+        while (!queue.isEmpty() && queue.peekKey() <= clock) {
+            int slot = queue.pop();
+            if (store.isEvicted(slot)) continue; // past the horizon or over budget, never arrives
+            if (dueCount == v.due.length) v.growDue();
+            v.due[dueCount] = slot;
+            v.dueX[dueCount] = store.x(slot);
+            v.dueY[dueCount] = store.y(slot);
+            v.dueTs[dueCount] = store.timestamp(slot);
+            dueCount++;
+        }
+        if (dueCount == 0) return;
+
+        // The exact check, the whole batch in one go
+        Player p = v.player;
+        int[] due = v.due;
+        double[] dist = v.dist;
+        boolean[] arrived = v.arrived;
+        int delivered = kernel.arrivals(v.dueX, v.dueY, v.dueTs, dueCount,
+                p.getX(), p.getY(), now, speedOfLight, dist, arrived);
+
+        // Not there yet: back in the queue with a fresh key. The rest move to the front of due.
+        if (delivered < dueCount) {
+            int k = 0;
+            for (int i = 0; i < dueCount; i++) {
+                int slot = due[i];
+                if (arrived[i]) {
+                    due[k++] = slot;
+                } else {
+                    queue.push(keyFor(v, slot, dist[i]), slot);
+                }
+            }
+        }
+
+        // Keep each player's messages in emission order, like the old full scan.
+        // Only the deliveries need it, so sorting after the check keeps the batches short.
+        sortBySeq(due, delivered);
+        for (int i = 0; i < delivered; i++) {
+            sink.deliver(p.getId(), store, due[i]);
+        }
+        v.deliveredCount = delivered;
+    }
+
+    private void schedule(Viewer v, int slot) {
+        // "P" events are never sent back to the same player
+        if (store.typeCode(slot) == P && store.id(slot) == v.player.getId()) return;
+
+        double dx = store.x(slot) - v.player.getX();
+        double dy = store.y(slot) - v.player.getY();
+        double dist = Math.sqrt(dx*dx + dy*dy);
+        if (dist > aoiRadius) return; // out of its area of interest: as good as seen
+
+        v.observe();
+        v.queue.push(keyFor(v, slot, dist), slot);
+        store.incrementPending(slot);
+    }
+
+    // Every viewer at its current position, by index in viewers
+    private void indexViewers() {
+        int n = viewers.size();
+        aoiGrid.reset(n);
+        if (nearby.length < n) {
+            nearby = new int[Math.max(n, nearby.length * 2)];
+        }
+        for (int i = 0; i < n; i++) {
+            Player p = viewers.get(i).player;
+            aoiGrid.insert(i, p.getX(), p.getY());
+        }
+        aoiGridValid = true;
+    }
+
+    private void dropViewer(Viewer v) {
+        ArrivalQueue queue = v.queue;
+        for (int i = 0; i < queue.size(); i++) {
+            int slot = queue.peek(i);
+            if (store.decrementPending(slot) == 0) {
+                retire(slot);
+            }
+        }
+        queue.clear();
+        viewersById.remove(v.player.getId());
+    }
+
+    private void retire(int slot) {
+        if (retiringCount == retiring.length) {
+            retiring = Arrays.copyOf(retiring, retiringCount * 2);
+        }
+        retiring[retiringCount++] = slot;
+    }
+
+    private double keyFor(Viewer v, int slot, double dist) {
+        return dist + v.path + speedOfLight * store.timestamp(slot) - KEY_SLACK;
+    }
+
+    /**
+     * In-place sort of slots by emission order. Usually only a handful are due
+     * at once, so insertion sort; heapsort for the big batches a late joiner gets.
+     */
+    private void sortBySeq(int[] slots, int n) {
+        if (n <= 32) {
+            for (int i = 1; i < n; i++) {
+                int s = slots[i];
+                long key = store.seq(s);
+                int j = i - 1;
+                while (j >= 0 && store.seq(slots[j]) > key) {
+                    slots[j + 1] = slots[j];
+                    j--;
+                }
+                slots[j + 1] = s;
+            }
+            return;
+        }
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(slots, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            int tmp = slots[0];
+            slots[0] = slots[end];
+            slots[end] = tmp;
+            siftDown(slots, 0, end);
+        }
+    }
+
+    private void siftDown(int[] slots, int i, int n) {
+        int s = slots[i];
+        long key = store.seq(s);
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) break;
+            if (child + 1 < n && store.seq(slots[child + 1]) > store.seq(slots[child])) child++;
+            if (store.seq(slots[child]) <= key) break;
+            slots[i] = slots[child];
+            i = child;
+        }
+        slots[i] = s;
+    }
+}
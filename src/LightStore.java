@@ -0,0 +1,170 @@
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays storage for live light events.
+ *
+ * Each event occupies a slot index into parallel primitive arrays. Retired
+ * slots go on a free stack and are handed out again by the next add(), so a
+ * steady stream of events doesn't allocate. When most of the slot range is
+ * free, compact() moves the survivors down to the bottom so the range (and the
+ * arrays) can shrink again; callers holding slot numbers must remap them.
+ *
+ * About 42 bytes per slot, plus whatever the viewers' queues hold for it.
+ */
+public class LightStore {
+    public static final byte FREE = 0;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private double[] x = new double[INITIAL_CAPACITY];
+    private double[] y = new double[INITIAL_CAPACITY];
+    private double[] timestamp = new double[INITIAL_CAPACITY];
+    private int[] id = new int[INITIAL_CAPACITY];
+    private byte[] type = new byte[INITIAL_CAPACITY];
+    private long[] seq = new long[INITIAL_CAPACITY];
+    private int[] pending = new int[INITIAL_CAPACITY];
+    private boolean[] evicted = new boolean[INITIAL_CAPACITY];
+
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+
+    private int highWater = 0; // slots >= highWater have never been handed out
+    private int liveCount = 0;
+    private long nextSeq = 0;
+
+    // Scratch for compact(): old slot -> new slot
+    private int[] forward = new int[0];
+
+    public int add(byte typeCode, int eventId, double ex, double ey, double ts) {
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (highWater == type.length) {
+                resize(highWater * 2);
+            }
+            slot = highWater++;
+        }
+        x[slot] = ex;
+        y[slot] = ey;
+        timestamp[slot] = ts;
+        id[slot] = eventId;
+        type[slot] = typeCode;
+        seq[slot] = nextSeq++;
+        pending[slot] = 0;
+        evicted[slot] = false;
+        liveCount++;
+        return slot;
+    }
+
+    /** add() for an event read back from a checkpoint: it keeps the sequence number it had. */
+    public int restore(byte typeCode, int eventId, double ex, double ey, double ts, long eventSeq) {
+        int slot = add(typeCode, eventId, ex, ey, ts);
+        seq[slot] = eventSeq;
+        nextSeq = Math.max(nextSeq, eventSeq + 1);
+        return slot;
+    }
+
+    public void remove(int slot) {
+        type[slot] = FREE;
+        evicted[slot] = false;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+        liveCount--;
+    }
+
+    public boolean isLive(int slot) { return type[slot] != FREE; }
+    public int liveCount()          { return liveCount; }
+    /** Every live slot is below this. */
+    public int highWater()          { return highWater; }
+
+    public double x(int slot)         { return x[slot]; }
+    public double y(int slot)         { return y[slot]; }
+    public double timestamp(int slot) { return timestamp[slot]; }
+    public int id(int slot)           { return id[slot]; }
+    public byte typeCode(int slot)    { return type[slot]; }
+    public long seq(int slot)         { return seq[slot]; }
+
+    public int pending(int slot)               { return pending[slot]; }
+    public void incrementPending(int slot)     { pending[slot]++; }
+    public int decrementPending(int slot)      { return --pending[slot]; }
+
+    /**
+     * Dropped before everyone saw it. Still occupies its slot (and stays live)
+     * until the owner has purged it from wherever it's queued and removes it.
+     */
+    public void evict(int slot)          { evicted[slot] = true; }
+    public boolean isEvicted(int slot)   { return evicted[slot]; }
+
+    /** A plain copy of the event in slot, for callers that want a Light. */
+    public Light get(int slot) {
+        return new Light(LightType.fromCode(type[slot]), id[slot], x[slot], y[slot], timestamp[slot]);
+    }
+
+    /**
+     * Worth calling compact()? True once less than a quarter of the slot
+     * range is in use.
+     */
+    public boolean shouldCompact() {
+        return highWater > INITIAL_CAPACITY && liveCount * 4 < highWater;
+    }
+
+    /**
+     * Move live events from the top of the slot range into free slots at the
+     * bottom. Afterwards slots [0, liveCount) are exactly the live ones.
+     * Any slot s >= liveCount still held by a caller moved to forwarding()[s].
+     */
+    public void compact() {
+        if (forward.length < highWater) {
+            forward = new int[type.length];
+        }
+
+        int lo = 0;
+        int hi = highWater - 1;
+        while (true) {
+            while (lo < hi && type[lo] != FREE) lo++;
+            while (hi > lo && type[hi] == FREE) hi--;
+            if (lo >= hi) break;
+
+            x[lo] = x[hi];
+            y[lo] = y[hi];
+            timestamp[lo] = timestamp[hi];
+            id[lo] = id[hi];
+            type[lo] = type[hi];
+            seq[lo] = seq[hi];
+            pending[lo] = pending[hi];
+            evicted[lo] = evicted[hi];
+            type[hi] = FREE;
+            evicted[hi] = false;
+            forward[hi] = lo;
+        }
+
+        highWater = liveCount;
+        freeCount = 0;
+
+        int capacity = type.length;
+        while (capacity > INITIAL_CAPACITY && capacity > highWater * 4) {
+            capacity /= 2;
+        }
+        if (capacity != type.length) {
+            resize(capacity);
+        }
+    }
+
+    public int[] forwarding() {
+        return forward;
+    }
+
+    private void resize(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        timestamp = Arrays.copyOf(timestamp, capacity);
+        id = Arrays.copyOf(id, capacity);
+        type = Arrays.copyOf(type, capacity);
+        seq = Arrays.copyOf(seq, capacity);
+        pending = Arrays.copyOf(pending, capacity);
+        evicted = Arrays.copyOf(evicted, capacity);
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Kinds of light event. The name doubles as the text on the wire
+ * ("LIGHT P 1 500.0 300.0"); the code is what LightStore keeps per slot.
+ * Code 0 is reserved for a free slot.
+ */
+public enum LightType {
+    P,          // a player's position
+    BULLET,
+    SHOT,       // muzzle flash
+    EXPLOSION;
+
+    private static final LightType[] BY_CODE = values();
+
+    public byte code() {
+        return (byte) (ordinal() + 1);
+    }
+
+    public static LightType fromCode(byte code) {
+        return BY_CODE[code - 1];
+    }
+}
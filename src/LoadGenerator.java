@@ -0,0 +1,750 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Headless load generator: opens lots of bot connections to a ServerMain and
+ * has them move and shoot, then prints a report.
+ *
+ * Bots are spread over a few threads, each running one Selector, so a single
+ * box can hold thousands of them. They speak the binary protocol by default,
+ * delta-coded binary with --delta (decoding positions like ClientMain does),
+ * or text with --text. With --udp (binary, against a server run with --udp)
+ * they take up the server's UDP offer: LIGHTs come in as datagrams, and
+ * MOVE/SHOOT go out on the reliable UDP channel once the server has
+ * welcomed them. --udp-loss/delay/jitter impair what the bots send. Every action interval a bot either does a random MOVE
+ * (mean-reverting, so nobody flies off) and now and then a SHOOT at a random
+ * point, or follows --script.
+ *
+ * Latency is measured from sending SHOOT to the first other bot receiving
+ * the LIGHT SHOT it causes. That includes the light travel time, which is the
+ * point: it's what players see. Bots are matched to player ids, which are
+ * only unique within an arena, so run the server with one arena (the
+ * default) for latency numbers.
+ *
+ * Usage: LoadGenerator [--host=localhost] [--port=12345] [--bots=1000]
+ *                      [--threads=2] [--duration=60] [--ramp=500]
+ *                      [--interval-ms=50] [--shoot-every-ms=2000]
+ *                      [--echo-timeout-ms=5000] [--seed=N] [--text|--delta]
+ *                      [--script=FILE]
+ *                      [--udp] [--udp-loss=P] [--udp-delay-ms=N] [--udp-jitter-ms=N]
+ *
+ * A script has one command per line, "MOVE dx dy", "SHOOT tx ty" or
+ * "WAIT n" (skip n intervals). Each bot loops over it from a random line.
+ * Thousands of bots need a matching "ulimit -n" on both ends.
+ */
+public class LoadGenerator {
+    private static final int READ_BUFFER = 16 * 1024;
+    private static final int WRITE_BUFFER = 1024;
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int botCount = 1000;
+    private int threads = 2;
+    private int durationSec = 60;
+    private int rampPerSec = 500;
+    private long intervalNanos = 50_000_000L;
+    private long shootEveryNanos = 2_000_000_000L;
+    private long echoTimeoutNanos = 5_000_000_000L;
+    private long seed = System.nanoTime();
+    private boolean binary = true;
+    private boolean delta = false;
+    private String[][] script; // null = random
+    private boolean udp = false;
+    private double udpLoss = 0;
+    private int udpDelayMs = 0;
+    private int udpJitterMs = 0;
+    private PacketImpairment impairment = PacketImpairment.NONE;
+
+    // Bot by player id, for matching SHOT echoes to the shooter
+    private AtomicReferenceArray<Bot> botsById;
+    private final AtomicLong duplicateIds = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator gen = new LoadGenerator();
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                gen.host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                gen.port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--bots=")) {
+                gen.botCount = Integer.parseInt(arg.substring("--bots=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                gen.threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                gen.durationSec = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.startsWith("--ramp=")) {
+                gen.rampPerSec = Integer.parseInt(arg.substring("--ramp=".length()));
+            } else if (arg.startsWith("--interval-ms=")) {
+                gen.intervalNanos = Long.parseLong(arg.substring("--interval-ms=".length())) * 1_000_000L;
+            } else if (arg.startsWith("--shoot-every-ms=")) {
+                gen.shootEveryNanos = Long.parseLong(arg.substring("--shoot-every-ms=".length())) * 1_000_000L;
+            } else if (arg.startsWith("--echo-timeout-ms=")) {
+                gen.echoTimeoutNanos = Long.parseLong(arg.substring("--echo-timeout-ms=".length())) * 1_000_000L;
+            } else if (arg.startsWith("--seed=")) {
+                gen.seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.equals("--text")) {
+                gen.binary = false;
+            } else if (arg.equals("--delta")) {
+                gen.binary = true;
+                gen.delta = true;
+            } else if (arg.equals("--udp")) {
+                gen.binary = true;
+                gen.udp = true;
+            } else if (arg.startsWith("--udp-loss=")) {
+                gen.udpLoss = Double.parseDouble(arg.substring("--udp-loss=".length()));
+            } else if (arg.startsWith("--udp-delay-ms=")) {
+                gen.udpDelayMs = Integer.parseInt(arg.substring("--udp-delay-ms=".length()));
+            } else if (arg.startsWith("--udp-jitter-ms=")) {
+                gen.udpJitterMs = Integer.parseInt(arg.substring("--udp-jitter-ms=".length()));
+            } else if (arg.startsWith("--script=")) {
+                gen.script = loadScript(arg.substring("--script=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+            }
+        }
+        gen.run();
+    }
+
+    private String protocol() {
+        String protocol = delta ? "delta" : binary ? "binary" : "text";
+        return udp ? protocol + " + UDP" + (impairment.isNone() ? "" : " (" + impairment + ")") : protocol;
+    }
+
+    private static String[][] loadScript(String file) throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            lines.add(line.split("\\s+"));
+        }
+        if (lines.isEmpty()) throw new IOException("Empty script: " + file);
+        return lines.toArray(new String[0][]);
+    }
+
+    public void run() throws Exception {
+        botsById = new AtomicReferenceArray<>(botCount);
+        impairment = new PacketImpairment(udpLoss, udpDelayMs, udpJitterMs, seed);
+        BotLoop[] loops = new BotLoop[threads];
+        Thread[] loopThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new BotLoop(Selector.open(), new SplittableRandom(seed + i));
+            loopThreads[i] = new Thread(loops[i], "bots-" + i);
+            loopThreads[i].start();
+        }
+        System.out.println("Load test: " + botCount + " bots on " + threads + " thread(s) against "
+                + host + ":" + port + ", " + durationSec + " s, " + protocol()
+                + (script != null ? ", scripted" : ", random"));
+
+        // Ramp connections up rather than hitting the accept backlog all at once
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        List<Bot> bots = new ArrayList<>(botCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < botCount; i++) {
+            long due = start + i * 1_000_000_000L / Math.max(1, rampPerSec);
+            long wait = due - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+
+            Bot bot = new Bot(i);
+            bots.add(bot);
+            loops[i % threads].add(bot, address);
+        }
+
+        long end = start + durationSec * 1_000_000_000L;
+        long nextReport = System.nanoTime() + 5_000_000_000L;
+        long lastIn = 0, lastOut = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(100);
+            if (System.nanoTime() >= nextReport) {
+                long in = 0, out = 0;
+                for (BotLoop loop : loops) {
+                    in += loop.messagesIn;
+                    out += loop.messagesOut;
+                }
+                System.out.println("... " + (in - lastIn) / 5 + " msg/s in, " + (out - lastOut) / 5 + " msg/s out");
+                lastIn = in;
+                lastOut = out;
+                nextReport += 5_000_000_000L;
+            }
+        }
+
+        running = false;
+        for (BotLoop loop : loops) loop.selector.wakeup();
+        for (Thread t : loopThreads) t.join();
+
+        report(bots, loops, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void report(List<Bot> bots, BotLoop[] loops, double seconds) {
+        int connected = 0, failed = 0, disconnected = 0, died = 0;
+        long in = 0, out = 0, bytesIn = 0;
+        double[] inRates = new double[bots.size()];
+        double[] outRates = new double[bots.size()];
+        int n = 0;
+        for (Bot bot : bots) {
+            if (bot.connectedAt == 0) {
+                failed++;
+                continue;
+            }
+            connected++;
+            if (bot.lost) disconnected++;
+            if (bot.dead) died++;
+            in += bot.messagesIn;
+            out += bot.messagesOut;
+            bytesIn += bot.bytesIn;
+
+            long until = bot.lost ? bot.lostAt : bot.stoppedAt;
+            double alive = Math.max(1e-3, (until - bot.connectedAt) / 1e9);
+            inRates[n] = bot.messagesIn / alive;
+            outRates[n] = bot.messagesOut / alive;
+            n++;
+        }
+        inRates = Arrays.copyOf(inRates, n);
+        outRates = Arrays.copyOf(outRates, n);
+        Arrays.sort(inRates);
+        Arrays.sort(outRates);
+
+        long shots = 0, timed = 0, unanswered = 0;
+        int samples = 0;
+        for (BotLoop loop : loops) {
+            shots += loop.shots;
+            timed += loop.timed;
+            unanswered += loop.unanswered;
+            samples += loop.latencyCount;
+        }
+        for (Bot bot : bots) {
+            if (bot.pendingShot.get() != 0) unanswered++;
+        }
+        long[] latency = new long[samples];
+        int k = 0;
+        for (BotLoop loop : loops) {
+            System.arraycopy(loop.latencies, 0, latency, k, loop.latencyCount);
+            k += loop.latencyCount;
+        }
+        Arrays.sort(latency);
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "=== %d bots, %.1f s, %s ===", bots.size(), seconds, protocol()));
+        System.out.println("Connections:  " + connected + " ok, " + failed + " failed, "
+                + disconnected + " disconnected by the server, " + died + " killed in game");
+        System.out.println(String.format(Locale.ROOT, "Messages in:  %d (%.0f/s), per client/s %s", in, in / seconds, rates(inRates)));
+        System.out.println(String.format(Locale.ROOT, "Bytes in:     %d (%.0f/s), %.1f per message",
+                bytesIn, bytesIn / seconds, in == 0 ? 0.0 : (double) bytesIn / in));
+        System.out.println(String.format(Locale.ROOT, "Messages out: %d (%.0f/s), per client/s %s", out, out / seconds, rates(outRates)));
+        System.out.println("Shots:        " + shots + " sent, " + timed + " timed, " + samples + " echoed, " + unanswered
+                + " never seen by another bot (no ammo, dead, or timed out)");
+        if (samples > 0) {
+            System.out.println(String.format(Locale.ROOT,
+                    "Echo latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+                    percentile(latency, 0.50) / 1e6, percentile(latency, 0.90) / 1e6,
+                    percentile(latency, 0.99) / 1e6, percentile(latency, 0.999) / 1e6,
+                    latency[samples - 1] / 1e6));
+        }
+        if (udp) {
+            int welcomed = 0;
+            long packets = 0, stale = 0, missing = 0, resends = 0;
+            for (Bot bot : bots) {
+                if (bot.udp == null) continue;
+                if (bot.udp.isWelcomed()) welcomed++;
+                packets += bot.udp.lightPackets;
+                stale += bot.udp.stalePackets;
+                missing += bot.udp.missingPackets;
+                resends += bot.udp.resends();
+            }
+            System.out.println("UDP:          " + welcomed + " bots welcomed, " + packets + " LIGHTS packets, "
+                    + missing + " lost, " + stale + " dropped as stale, " + resends + " reliable resends");
+        }
+        if (duplicateIds.get() > 0) {
+            System.out.println("WARNING: " + duplicateIds.get() + " bots shared a player id (several arenas?),"
+                    + " their shots weren't timed");
+        }
+    }
+
+    private static String rates(double[] sorted) {
+        if (sorted.length == 0) return "-";
+        return String.format(Locale.ROOT, "min %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+                sorted[0], percentile(sorted, 0.50), percentile(sorted, 0.90),
+                percentile(sorted, 0.99), sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /** One simulated client. Owned by its BotLoop's thread, apart from pendingShot. */
+    private static class Bot {
+        final int index;
+        SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER);
+        final ByteBuffer writeBuf = ByteBuffer.allocate(WRITE_BUFFER); // fill mode
+        final StringBuilder line = new StringBuilder(64);
+
+        int playerId = -1; // -1 until the ID line, and the bot doesn't act before that
+        boolean framedOut; // we've sent PROTO BIN, so we send frames
+        boolean framed;    // server has acked it, frames from here on
+        boolean dead;
+        boolean lost;     // server closed on us before the end
+        boolean stopped;
+        double vx, vy;    // what we've asked for so far, to keep the random walk bounded
+        int scriptLine;
+        int waitIntervals;
+        long nextAction;
+
+        long connectedAt, lostAt, stoppedAt;
+        long messagesIn, messagesOut, bytesIn;
+        PositionDeltas deltas; // --delta only
+
+        // --udp, once the server's offer arrives
+        DatagramChannel udpChannel;
+        SelectionKey udpKey;
+        UdpClient udp;
+        UdpClient.FrameHandler udpFrames;
+
+        // nanoTime the unanswered SHOOT went out, 0 if none; cleared by whoever sees the echo first
+        final AtomicLong pendingShot = new AtomicLong();
+
+        Bot(int index) {
+            this.index = index;
+        }
+    }
+
+    /** One thread's worth of bots on one Selector. */
+    private class BotLoop implements Runnable {
+        final Selector selector;
+        private final SplittableRandom random;
+        private final List<Bot> bots = new ArrayList<>();
+        private final List<Bot> adding = new ArrayList<>(); // guarded by itself
+        private final List<InetSocketAddress> addingTo = new ArrayList<>();
+
+        // Progress counters, read by the main thread
+        volatile long messagesIn, messagesOut;
+
+        // Loop thread only until join()
+        long shots, timed, unanswered;
+        long[] latencies = new long[1024];
+        int latencyCount;
+
+        // Loop thread only
+        private final ByteBuffer packet = ByteBuffer.allocate(UdpProtocol.MAX_PACKET);
+        private final ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+
+        BotLoop(Selector selector, SplittableRandom random) {
+            this.selector = selector;
+            this.random = random;
+        }
+
+        void add(Bot bot, InetSocketAddress address) {
+            synchronized (adding) {
+                adding.add(bot);
+                addingTo.add(address);
+            }
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    connectNew();
+
+                    long now = System.nanoTime();
+                    long next = now + intervalNanos;
+                    for (int i = 0; i < bots.size(); i++) {
+                        Bot bot = bots.get(i);
+                        if (bot.playerId < 0 || bot.stopped) continue;
+                        if (bot.udp != null) pollUdp(bot, now);
+                        if (bot.nextAction <= now) {
+                            act(bot, now);
+                            bot.nextAction = now + intervalNanos;
+                        }
+                        if (bot.nextAction < next) next = bot.nextAction;
+                    }
+
+                    long waitMs = (next - System.nanoTime()) / 1_000_000;
+                    if (waitMs > 0) {
+                        selector.select(waitMs);
+                    } else {
+                        selector.selectNow();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Bot bot = (Bot) key.attachment();
+                        try {
+                            if (key == bot.udpKey) {
+                                if (key.isValid() && key.isReadable()) onDatagrams(bot);
+                                continue;
+                            }
+                            if (key.isValid() && key.isConnectable()) onConnect(bot);
+                            if (key.isValid() && key.isReadable()) onReadable(bot);
+                            if (key.isValid() && key.isWritable()) flush(bot);
+                        } catch (IOException e) {
+                            lose(bot);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                long now = System.nanoTime();
+                for (Bot bot : bots) {
+                    if (!bot.stopped) {
+                        bot.stopped = true;
+                        bot.stoppedAt = now;
+                    }
+                    try {
+                        bot.channel.close();
+                        if (bot.udpChannel != null) bot.udpChannel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void connectNew() {
+            synchronized (adding) {
+                for (int i = 0; i < adding.size(); i++) {
+                    Bot bot = adding.get(i);
+                    try {
+                        bot.channel = SocketChannel.open();
+                        bot.channel.configureBlocking(false);
+                        bot.channel.socket().setTcpNoDelay(true);
+                        bot.channel.connect(addingTo.get(i));
+                        bot.key = bot.channel.register(selector, SelectionKey.OP_CONNECT, bot);
+                        bots.add(bot);
+                    } catch (IOException e) {
+                        System.out.println("DEBUG: Bot " + bot.index + " could not connect: " + e.getMessage());
+                        try {
+                            if (bot.channel != null) bot.channel.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                adding.clear();
+                addingTo.clear();
+            }
+        }
+
+        private void onConnect(Bot bot) throws IOException {
+            bot.channel.finishConnect();
+            bot.connectedAt = System.nanoTime();
+            bot.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void onReadable(Bot bot) throws IOException {
+            ByteBuffer buf = bot.readBuf;
+            int n = bot.channel.read(buf);
+            if (n == -1) {
+                throw new IOException("closed by server");
+            }
+            bot.bytesIn += n;
+
+            long in = 0;
+            buf.flip();
+            while (true) {
+                if (bot.framed) {
+                    if (buf.remaining() < 2) break;
+                    int len = buf.getShort(buf.position()) & 0xFFFF;
+                    if (len == 0 || len > BinaryProtocol.MAX_FRAME) throw new IOException("Bad frame length " + len);
+                    if (buf.remaining() < 2 + len) break;
+                    int body = buf.position() + 2;
+                    onFrame(bot, buf, body);
+                    buf.position(body + len);
+                    in++;
+                } else {
+                    int eol = -1;
+                    for (int i = buf.position(); i < buf.limit(); i++) {
+                        if (buf.get(i) == '\n') {
+                            eol = i;
+                            break;
+                        }
+                    }
+                    if (eol < 0) break;
+                    onLine(bot, buf, buf.position(), eol);
+                    buf.position(eol + 1);
+                    in++;
+                }
+            }
+            buf.compact();
+            if (!buf.hasRemaining()) throw new IOException("line too long");
+
+            bot.messagesIn += in;
+            messagesIn += in;
+        }
+
+        private void onDatagrams(Bot bot) throws IOException {
+            while (true) {
+                packet.clear();
+                if (bot.udpChannel.receive(packet) == null) return;
+                packet.flip();
+                bot.bytesIn += packet.remaining();
+                bot.udp.onPacket(packet, bot.udpFrames);
+            }
+        }
+
+        private void pollUdp(Bot bot, long now) {
+            try {
+                bot.udp.poll(now);
+            } catch (IOException e) {
+                lose(bot);
+            }
+        }
+
+        // Take up "UDP <port> <token>": our own datagram socket, on this loop's selector
+        private void startUdp(Bot bot, long[] offer) throws IOException {
+            if (offer == null) return;
+            bot.udpChannel = DatagramChannel.open();
+            bot.udpChannel.configureBlocking(false);
+            bot.udpChannel.connect(new InetSocketAddress(host, (int) offer[0]));
+            bot.udpKey = bot.udpChannel.register(selector, SelectionKey.OP_READ, bot);
+            bot.udp = new UdpClient(bot.udpChannel, offer[1], impairment);
+            bot.udpFrames = f -> {
+                onFrame(bot, f, f.position());
+                bot.messagesIn++;
+                messagesIn++;
+            };
+            bot.udp.poll(System.nanoTime());
+        }
+
+        private boolean udpReady(Bot bot) {
+            return bot.udp != null && bot.udp.isWelcomed();
+        }
+
+        // frame[0, position) on the bot's reliable channel
+        private void sendReliable(Bot bot) {
+            try {
+                if (!bot.udp.sendReliable(frame)) throw new IOException("server stopped acking");
+            } catch (IOException e) {
+                lose(bot);
+            }
+        }
+
+        private void onFrame(Bot bot, ByteBuffer buf, int body) {
+            byte op = buf.get(body);
+            if (op == BinaryProtocol.OP_LIGHT) {
+                if (buf.get(body + 1) == LightType.SHOT.code()) {
+                    onShot(bot, buf.getInt(body + 2));
+                }
+            } else if (op == BinaryProtocol.OP_LIGHT_KEY || op == BinaryProtocol.OP_LIGHT_DELTA) {
+                buf.position(body + 1); // the caller moves on to the next frame regardless
+                if (bot.deltas.readLight(buf, op) && bot.deltas.type() == LightType.SHOT.code()) {
+                    onShot(bot, bot.deltas.id());
+                }
+            } else if (op == BinaryProtocol.OP_DELTA_RESET) {
+                bot.deltas.reset();
+            } else if (op == BinaryProtocol.OP_YOU_DEAD) {
+                bot.dead = true;
+            }
+        }
+
+        // Text line [from, eol); only the rare lines get turned into Strings
+        private void onLine(Bot bot, ByteBuffer buf, int from, int eol) throws IOException {
+            if (startsWith(buf, from, eol, "LIGHT SHOT ")) {
+                int id = 0;
+                for (int i = from + "LIGHT SHOT ".length(); i < eol && buf.get(i) != ' '; i++) {
+                    id = id * 10 + (buf.get(i) - '0');
+                }
+                onShot(bot, id);
+                return;
+            }
+            if (startsWith(buf, from, eol, "LIGHT ")) return;
+            if (startsWith(buf, from, eol, "YOU_DEAD")) {
+                bot.dead = true;
+                return;
+            }
+
+            bot.line.setLength(0);
+            for (int i = from; i < eol; i++) {
+                byte b = buf.get(i);
+                if (b != '\r') bot.line.append((char) b);
+            }
+            String line = bot.line.toString();
+            if (line.startsWith("ID ")) {
+                bot.playerId = Integer.parseInt(line.substring(3).trim());
+                if (bot.playerId >= 0 && bot.playerId < botsById.length()
+                        && !botsById.compareAndSet(bot.playerId, null, bot)) {
+                    duplicateIds.incrementAndGet();
+                }
+                if (binary) {
+                    if (delta) bot.deltas = new PositionDeltas();
+                    ClientProtocol.writeLine(bot.writeBuf, delta ? BinaryProtocol.DELTA_HELLO : BinaryProtocol.HELLO);
+                    bot.framedOut = true;
+                    flush(bot);
+                }
+                // Spread the bots' actions over the interval
+                bot.nextAction = System.nanoTime() + random.nextLong(intervalNanos);
+            } else if (line.equals(BinaryProtocol.HELLO) || line.equals(BinaryProtocol.DELTA_HELLO)) {
+                bot.framed = true;
+            } else if (udp && line.startsWith(UdpProtocol.OFFER + " ")) {
+                startUdp(bot, UdpProtocol.parseOffer(line));
+            }
+        }
+
+        private boolean startsWith(ByteBuffer buf, int from, int eol, String prefix) {
+            if (eol - from < prefix.length()) return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (buf.get(from + i) != prefix.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private void onShot(Bot receiver, int shooterId) {
+            if (shooterId < 0 || shooterId >= botsById.length()) return;
+            Bot shooter = botsById.get(shooterId);
+            if (shooter == null || shooter == receiver) return;
+
+            long sentAt = shooter.pendingShot.get();
+            if (sentAt != 0 && shooter.pendingShot.compareAndSet(sentAt, 0)) {
+                recordLatency(System.nanoTime() - sentAt);
+            }
+        }
+
+        private void recordLatency(long nanos) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+
+        private void act(Bot bot, long now) {
+            if (bot.dead) return;
+
+            long sentAt = bot.pendingShot.get();
+            if (sentAt != 0 && now - sentAt > echoTimeoutNanos && bot.pendingShot.compareAndSet(sentAt, 0)) {
+                unanswered++;
+            }
+
+            if (script != null) {
+                actScripted(bot, now);
+            } else {
+                // Pull the velocity back towards zero with a bit of noise on top
+                double dx = -0.2 * bot.vx + random.nextDouble(-1, 1);
+                double dy = -0.2 * bot.vy + random.nextDouble(-1, 1);
+                move(bot, dx, dy);
+                if (random.nextDouble() < (double) intervalNanos / shootEveryNanos) {
+                    shoot(bot, random.nextDouble(800), random.nextDouble(600), now);
+                }
+            }
+            flushQuietly(bot);
+        }
+
+        private void actScripted(Bot bot, long now) {
+            if (bot.waitIntervals > 0) {
+                bot.waitIntervals--;
+                return;
+            }
+            if (bot.scriptLine == 0 && bot.messagesOut == 0) {
+                bot.scriptLine = random.nextInt(script.length);
+            }
+            String[] cmd = script[bot.scriptLine];
+            bot.scriptLine = (bot.scriptLine + 1) % script.length;
+
+            if (cmd[0].equals("MOVE")) {
+                move(bot, Double.parseDouble(cmd[1]), Double.parseDouble(cmd[2]));
+            } else if (cmd[0].equals("SHOOT")) {
+                shoot(bot, Double.parseDouble(cmd[1]), Double.parseDouble(cmd[2]), now);
+            } else if (cmd[0].equals("WAIT")) {
+                bot.waitIntervals = Integer.parseInt(cmd[1]) - 1;
+            }
+        }
+
+        private void move(Bot bot, double dx, double dy) {
+            if (bot.writeBuf.remaining() < ClientProtocol.MAX_TEXT_LINE) return; // backed up, skip it
+            bot.vx += dx;
+            bot.vy += dy;
+            if (udpReady(bot)) {
+                frame.clear();
+                BinaryProtocol.writeMove(frame, dx, dy);
+                sendReliable(bot);
+            } else if (bot.framedOut) {
+                BinaryProtocol.writeMove(bot.writeBuf, dx, dy);
+            } else {
+                ClientProtocol.writeLine(bot.writeBuf, "MOVE " + dx + " " + dy);
+            }
+            bot.messagesOut++;
+            messagesOut++;
+        }
+
+        private void shoot(Bot bot, double tx, double ty, long now) {
+            if (bot.writeBuf.remaining() < ClientProtocol.MAX_TEXT_LINE) return;
+            if (udpReady(bot)) {
+                frame.clear();
+                BinaryProtocol.writeShoot(frame, tx, ty);
+                sendReliable(bot);
+            } else if (bot.framedOut) {
+                BinaryProtocol.writeShoot(bot.writeBuf, tx, ty);
+            } else {
+                ClientProtocol.writeLine(bot.writeBuf, "SHOOT " + tx + " " + ty);
+            }
+            bot.messagesOut++;
+            messagesOut++;
+            shots++;
+            // Only time one shot at a time, so an echo can't be matched to the wrong one
+            if (bot.pendingShot.compareAndSet(0, now)) timed++;
+        }
+
+        private void flushQuietly(Bot bot) {
+            try {
+                flush(bot);
+            } catch (IOException e) {
+                lose(bot);
+            }
+        }
+
+        private void flush(Bot bot) throws IOException {
+            ByteBuffer buf = bot.writeBuf;
+            if (buf.position() > 0) {
+                buf.flip();
+                bot.channel.write(buf);
+                buf.compact();
+            }
+            if (bot.key.isValid()) {
+                bot.key.interestOps(buf.position() > 0
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            }
+        }
+
+        private void lose(Bot bot) {
+            if (bot.stopped) return;
+            bot.stopped = true;
+            if (bot.connectedAt != 0) {
+                bot.lost = true;
+                bot.lostAt = System.nanoTime();
+            }
+            bot.key.cancel();
+            try {
+                bot.channel.close();
+                if (bot.udpChannel != null) bot.udpChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records one Game to an append-only journal: who joined, every MOVE/SHOOT
+ * the tick applied and every message it delivered, grouped by tick. See
+ * MatchReplay for reading it back.
+ *
+ * The tick thread never touches the file. It writes fixed-size records into
+ * a byte ring and publishes them at the end of each tick; a "journal-writer"
+ * thread copies them into a memory-mapped journal (mapped a segment at a
+ * time, so it grows as it goes) and, for every TICK record, puts the offset
+ * into the index file, tick n at 8 * n. If the writer falls a whole ring
+ * behind, records are dropped rather than waiting, and the next TICK record
+ * says how many.
+ *
+ * Journal layout (big endian): a HEADER_SIZE header (magic, version, the
+ * game settings a re-simulation needs), then records:
+ *
+ *     TICK      i64 tick, f64 time (the tick's end), i32 records dropped before it
+ *     JOIN      i32 player, f64 x, f64 y
+ *     MOVE      i32 player, f64 dx, f64 dy
+ *     SHOOT     i32 player, f64 tx, f64 ty
+ *     LIGHT     i32 viewer, u8 type, i32 id, f64 x, f64 y
+ *     YOU_DEAD  i32 viewer
+ *     LEAVE     i32 player
+ *
+ * each starting with its u8 kind. A tick's joins and commands come before
+ * its deliveries, which are in viewer id order.
+ */
+public class MatchRecorder {
+    public static final int MAGIC = 0x52465331; // "RFS1"
+    public static final short VERSION = 2; // 2 added LEAVE
+    public static final int HEADER_SIZE = 64;
+
+    public static final byte TICK = 1;
+    public static final byte JOIN = 2;
+    public static final byte MOVE = 3;
+    public static final byte SHOOT = 4;
+    public static final byte LIGHT = 5;
+    public static final byte YOU_DEAD = 6;
+    public static final byte LEAVE = 7;
+
+    private static final int[] SIZES = { 0, 21, 21, 21, 21, 26, 5, 5 };
+    private static final int MAX_RECORD = 26;
+    private static final long SEGMENT = 64L * 1024 * 1024;
+    private static final long INDEX_SEGMENT = 8L * 1024 * 1024;
+
+    /** Size of a record of the given kind, kind byte included; 0 if it isn't one. */
+    public static int recordSize(byte kind) {
+        return kind > 0 && kind < SIZES.length ? SIZES[kind] : 0;
+    }
+
+    /** The index that goes with a journal file. */
+    public static Path indexFor(Path journal) {
+        return journal.resolveSibling(journal.getFileName() + ".idx");
+    }
+
+    private final Path path;
+    private final FileChannel journal;
+    private final FileChannel index;
+
+    // The ring; tail is only advanced (published) by the tick thread, head by the writer
+    private final byte[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Tick thread only
+    private long writePos = 0;
+    private long headSeen = 0;
+    private long tick = 0;
+    private int dropped = 0;
+    private long droppedTotal = 0;
+
+    // Writer thread only (and start(), before it runs)
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private MappedByteBuffer indexSegment;
+    private long indexSegmentStart;
+    private long length = HEADER_SIZE;
+    private long ticksIndexed = 0;
+    private final byte[] record = new byte[MAX_RECORD];
+
+    private Thread writer;
+    private volatile boolean closing = false;
+
+    /** ringBytes is rounded up to a power of two. */
+    public MatchRecorder(Path path, int ringBytes) throws IOException {
+        this.path = path;
+        int n = Integer.highestOneBit(Math.max(1024, ringBytes - 1)) << 1;
+        this.ring = new byte[n];
+        this.mask = n - 1;
+        this.journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(indexFor(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /** Records dropped so far because the writer couldn't keep up. */
+    public long droppedRecords() {
+        return droppedTotal + dropped;
+    }
+
+    /**
+     * Write the header and start the writer thread. Called from
+     * Game.setRecorder(), with the settings it was created with.
+     */
+    public void start(double timeStep, double aoiRadius, double lightHorizon,
+                      int lightBudget, LightScheduler.EvictionPolicy policy) throws IOException {
+        segmentStart = 0;
+        segment = journal.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putDouble(timeStep);
+        segment.putDouble(aoiRadius);
+        segment.putDouble(lightHorizon);
+        segment.putInt(lightBudget);
+        segment.put((byte) policy.ordinal());
+        segment.position(HEADER_SIZE);
+
+        indexSegmentStart = 0;
+        indexSegment = index.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_SEGMENT);
+
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // --- Tick thread ---
+
+    /** Start of tick(); time is the game time the tick will end at. */
+    public void beginTick(double time) {
+        if (!reserve(TICK)) return;
+        putLong(tick);
+        putDouble(time);
+        putInt(dropped);
+        droppedTotal += dropped;
+        dropped = 0;
+    }
+
+    public void join(int playerId, double x, double y) {
+        if (!reserve(JOIN)) return;
+        putInt(playerId);
+        putDouble(x);
+        putDouble(y);
+    }
+
+    /** kind is CommandQueue.MOVE, SHOOT or LEAVE. */
+    public void command(byte kind, int playerId, double a, double b) {
+        if (kind == CommandQueue.LEAVE) {
+            if (!reserve(LEAVE)) return;
+            putInt(playerId);
+            return;
+        }
+        if (!reserve(kind == CommandQueue.MOVE ? MOVE : SHOOT)) return;
+        putInt(playerId);
+        putDouble(a);
+        putDouble(b);
+    }
+
+    /** Message i of msgs, delivered to viewer. */
+    public void delivery(int viewer, MessageQueue msgs, int i) {
+        if (msgs.kind(i) == MessageQueue.YOU_DEAD) {
+            if (!reserve(YOU_DEAD)) return;
+            putInt(viewer);
+            return;
+        }
+        if (!reserve(LIGHT)) return;
+        putInt(viewer);
+        putByte(msgs.typeCode(i));
+        putInt(msgs.id(i));
+        putDouble(msgs.x(i));
+        putDouble(msgs.y(i));
+    }
+
+    /** End of tick(): hand the tick's records to the writer. */
+    public void endTick() {
+        tick++;
+        tail.lazySet(writePos);
+    }
+
+    // Room for a record of this kind? Writes its kind byte if so, counts a drop if not
+    private boolean reserve(byte kind) {
+        int size = SIZES[kind];
+        if (writePos + size - headSeen > ring.length) {
+            headSeen = head.get();
+            if (writePos + size - headSeen > ring.length) {
+                dropped++;
+                return false;
+            }
+        }
+        putByte(kind);
+        return true;
+    }
+
+    private void putByte(byte b) {
+        ring[(int) (writePos++ & mask)] = b;
+    }
+
+    private void putInt(int v) {
+        putByte((byte) (v >>> 24));
+        putByte((byte) (v >>> 16));
+        putByte((byte) (v >>> 8));
+        putByte((byte) v);
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putDouble(double v) {
+        putLong(Double.doubleToRawLongBits(v));
+    }
+
+    // --- Writer thread ---
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                boolean last = closing; // read before tail, so nothing published before close is missed
+                long published = tail.get();
+                long pos = head.get();
+                if (pos == published) {
+                    if (last) break;
+                    LockSupport.parkNanos(1_000_000L);
+                    continue;
+                }
+                while (pos < published) {
+                    pos += copyRecord(pos);
+                }
+                head.lazySet(pos);
+            }
+            finish();
+        } catch (IOException e) {
+            System.out.println("DEBUG: Journal " + path + " failed: " + e);
+        }
+    }
+
+    // One record from the ring into the journal; returns its size
+    private int copyRecord(long pos) throws IOException {
+        byte kind = ring[(int) (pos & mask)];
+        int size = SIZES[kind];
+        for (int i = 0; i < size; i++) {
+            record[i] = ring[(int) ((pos + i) & mask)];
+        }
+
+        if (segment.remaining() < size) {
+            segmentStart = length;
+            segment = journal.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT);
+        }
+        if (kind == TICK) {
+            indexTick(readLong(record, 1), length);
+        }
+        segment.put(record, 0, size);
+        length += size;
+        return size;
+    }
+
+    private void indexTick(long tickNumber, long offset) throws IOException {
+        long at = tickNumber * 8;
+        if (at + 8 > indexSegmentStart + INDEX_SEGMENT) {
+            indexSegmentStart = at;
+            indexSegment = index.map(FileChannel.MapMode.READ_WRITE, indexSegmentStart, INDEX_SEGMENT);
+        }
+        indexSegment.putLong((int) (at - indexSegmentStart), offset);
+        ticksIndexed = tickNumber + 1;
+    }
+
+    private static long readLong(byte[] b, int at) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[at + i] & 0xFF);
+        }
+        return v;
+    }
+
+    // Cut the files down from whole segments to what was written
+    private void finish() throws IOException {
+        segment.force();
+        indexSegment.force();
+        journal.truncate(length);
+        index.truncate(ticksIndexed * 8);
+        journal.close();
+        index.close();
+        System.out.println("Journal " + path + ": " + ticksIndexed + " ticks, " + length + " bytes"
+                + (droppedRecords() > 0 ? ", " + droppedRecords() + " records dropped" : ""));
+    }
+
+    /** Any thread. Writes out whatever has been published and closes the files. */
+    public void close() throws InterruptedException {
+        if (writer == null || closing) return;
+        closing = true;
+        writer.join();
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads a MatchRecorder journal back.
+ *
+ * Usage: MatchReplay FILE                      summary
+ *        MatchReplay FILE --viewer=ID [--from=TICK] [--to=TICK]
+ *        MatchReplay FILE --resim [--to=TICK]
+ *
+ * --viewer prints what one player was sent (plus their own MOVE/SHOOT,
+ * marked ">"), as text protocol lines prefixed with tick and game time.
+ * --from seeks straight to the tick through the index.
+ *
+ * --resim re-runs the match headlessly in a fresh Game with the recorded
+ * settings, feeding it the recorded joins and inputs as fast as it will tick,
+ * and checks every delivery against the recording. The journal holds inputs,
+ * not state, so a re-simulation always starts from tick 0.
+ */
+public class MatchReplay {
+    private static final long WINDOW = 256L * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel journal;
+    private final long length;
+    private final MappedByteBuffer index;
+    private final long ticks;
+
+    // From the header
+    private final double timeStep;
+    private final double aoiRadius;
+    private final double lightHorizon;
+    private final int lightBudget;
+    private final LightScheduler.EvictionPolicy evictionPolicy;
+
+    // Read cursor over a mapped window of the journal
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long pos;
+
+    // The record next() just read
+    private long tick;
+    private double time;
+    private int droppedBefore;
+    private int player;  // or viewer
+    private byte type;
+    private int id;
+    private double a, b; // x/y, dx/dy or tx/ty
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: MatchReplay FILE [--viewer=ID] [--from=TICK] [--to=TICK] [--resim]");
+            return;
+        }
+        int viewer = -1;
+        long from = 0, to = Long.MAX_VALUE;
+        boolean resim = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--viewer=")) {
+                viewer = Integer.parseInt(arg.substring("--viewer=".length()));
+            } else if (arg.startsWith("--from=")) {
+                from = Long.parseLong(arg.substring("--from=".length()));
+            } else if (arg.startsWith("--to=")) {
+                to = Long.parseLong(arg.substring("--to=".length()));
+            } else if (arg.equals("--resim")) {
+                resim = true;
+            } else {
+                System.out.println("Unknown option: " + arg);
+            }
+        }
+
+        MatchReplay replay = new MatchReplay(Paths.get(args[0]));
+        if (resim) {
+            replay.resimulate(to);
+        } else if (viewer >= 0) {
+            replay.printViewer(viewer, from, to);
+        } else {
+            replay.summary();
+        }
+    }
+
+    public MatchReplay(Path file) throws IOException {
+        this.file = file;
+        this.journal = FileChannel.open(file);
+        this.length = journal.size();
+        try (FileChannel idx = FileChannel.open(MatchRecorder.indexFor(file))) {
+            this.index = idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size());
+            this.ticks = idx.size() / 8;
+        }
+
+        seek(0);
+        ensure(MatchRecorder.HEADER_SIZE);
+        if (window.getInt() != MatchRecorder.MAGIC) throw new IOException("Not a match journal: " + file);
+        short version = window.getShort();
+        if (version < 1 || version > MatchRecorder.VERSION) throw new IOException("Journal version " + version + " not supported");
+        timeStep = window.getDouble();
+        aoiRadius = window.getDouble();
+        lightHorizon = window.getDouble();
+        lightBudget = window.getInt();
+        evictionPolicy = LightScheduler.EvictionPolicy.values()[window.get()];
+    }
+
+    /** Offset of tick n's TICK record, or of the first recorded tick after it; -1 past the end. */
+    public long offsetOf(long n) {
+        for (long t = Math.max(0, n); t < ticks; t++) {
+            long offset = index.getLong((int) (t * 8));
+            if (offset != 0) return offset; // 0 = that tick's TICK record was dropped
+        }
+        return -1;
+    }
+
+    private void summary() throws IOException {
+        long[] counts = new long[8];
+        long dropped = 0;
+        int maxPlayer = -1;
+        double lastTime = 0;
+        seek(MatchRecorder.HEADER_SIZE);
+        byte kind;
+        while ((kind = next()) != 0) {
+            counts[kind]++;
+            if (kind == MatchRecorder.TICK) {
+                dropped += droppedBefore;
+                lastTime = time;
+            } else if (kind == MatchRecorder.JOIN) {
+                maxPlayer = Math.max(maxPlayer, player);
+            }
+        }
+
+        System.out.println(file + ": " + length + " bytes");
+        System.out.println(String.format(Locale.ROOT,
+                "Settings:  time step %.3f, area of interest %s, horizon %s, budget %s",
+                timeStep, aoiRadius > 0 ? aoiRadius : "none", lightHorizon > 0 ? lightHorizon : "none",
+                lightBudget > 0 ? lightBudget + " " + evictionPolicy : "none"));
+        System.out.println(String.format(Locale.ROOT, "Ticks:     %d indexed, %d recorded, game time %.1f (%.1f s at %.0f Hz)",
+                ticks, counts[MatchRecorder.TICK], lastTime, counts[MatchRecorder.TICK] * timeStep / 60, 60 / timeStep));
+        System.out.println("Players:   " + counts[MatchRecorder.JOIN] + " joined (ids up to " + maxPlayer + "), "
+                + counts[MatchRecorder.LEAVE] + " left");
+        System.out.println("Inputs:    " + counts[MatchRecorder.MOVE] + " MOVE, " + counts[MatchRecorder.SHOOT] + " SHOOT");
+        System.out.println("Delivered: " + counts[MatchRecorder.LIGHT] + " LIGHT, " + counts[MatchRecorder.YOU_DEAD] + " YOU_DEAD");
+        if (dropped > 0) {
+            System.out.println("WARNING: " + dropped + " records were dropped while recording; --resim won't match");
+        }
+    }
+
+    private void printViewer(int viewer, long from, long to) throws IOException {
+        long offset = offsetOf(from);
+        if (offset < 0) {
+            System.out.println("No ticks from " + from + " on (" + ticks + " recorded)");
+            return;
+        }
+        seek(offset);
+        long current = -1;
+        double now = 0;
+        byte kind;
+        while ((kind = next()) != 0) {
+            if (kind == MatchRecorder.TICK) {
+                if (tick > to) break;
+                current = tick;
+                now = time;
+                if (droppedBefore > 0) System.out.println(current + " " + now + " (" + droppedBefore + " records dropped)");
+            } else if (player != viewer) {
+                continue;
+            } else if (kind == MatchRecorder.LIGHT) {
+                System.out.println(current + " " + now + " LIGHT " + LightType.fromCode(type).name()
+                        + " " + id + " " + a + " " + b);
+            } else if (kind == MatchRecorder.YOU_DEAD) {
+                System.out.println(current + " " + now + " YOU_DEAD");
+            } else if (kind == MatchRecorder.MOVE) {
+                System.out.println(current + " " + now + " > MOVE " + a + " " + b);
+            } else if (kind == MatchRecorder.SHOOT) {
+                System.out.println(current + " " + now + " > SHOOT " + a + " " + b);
+            } else if (kind == MatchRecorder.JOIN) {
+                System.out.println(current + " " + now + " > JOIN " + a + " " + b);
+            } else if (kind == MatchRecorder.LEAVE) {
+                System.out.println(current + " " + now + " > LEAVE");
+            }
+        }
+    }
+
+    // --- Re-simulation ---
+
+    private Game game;
+    private int maxPlayer = -1;
+    private MessageQueue spare = new MessageQueue();
+    private final MessageQueue expected = new MessageQueue();
+    private int[] expectedViewers = new int[1024];
+    private long simulated = 0, mismatchedTicks = 0, firstMismatch = -1;
+
+    private void resimulate(long to) throws IOException {
+        game = new Game();
+        game.setTimeStep(timeStep);
+        game.setAreaOfInterest(aoiRadius);
+        game.setLightHorizon(lightHorizon);
+        game.setLightBudget(lightBudget, evictionPolicy);
+
+        long start = System.nanoTime();
+        long current = -1;
+        seek(MatchRecorder.HEADER_SIZE);
+        byte kind;
+        while ((kind = next()) != 0) {
+            if (kind == MatchRecorder.TICK) {
+                if (current >= 0) runTick(current);
+                if (tick > to) {
+                    current = -1;
+                    break;
+                }
+                if (droppedBefore > 0) System.out.println("WARNING: " + droppedBefore + " records dropped before tick " + tick);
+                current = tick;
+            } else if (kind == MatchRecorder.JOIN) {
+                game.addPlayer(new Player(player, a, b));
+                maxPlayer = Math.max(maxPlayer, player);
+            } else if (kind == MatchRecorder.MOVE) {
+                game.movePlayer(player, a, b);
+            } else if (kind == MatchRecorder.SHOOT) {
+                game.playerShoot(player, a, b);
+            } else if (kind == MatchRecorder.LEAVE) {
+                game.removePlayer(player);
+            } else {
+                expect(kind);
+            }
+        }
+        if (current >= 0) runTick(current);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        double realTime = simulated * timeStep / 60;
+        System.out.println(String.format(Locale.ROOT,
+                "Re-simulated %d ticks (%.1f s of play) in %.2f s: %.0f ticks/s, %.0fx real time",
+                simulated, realTime, seconds, simulated / seconds, realTime / seconds));
+        if (mismatchedTicks == 0) {
+            System.out.println("Every delivery matched the recording");
+        } else {
+            System.out.println("MISMATCH: " + mismatchedTicks + " tick(s) differ from the recording, first at tick " + firstMismatch);
+            System.exit(1);
+        }
+    }
+
+    private void expect(byte kind) {
+        int n = expected.size();
+        if (n == expectedViewers.length) {
+            expectedViewers = Arrays.copyOf(expectedViewers, n * 2);
+        }
+        expectedViewers[n] = player;
+        if (kind == MatchRecorder.LIGHT) {
+            expected.addLight(type, id, a, b);
+        } else {
+            expected.addYouDead();
+        }
+    }
+
+    // Tick the game and compare what it queued, in viewer order, with what was recorded
+    private void runTick(long n) {
+        game.tick();
+        simulated++;
+
+        int k = 0;
+        boolean same = true;
+        for (int viewer = 0; viewer <= maxPlayer; viewer++) {
+            MessageQueue got = game.swapPendingMessages(viewer, spare);
+            for (int i = 0; i < got.size(); i++, k++) {
+                if (same && !matches(got, i, viewer, k)) {
+                    same = false;
+                    if (mismatchedTicks < 5) {
+                        System.out.println("Tick " + n + ": viewer " + viewer + " got " + describe(got, i)
+                                + ", recording has " + (k < expected.size()
+                                        ? "viewer " + expectedViewers[k] + " " + describe(expected, k) : "nothing"));
+                    }
+                }
+            }
+            got.clear();
+            spare = got;
+        }
+        if (k != expected.size() && same) {
+            same = false;
+            if (mismatchedTicks < 5) {
+                System.out.println("Tick " + n + ": " + k + " deliveries, recording has " + expected.size());
+            }
+        }
+        if (!same) {
+            mismatchedTicks++;
+            if (firstMismatch < 0) firstMismatch = n;
+        }
+        expected.clear();
+    }
+
+    private boolean matches(MessageQueue got, int i, int viewer, int k) {
+        if (k >= expected.size() || expectedViewers[k] != viewer || got.kind(i) != expected.kind(k)) return false;
+        if (got.kind(i) == MessageQueue.YOU_DEAD) return true;
+        return got.typeCode(i) == expected.typeCode(k) && got.id(i) == expected.id(k)
+                && got.x(i) == expected.x(k) && got.y(i) == expected.y(k);
+    }
+
+    private static String describe(MessageQueue msgs, int i) {
+        if (msgs.kind(i) == MessageQueue.YOU_DEAD) return "YOU_DEAD";
+        return "LIGHT " + LightType.fromCode(msgs.typeCode(i)).name() + " " + msgs.id(i) + " " + msgs.x(i) + " " + msgs.y(i);
+    }
+
+    // --- Reading records ---
+
+    private void seek(long offset) throws IOException {
+        pos = offset;
+        windowStart = offset;
+        window = journal.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, length - offset));
+    }
+
+    // At least n bytes readable from pos, or false at the end of the journal
+    private boolean ensure(int n) throws IOException {
+        if (pos + n > length) return false;
+        if (pos + n > windowStart + window.limit()) seek(pos);
+        window.position((int) (pos - windowStart));
+        return true;
+    }
+
+    /** Read the record at pos into the fields; its kind, or 0 at the end. */
+    private byte next() throws IOException {
+        if (!ensure(1)) return 0;
+        byte kind = window.get(window.position());
+        if (kind == 0) return 0; // the unwritten rest of a segment: the server didn't shut down cleanly
+        int size = MatchRecorder.recordSize(kind);
+        if (size == 0) throw new IOException("Corrupt journal at " + pos + ": kind " + kind);
+        if (!ensure(size)) return 0; // cut short, e.g. the server was killed
+        window.get(); // kind
+        if (kind == MatchRecorder.TICK) {
+            tick = window.getLong();
+            time = window.getDouble();
+            droppedBefore = window.getInt();
+        } else {
+            player = window.getInt();
+            if (kind == MatchRecorder.LIGHT) {
+                type = window.get();
+                id = window.getInt();
+            }
+            if (kind != MatchRecorder.YOU_DEAD && kind != MatchRecorder.LEAVE) {
+                a = window.getDouble();
+                b = window.getDouble();
+            }
+        }
+        pos += size;
+        return kind;
+    }
+}
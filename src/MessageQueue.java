@@ -0,0 +1,68 @@
+import java.util.Arrays;
+
+/**
+ * A player's outgoing messages, kept as primitive records so queueing a
+ * delivery doesn't build a String. The connection decides how to encode them.
+ */
+public class MessageQueue {
+    public static final byte LIGHT = 0;
+    public static final byte YOU_DEAD = 1;
+
+    private byte[] kinds = new byte[64];
+    private byte[] types = new byte[64];
+    private int[] ids = new int[64];
+    private double[] xs = new double[64];
+    private double[] ys = new double[64];
+    private int size = 0;
+
+    public int size()           { return size; }
+    public boolean isEmpty()    { return size == 0; }
+    public byte kind(int i)     { return kinds[i]; }
+    public byte typeCode(int i) { return types[i]; }
+    public int id(int i)        { return ids[i]; }
+    public double x(int i)      { return xs[i]; }
+    public double y(int i)      { return ys[i]; }
+
+    public void addLight(byte typeCode, int id, double x, double y) {
+        int i = next();
+        kinds[i] = LIGHT;
+        types[i] = typeCode;
+        ids[i] = id;
+        xs[i] = x;
+        ys[i] = y;
+    }
+
+    public void addYouDead() {
+        int i = next();
+        kinds[i] = YOU_DEAD;
+    }
+
+    /** Append everything in this queue to target and empty this one. */
+    public void drainTo(MessageQueue target) {
+        for (int i = 0; i < size; i++) {
+            int j = target.next();
+            target.kinds[j] = kinds[i];
+            target.types[j] = types[i];
+            target.ids[j] = ids[i];
+            target.xs[j] = xs[i];
+            target.ys[j] = ys[i];
+        }
+        size = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private int next() {
+        if (size == kinds.length) {
+            int n = size * 2;
+            kinds = Arrays.copyOf(kinds, n);
+            types = Arrays.copyOf(types, n);
+            ids = Arrays.copyOf(ids, n);
+            xs = Arrays.copyOf(xs, n);
+            ys = Arrays.copyOf(ys, n);
+        }
+        return size++;
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide traffic counters, bumped from every transport thread. LongAdder
+ * keeps the I/O threads from fighting over one cache line.
+ */
+public class NetStats {
+    public final LongAdder messagesIn = new LongAdder();
+    public final LongAdder messagesOut = new LongAdder();
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder parseFailures = new LongAdder();
+
+    /**
+     * Count a command that didn't parse; true if it should be logged. The
+     * first one and then every thousandth, so a misbehaving client can't
+     * flood the log.
+     */
+    public boolean parseFailed() {
+        parseFailures.increment();
+        long n = parseFailures.sum();
+        return n == 1 || n % 1000 == 0;
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client on the NIO transport.
+ *
+ * Everything socket-facing happens on the owning I/O thread. Reads: bytes
+ * accumulate in readBuf until a whole line (or, after "PROTO BIN", a whole
+ * frame) is there. Writes: the tick thread only drops messages into the
+ * OutboundBuffer and asks for OP_WRITE; the I/O thread encodes them into
+ * writeBuf as space allows and writes as much as the socket will take.
+ */
+public class NioConnection implements ClientConnection {
+    private static final int READ_BUFFER = 4096;
+    private static final int WRITE_BUFFER = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final NioServer.IoLoop loop;
+    // Replaced whole if the client resumes an old player (see ClientProtocol.RESUME)
+    private volatile ClientBinding binding;
+    private ClientBinding flushed; // the one sendUpdates() last ran for; guarded by this
+    private final ServerMain server;
+    private final NetStats net;
+    private SelectionKey key;
+
+    // I/O thread only
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER);
+    private final ByteBuffer inFrame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+    private final StringBuilder inLine = new StringBuilder(64);
+    private boolean binaryIn = false;
+    private PositionDeltas deltas; // set if the client asked for PROTO DELTA
+
+    // I/O thread only; writeBuf is always in fill mode (position = end of unsent bytes)
+    private final ByteBuffer writeBuf = ByteBuffer.allocate(WRITE_BUFFER);
+    private final MessageQueue outgoing = new MessageQueue();
+    private final StringBuilder line = new StringBuilder(ClientProtocol.MAX_TEXT_LINE);
+    private boolean binaryAcked = false;
+
+    // Filled by the tick thread, drained by the I/O thread
+    private final OutboundBuffer outbound;
+    private MessageQueue fromGame = new MessageQueue(); // tick thread only; swapped with the game's
+
+    // Whether OP_WRITE is on; guarded by writeLock
+    private final Object writeLock = new Object();
+    private boolean writeInterest = true;
+
+    // Cleared once, by whichever of the tick and I/O threads closes us first
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    public NioConnection(SocketChannel channel, NioServer.IoLoop loop, Player player, Arena arena, ServerMain server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.outbound = server.newOutboundBuffer();
+        this.net = server.getNetStats();
+        // The UDP link, if any, takes over sending once the client binds it
+        ClientBinding b = new ClientBinding(arena, player, server.newUdpLink(player, arena.getGame()), false);
+        this.binding = b;
+
+        // Goes out as soon as the I/O thread registers us (with OP_WRITE on)
+        ClientProtocol.writeLine(writeBuf, "ID " + player.getId());
+        ClientProtocol.writeLine(writeBuf, arena.sessionLine(player));
+        if (b.udp != null) ClientProtocol.writeLine(writeBuf, b.udp.offer());
+    }
+
+    @Override
+    public Player getPlayer() {
+        return binding.player;
+    }
+
+    @Override
+    public OutboundBuffer getOutbound() {
+        return outbound;
+    }
+
+    /** Called on the I/O thread once the loop picks the connection up. */
+    void attach(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+            System.out.println("DEBUG: Sent ID " + binding.player.getId() + " to client.");
+        } catch (ClosedChannelException e) {
+            close();
+        }
+    }
+
+    void onReadable() throws IOException {
+        int n = channel.read(readBuf);
+        if (n == -1) {
+            throw new IOException("closed by peer");
+        }
+
+        readBuf.flip();
+        while (open.get()) {
+            if (binaryIn) {
+                if (!nextFrame()) break;
+                ClientBinding b = binding;
+                ClientProtocol.applyFrame(b.game, b.player, inFrame, net);
+            } else {
+                String line = nextLine();
+                if (line == null) break;
+                if (BinaryProtocol.HELLO.equals(line)) {
+                    binaryIn = true;
+                    System.out.println("DEBUG: Client " + binding.player.getId() + " switched to binary protocol.");
+                } else if (BinaryProtocol.DELTA_HELLO.equals(line)) {
+                    binaryIn = true;
+                    deltas = new PositionDeltas();
+                    System.out.println("DEBUG: Client " + binding.player.getId() + " switched to delta-coded binary protocol.");
+                } else if (line.startsWith(ClientProtocol.RESUME + " ")) {
+                    resume(line);
+                } else {
+                    ClientBinding b = binding;
+                    ClientProtocol.applyCommand(b.game, b.player, line, net);
+                }
+            }
+        }
+        readBuf.compact();
+
+        if (!readBuf.hasRemaining()) {
+            throw new IOException("line too long");
+        }
+    }
+
+    // Swap the player we were given for the one the client had before, possibly in another arena
+    private void resume(String line) {
+        ClientBinding was = binding;
+        long[] r = ClientProtocol.parseResume(line);
+        Arena target = r != null ? server.getArena((int) r[0]) : null;
+        Player old = target != null && !was.resumed && writeBuf.remaining() >= 3 * ClientProtocol.MAX_TEXT_LINE
+                ? target.claim((int) r[1], r[2]) : null;
+        if (old == null) {
+            System.out.println("DEBUG: Client " + was.player.getId() + " failed to resume: " + line);
+            if (writeBuf.remaining() >= ClientProtocol.MAX_TEXT_LINE) {
+                ClientProtocol.writeLine(writeBuf, ClientProtocol.RESUME_FAILED);
+            }
+            wantWrite();
+            return;
+        }
+
+        // One write moves us; the old arena's worker may still have us listed, sendUpdates() skips it
+        ClientBinding now = new ClientBinding(target, old, server.newUdpLink(old, target.getGame()), true);
+        binding = now;
+        was.arena.removeClient(this);
+        was.arena.release(was.player);
+        if (was.udp != null) server.removeUdpLink(was.udp);
+        System.out.println("DEBUG: Client " + was.player.getId() + " in arena " + was.arena.getId()
+                + " resumed as player " + old.getId() + " in arena " + target.getId());
+        target.addClient(this);
+        if (!open.get()) {
+            // Closed meanwhile, maybe before it could see the new binding
+            target.removeClient(this);
+            if (now.udp != null) server.removeUdpLink(now.udp);
+            return;
+        }
+
+        ClientProtocol.writeLine(writeBuf, "ID " + old.getId());
+        ClientProtocol.writeLine(writeBuf, target.sessionLine(old));
+        if (now.udp != null) ClientProtocol.writeLine(writeBuf, now.udp.offer());
+        wantWrite();
+    }
+
+    // Next complete line out of readBuf, or null (leaving the partial line in place)
+    private String nextLine() {
+        int start = readBuf.position();
+        for (int i = start; i < readBuf.limit(); i++) {
+            if (readBuf.get(i) == '\n') {
+                inLine.setLength(0);
+                for (int j = start; j < i; j++) {
+                    byte b = readBuf.get(j);
+                    if (b != '\r') inLine.append((char) b);
+                }
+                readBuf.position(i + 1);
+                return inLine.toString();
+            }
+        }
+        return null;
+    }
+
+    // Copy the next complete frame body into inFrame; false if it hasn't all arrived
+    private boolean nextFrame() throws IOException {
+        if (readBuf.remaining() < 2) return false;
+        int len = readBuf.getShort(readBuf.position()) & 0xFFFF;
+        if (len == 0 || len > BinaryProtocol.MAX_FRAME) {
+            throw new IOException("Bad frame length " + len);
+        }
+        if (readBuf.remaining() < 2 + len) return false;
+
+        readBuf.position(readBuf.position() + 2);
+        inFrame.clear();
+        readBuf.get(inFrame.array(), 0, len);
+        inFrame.limit(len);
+        return true;
+    }
+
+    void onWritable() throws IOException {
+        while (true) {
+            if (writeBuf.position() == 0) fill();
+            if (writeBuf.position() == 0) break;
+
+            writeBuf.flip();
+            net.bytesOut.add(channel.write(writeBuf));
+            boolean socketFull = writeBuf.hasRemaining();
+            writeBuf.compact();
+            if (socketFull) return; // OP_WRITE stays on, we'll be back
+        }
+
+        synchronized (writeLock) {
+            // The tick thread may have queued more since fill() looked
+            if (outbound.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+                writeInterest = false;
+            }
+        }
+    }
+
+    // Encode as many queued messages as writeBuf has room for
+    private void fill() {
+        if (binaryIn && !binaryAcked && !outbound.isEmpty()) {
+            ClientProtocol.writeLine(writeBuf, deltas != null ? BinaryProtocol.DELTA_HELLO : BinaryProtocol.HELLO);
+            binaryAcked = true;
+        }
+        outbound.drainTo(outgoing, writeBuf.remaining() / ClientProtocol.MAX_TEXT_LINE);
+        net.messagesOut.add(outgoing.size());
+        for (int i = 0; i < outgoing.size(); i++) {
+            if (binaryAcked) {
+                ClientProtocol.writeFrame(writeBuf, outgoing, i, deltas);
+            } else {
+                ClientProtocol.writeLine(writeBuf, ClientProtocol.formatText(outgoing, i, line));
+            }
+        }
+        outgoing.clear();
+    }
+
+    // Synchronized because right after a resume the old arena's worker and the
+    // new one can both be in here; only the one whose game we're bound to gets past the check
+    @Override
+    public synchronized void sendUpdates(Game caller) {
+        ClientBinding b = binding;
+        if (!open.get() || b.game != caller) return;
+
+        fromGame = b.game.swapPendingMessages(b.player.getId(), fromGame);
+        if (b != flushed) {
+            flushed = b;
+            if (b.resumed) {
+                // What piled up while nobody was connected as this player; the client
+                // starts over from the ID and SESSION lines it got with the resume
+                fromGame.clear();
+                return;
+            }
+        }
+        if (b.udp != null && b.udp.isBound()) {
+            sendUdp(b);
+            return;
+        }
+        boolean ok = outbound.offer(fromGame);
+        fromGame.clear();
+        if (!ok) {
+            System.out.println("DEBUG: Outbound buffer overflowed, dropping client " + b.player.getId());
+            close();
+            return;
+        }
+        if (outbound.isEmpty()) return;
+        wantWrite();
+    }
+
+    // Any thread: turn OP_WRITE on if it's off
+    private void wantWrite() {
+        synchronized (writeLock) {
+            if (!writeInterest && key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                writeInterest = true;
+                loop.wakeup();
+            }
+        }
+    }
+
+    private void sendUdp(ClientBinding b) {
+        try {
+            if (!b.udp.send(fromGame)) {
+                System.out.println("DEBUG: Client " + b.player.getId() + " stopped acking over UDP, dropping it");
+                close();
+            }
+        } catch (IOException e) {
+            System.out.println("DEBUG: UDP send failed, dropping client " + b.player.getId() + ": " + e);
+            close();
+        } finally {
+            fromGame.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!open.compareAndSet(true, false)) return;
+        outbound.close();
+        ClientBinding b = binding;
+        b.arena.removeClient(this);
+        if (b.udp != null) server.removeUdpLink(b.udp);
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
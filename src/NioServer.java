@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking transport. The calling thread accepts; connections are spread
+ * round-robin over a small fixed set of I/O threads, each running its own
+ * Selector. See NioConnection for the per-connection buffering.
+ */
+public class NioServer {
+    private final ServerMain server;
+    private final int port;
+    private final IoLoop[] loops;
+
+    public NioServer(ServerMain server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+    }
+
+    /** Blocks accepting connections until the server stops. */
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server listening on port " + port + " (nio, " + loops.length + " I/O threads)");
+
+            int next = 0;
+            while (server.isRunning()) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("New client: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                Arena arena = server.placeClient();
+                Player newPlayer = arena.createPlayer();
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                NioConnection conn = new NioConnection(channel, loop, newPlayer, arena, server);
+                arena.addClient(conn);
+                loop.register(conn);
+            }
+        } finally {
+            for (IoLoop loop : loops) {
+                if (loop != null) loop.selector.close();
+            }
+        }
+    }
+
+    /** One I/O thread. Other threads hand it work through register() and wakeup(). */
+    static class IoLoop implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<NioConnection> newConnections = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(NioConnection conn) {
+            newConnections.add(conn);
+            selector.wakeup();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+
+                    NioConnection conn;
+                    while ((conn = newConnections.poll()) != null) {
+                        conn.attach(selector);
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection c = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) c.onReadable();
+                            if (key.isValid() && key.isWritable()) c.onWritable();
+                        } catch (IOException e) {
+                            System.out.println("DEBUG: Client disconnected: " + e.getMessage());
+                            c.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen()) e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting to go out to one client.
+ *
+ * The tick thread offer()s each tick's messages and moves on; the client's
+ * own writer drains them at whatever pace the socket allows. When a slow
+ * client lets the buffer fill up, the OverflowPolicy decides what gives:
+ *
+ *   COALESCE     drop "P" positions that a newer "P" for the same player
+ *                (queued or arriving) has already superseded; if that
+ *                isn't enough, drop oldest
+ *   DROP_OLDEST  drop the oldest light messages
+ *   DISCONNECT   give up on the client
+ *
+ * Room is made once per offer(), for the whole batch, so a stalled client
+ * costs one sweep of its buffer per tick rather than one per message.
+ * YOU_DEAD is never dropped to make room.
+ *
+ * A ReentrantLock rather than the monitor: blocking writers are virtual
+ * threads, and on JDK 21 one waiting in Object.wait() pins its carrier.
+ */
+public class OutboundBuffer {
+
+    public enum OverflowPolicy { COALESCE, DROP_OLDEST, DISCONNECT }
+
+    private static final byte P = LightType.P.code();
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Ring of records, guarded by lock
+    private final byte[] kinds;
+    private final byte[] types;
+    private final int[] ids;
+    private final double[] xs;
+    private final double[] ys;
+    private int head = 0;
+    private int size = 0;
+    private boolean closed = false;
+
+    // Scratch for coalesce(): which P ids we've already seen, by stamp
+    private final boolean[] drop;
+    private final int[] seenIds;
+    private final int[] seenStamp;
+    private int stamp = 0;
+
+    // Stats, written under the lock, readable from anywhere
+    private volatile long dropped = 0;
+    private volatile long coalesced = 0;
+    private volatile int maxDepth = 0;
+
+    public OutboundBuffer(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        kinds = new byte[capacity];
+        types = new byte[capacity];
+        ids = new int[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+
+        drop = new boolean[capacity];
+        int table = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        seenIds = new int[table];
+        seenStamp = new int[table];
+    }
+
+    public int capacity()            { return capacity; }
+    public OverflowPolicy policy()   { return policy; }
+    public int maxDepth()            { return maxDepth; }
+    public long dropped()            { return dropped; }
+    public long coalesced()          { return coalesced; }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tick thread. Queue everything in msgs. Returns false if the client
+     * overflowed under DISCONNECT and should be dropped.
+     */
+    public boolean offer(MessageQueue msgs) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            int n = msgs.size();
+            if (size + n > capacity && !makeRoom(msgs, size + n - capacity)) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                // Only if the batch alone is bigger than the buffer, or it's all YOU_DEAD
+                if (size == capacity && dropOldest(1) == 0) {
+                    return false;
+                }
+                int slot = (head + size) % capacity;
+                kinds[slot] = msgs.kind(i);
+                types[slot] = msgs.typeCode(i);
+                ids[slot] = msgs.id(i);
+                xs[slot] = msgs.x(i);
+                ys[slot] = msgs.y(i);
+                size++;
+            }
+            if (size > maxDepth) maxDepth = size;
+            if (size > 0) notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writer. Move up to max messages into into; returns how many. */
+    public int drainTo(MessageQueue into, int max) {
+        lock.lock();
+        try {
+            int n = Math.min(max, size);
+            for (int k = 0; k < n; k++) {
+                int slot = head;
+                if (kinds[slot] == MessageQueue.YOU_DEAD) {
+                    into.addYouDead();
+                } else {
+                    into.addLight(types[slot], ids[slot], xs[slot], ys[slot]);
+                }
+                head = (head + 1) % capacity;
+            }
+            size -= n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocking writers wait here for something to send. False once closed. */
+    public boolean awaitData() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed) {
+                notEmpty.await();
+            }
+            return size > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Free at least needed entries for the incoming batch, if the policy allows
+    private boolean makeRoom(MessageQueue incoming, int needed) {
+        if (policy == OverflowPolicy.DISCONNECT) {
+            return false;
+        }
+        if (policy == OverflowPolicy.COALESCE) {
+            needed -= coalesce(incoming);
+            if (needed <= 0) return true;
+        }
+        dropOldest(needed);
+        return true;
+    }
+
+    // Remove the count oldest light messages in one pass, keeping any YOU_DEAD among them
+    // (moved up to just ahead of what's left); returns how many went
+    private int dropOldest(int count) {
+        int lights = 0;
+        int end = 0;
+        while (end < size && lights < count) {
+            if (kinds[(head + end) % capacity] != MessageQueue.YOU_DEAD) lights++;
+            end++;
+        }
+        int keep = end;
+        for (int k = end - 1; k >= 0 && keep > lights; k--) {
+            int slot = (head + k) % capacity;
+            if (kinds[slot] == MessageQueue.YOU_DEAD) {
+                keep--;
+                if (keep != k) copy(slot, (head + keep) % capacity);
+            }
+        }
+        head = (head + lights) % capacity;
+        size -= lights;
+        dropped += lights;
+        return lights;
+    }
+
+    // Drop every queued P that a newer P for the same id supersedes, queued or in
+    // incoming; returns how many went
+    private int coalesce(MessageQueue incoming) {
+        if (++stamp == 0) {
+            Arrays.fill(seenStamp, 0);
+            stamp = 1;
+        }
+        // At most capacity of them, so with the queue's the table never fills
+        for (int i = 0; i < Math.min(incoming.size(), capacity); i++) {
+            if (incoming.kind(i) == MessageQueue.LIGHT && incoming.typeCode(i) == P) markSeen(incoming.id(i));
+        }
+        int removed = 0;
+        for (int k = size - 1; k >= 0; k--) {
+            int slot = (head + k) % capacity;
+            boolean stale = kinds[slot] == MessageQueue.LIGHT && types[slot] == P && !markSeen(ids[slot]);
+            drop[k] = stale;
+            if (stale) removed++;
+        }
+        if (removed == 0) return 0;
+
+        int kept = 0;
+        for (int k = 0; k < size; k++) {
+            if (drop[k]) continue;
+            if (kept != k) {
+                copy((head + k) % capacity, (head + kept) % capacity);
+            }
+            kept++;
+        }
+        size = kept;
+        coalesced += removed;
+        return removed;
+    }
+
+    // True the first time id is seen in this sweep
+    private boolean markSeen(int id) {
+        int mask = seenIds.length - 1;
+        int i = (id * 0x9E3779B1) >>> 16 & mask;
+        while (seenStamp[i] == stamp) {
+            if (seenIds[i] == id) return false;
+            i = (i + 1) & mask;
+        }
+        seenStamp[i] = stamp;
+        seenIds[i] = id;
+        return true;
+    }
+
+    private void copy(int from, int to) {
+        kinds[to] = kinds[from];
+        types[to] = types[from];
+        ids[to] = ids[from];
+        xs[to] = xs[from];
+        ys[to] = ys[from];
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a localhost link behave like a bad one, for trying out the UDP
+ * transport: drops a fraction of outgoing datagrams and holds the rest back
+ * for a delay (plus up to jitter more, so they can arrive out of order).
+ * With everything at 0 it just sends.
+ */
+public class PacketImpairment {
+    public static final PacketImpairment NONE = new PacketImpairment(0, 0, 0, 0);
+
+    private final double loss;
+    private final long delayNanos;
+    private final long jitterNanos;
+    private final SplittableRandom random;
+    private ScheduledExecutorService delayer;
+
+    public PacketImpairment(double loss, int delayMs, int jitterMs, long seed) {
+        this.loss = loss;
+        this.delayNanos = delayMs * 1_000_000L;
+        this.jitterNanos = jitterMs * 1_000_000L;
+        this.random = new SplittableRandom(seed);
+    }
+
+    public boolean isNone() {
+        return loss == 0 && delayNanos == 0 && jitterNanos == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%.1f%% loss, %d+%d ms delay", loss * 100, delayNanos / 1_000_000, jitterNanos / 1_000_000);
+    }
+
+    /** Send the remaining bytes of packet to target, or pretend to. */
+    public void send(DatagramChannel channel, ByteBuffer packet, SocketAddress target) throws IOException {
+        if (isNone()) {
+            channel.send(packet, target);
+            return;
+        }
+
+        long delay;
+        synchronized (this) {
+            if (loss > 0 && random.nextDouble() < loss) return;
+            delay = delayNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos) : 0);
+            if (delay > 0 && delayer == null) {
+                delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "packet-delay");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        if (delay == 0) {
+            channel.send(packet, target);
+            return;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet).flip();
+        delayer.schedule(() -> {
+            try {
+                channel.send(copy, target);
+            } catch (IOException e) {
+                // Gone by the time it was due; a real network would lose it too
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+}
@@ -25,8 +25,8 @@ public class Player {
     }
 
     public void move(double dx, double dy) {
-        x += vx;
-        y += vy;
+        x += dx;
+        y += dy;
     }
 
     public void decrementShots() {
@@ -36,4 +36,12 @@ public class Player {
     public void kill() {
         alive = false;
     }
+
+    /** The rest of a player's state, as read back from a checkpoint. */
+    public void restore(double vx, double vy, int shotsRemaining, boolean alive) {
+        this.vx = vx;
+        this.vy = vy;
+        this.shotsRemaining = shotsRemaining;
+        this.alive = alive;
+    }
 }
@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-connection state for the "PROTO DELTA" encoding: the last quantized
+ * position each (type, id) was sent at. The server's copy picks between a
+ * keyframe and a delta for every LIGHT it writes; the client's copy turns
+ * them back into absolute positions.
+ *
+ * Every entry is re-keyed after KEYFRAME_EVERY deltas, so a client that lost
+ * or never had an entry picks it up again soon enough. Bullet ids never come
+ * back, so rather than track which entries are dead the server forgets the
+ * lot once it has MAX_ENTRIES and tells the client to do the same.
+ *
+ * Not thread-safe; one per connection, used by whichever thread encodes (or
+ * decodes) for it.
+ */
+public class PositionDeltas {
+    public static final int KEYFRAME_EVERY = 64;
+    private static final int MAX_ENTRIES = 4096;
+
+    // Open addressing on (type << 32 | id); type codes start at 1, so 0 is empty
+    private long[] keys = new long[64];
+    private int[] qx = new int[64];
+    private int[] qy = new int[64];
+    private int[] deltas = new int[64]; // sent since the last keyframe
+    private int size = 0;
+
+    // What the last readLight() decoded
+    private byte type;
+    private int id;
+    private double x, y;
+
+    public byte type() { return type; }
+    public int id()    { return id; }
+    public double x()  { return x; }
+    public double y()  { return y; }
+
+    /** Server side: append the frame for one LIGHT (plus a DELTA_RESET ahead of it, now and then). */
+    public void writeLight(ByteBuffer buf, byte typeCode, int eventId, double ex, double ey) {
+        int nx = BinaryProtocol.quantize(ex);
+        int ny = BinaryProtocol.quantize(ey);
+        long key = key(typeCode, eventId);
+        int i = find(key);
+
+        if (keys[i] == key && deltas[i] < KEYFRAME_EVERY) {
+            BinaryProtocol.writeLightCoded(buf, BinaryProtocol.OP_LIGHT_DELTA, typeCode, eventId, nx - qx[i], ny - qy[i]);
+            deltas[i]++;
+        } else {
+            if (keys[i] != key) {
+                if (size >= MAX_ENTRIES) {
+                    reset();
+                    BinaryProtocol.writeDeltaReset(buf);
+                }
+                i = insert(key);
+            }
+            BinaryProtocol.writeLightCoded(buf, BinaryProtocol.OP_LIGHT_KEY, typeCode, eventId, nx, ny);
+            deltas[i] = 0;
+        }
+        qx[i] = nx;
+        qy[i] = ny;
+    }
+
+    /**
+     * Client side: decode a LIGHT_KEY or LIGHT_DELTA body (opcode already
+     * read) into type(), id(), x() and y(). False for a delta against an
+     * entry we don't have; the next keyframe for it will fix that.
+     */
+    public boolean readLight(ByteBuffer frame, byte op) {
+        type = frame.get();
+        id = BinaryProtocol.getVarint(frame);
+        int a = BinaryProtocol.unzigzag(BinaryProtocol.getVarint(frame));
+        int b = BinaryProtocol.unzigzag(BinaryProtocol.getVarint(frame));
+
+        long key = key(type, id);
+        int i = find(key);
+        if (op == BinaryProtocol.OP_LIGHT_KEY) {
+            if (keys[i] != key) i = insert(key);
+            qx[i] = a;
+            qy[i] = b;
+        } else {
+            if (keys[i] != key) return false;
+            qx[i] += a;
+            qy[i] += b;
+        }
+        x = BinaryProtocol.dequantize(qx[i]);
+        y = BinaryProtocol.dequantize(qy[i]);
+        return true;
+    }
+
+    /** Forget every position (both sides do this on DELTA_RESET). */
+    public void reset() {
+        Arrays.fill(keys, 0L);
+        size = 0;
+    }
+
+    private static long key(byte typeCode, int eventId) {
+        return ((long) (typeCode & 0xFF) << 32) | (eventId & 0xFFFFFFFFL);
+    }
+
+    // Slot holding key, or the empty slot where it would go
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private int insert(long key) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int i = find(key);
+        keys[i] = key;
+        size++;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldX = qx, oldY = qy, oldDeltas = deltas;
+        int n = oldKeys.length * 2;
+        keys = new long[n];
+        qx = new int[n];
+        qy = new int[n];
+        deltas = new int[n];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) continue;
+            int i = find(oldKeys[j]);
+            keys[i] = oldKeys[j];
+            qx[i] = oldX[j];
+            qy[i] = oldY[j];
+            deltas[i] = oldDeltas[j];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The reliable half of the UDP transport (see UdpProtocol), one per end of
+ * a link: frames we still owe the other side, and which of theirs we've had.
+ *
+ * Reliable frames are tiny and few, so rather than resending them one by
+ * one every RELIABLE packet carries all of them that are still unacked,
+ * oldest first: whichever packet gets through fills in what earlier ones
+ * lost. A packet goes out when there's something new, or when the oldest
+ * frame has gone twice the smoothed round trip without an ack (timed off
+ * frames acked first time, like TCP). The receiving end applies frames
+ * strictly in seq order and acks the last one it applied.
+ *
+ * Thread-safe; the sending, receiving and resending threads may all differ.
+ */
+public class ReliableChannel {
+    private static final int WINDOW = 256;
+    private static final long MIN_RESEND_NANOS = 20_000_000L;
+    private static final long MAX_RESEND_NANOS = 1_000_000_000L;
+
+    private final byte[][] frames = new byte[WINDOW][BinaryProtocol.MAX_FRAME + 2];
+    private final int[] lengths = new int[WINDOW];
+    private final long[] sentAt = new long[WINDOW]; // 0 = not sent yet
+    private final boolean[] resent = new boolean[WINDOW];
+    private int nextSeq = 1;
+    private int oldestUnacked = 1;
+    private long smoothedRtt = 50_000_000L; // a guess until the first ack
+
+    private int nextExpected = 1;
+    private long resends = 0;
+
+    /**
+     * Queue the frame in buf[0, position) to go out. False if the window is
+     * full, which means the other end has stopped acking.
+     */
+    public synchronized boolean queue(ByteBuffer frame) {
+        if (nextSeq - oldestUnacked >= WINDOW) return false;
+        int i = nextSeq & (WINDOW - 1);
+        System.arraycopy(frame.array(), 0, frames[i], 0, frame.position());
+        lengths[i] = frame.position();
+        sentAt[i] = 0;
+        resent[i] = false;
+        nextSeq++;
+        return true;
+    }
+
+    /** They have everything up to and including ack. */
+    public synchronized void onAck(int ack) {
+        if (!UdpProtocol.newer(ack + 1, oldestUnacked) || UdpProtocol.newer(ack + 1, nextSeq)) return;
+        int i = ack & (WINDOW - 1);
+        if (sentAt[i] != 0 && !resent[i]) {
+            smoothedRtt += (System.nanoTime() - sentAt[i] - smoothedRtt) / 8;
+        }
+        oldestUnacked = ack + 1;
+    }
+
+    /**
+     * If a RELIABLE packet is due at now, write it into packet (flipped) and
+     * return true.
+     */
+    public synchronized boolean nextDue(ByteBuffer packet, long now) {
+        if (oldestUnacked == nextSeq) return false;
+        long timeout = Math.max(MIN_RESEND_NANOS, Math.min(MAX_RESEND_NANOS, 2 * smoothedRtt));
+        packet.clear();
+        UdpProtocol.startReliable(packet, oldestUnacked, nextExpected - 1);
+
+        // The frames that fit, [oldestUnacked, end); the rest go once these are acked. Frames
+        // go out in order, so something in there is new exactly when the last one is
+        int room = packet.remaining();
+        int end = oldestUnacked;
+        while (end != nextSeq && lengths[end & (WINDOW - 1)] <= room) {
+            room -= lengths[end & (WINDOW - 1)];
+            end++;
+        }
+        int oldest = oldestUnacked & (WINDOW - 1);
+        int last = (end - 1) & (WINDOW - 1);
+        if (sentAt[last] != 0 && now - sentAt[oldest] < timeout) return false;
+
+        for (int seq = oldestUnacked; seq != end; seq++) {
+            int i = seq & (WINDOW - 1);
+            if (sentAt[i] != 0) {
+                resends++;
+                resent[i] = true;
+            }
+            sentAt[i] = now;
+            packet.put(frames[i], 0, lengths[i]);
+        }
+        packet.flip();
+        return true;
+    }
+
+    /** The frame numbered seq has arrived: true if it's the next one, so apply it. */
+    public synchronized boolean accept(int seq) {
+        if (seq != nextExpected) return false;
+        nextExpected++;
+        return true;
+    }
+
+    /** What to put in an ACK. */
+    public synchronized int lastReceived() {
+        return nextExpected - 1;
+    }
+
+    public synchronized int unacked() {
+        return nextSeq - oldestUnacked;
+    }
+
+    public synchronized long smoothedRttNanos() {
+        return smoothedRtt;
+    }
+
+    /** Frames sent again, having gone out before. */
+    public synchronized long resends() {
+        return resends;
+    }
+}
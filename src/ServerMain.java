@@ -1,75 +1,428 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
 public class ServerMain {
-    private static final int PORT = 12345;
-    private Game game;
-    private CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private boolean running = true;
+    private int port = 12345;
+    private volatile boolean running = true;
 
+    // Independent matches, each ticked by one of the arena workers
+    private Arena[] arenas;
+    private int arenaCount = 1;
+    private int arenaWorkers = 0; // 0 = one per core, at most one per arena
+    private int arenaSize = 16;
+    private Arena.Placement placement = Arena.Placement.FILL_FIRST;
+
+    // Transport, picked on the command line
+    private boolean useNio = false;
+    private int ioThreads = 2;
+
+    // Optional UDP side channel for LIGHTs (see UdpProtocol), with made-up loss for testing
+    private boolean useUdp = false;
+    private int udpPort = 0; // 0 = same as --port
+    private double udpLoss = 0;
+    private int udpDelayMs = 0;
+    private int udpJitterMs = 0;
+    private UdpServer udpServer;
+
+    // Per-client outbound buffering
+    private int outboundCapacity = 4096;
+    private OutboundBuffer.OverflowPolicy overflowPolicy = OutboundBuffer.OverflowPolicy.COALESCE;
+
+    // Game loop timing
+    private static final int BASE_TICK_RATE = 60; // the rate Game's time units are based on
+    private int tickRate = BASE_TICK_RATE;
+    private int maxCatchUp = 5;
+
+    // Light visibility pass; 0 threads = always on the arena worker
+    private int visibilityThreads = 0;
+    private int parallelMinViewers = 32;
+    private String kernel = "auto"; // see DistanceKernel.use()
+
+    // Light event reach, lifetime and memory; 0 = unbounded
+    private double aoiRadius = 0;
+    private double lightHorizon = 0;
+    private int lightBudget = 0;
+    private LightScheduler.EvictionPolicy evictionPolicy = LightScheduler.EvictionPolicy.OLDEST;
+
+    // Match journals, one per arena (see MatchRecorder); null = not recording
+    private Path recordDir;
+    private static final int RECORD_BUFFER = 16 * 1024 * 1024;
+
+    // Checkpoints, one pair of files per arena (see Checkpointer); null = none.
+    // --restore starts every arena from its latest checkpoint instead of empty
+    private Path checkpointDir;
+    private int checkpointEvery = 0; // ticks; 0 = once a second
+    private boolean restore = false;
+
+    // Instrumentation; the scrape endpoint only listens on loopback, 0 = off
+    private final NetStats netStats = new NetStats();
+    private int metricsPort = -1; // -1 = --port + 1
+
+    // Load reports to a Gateway on this control port; 0 = standalone
+    private int gatewayPort = 0;
+
+    /**
+     * Usage: ServerMain [--port=N] [--nio] [--io-threads=N]
+     *                   [--outbound-capacity=N] [--overflow=coalesce|drop-oldest|disconnect]
+     *                   [--tick-rate=HZ] [--max-catch-up=N]
+     *                   [--arenas=N] [--arena-workers=N] [--arena-size=N]
+     *                   [--placement=fill-first|least-loaded]
+     *                   [--visibility-threads=N] [--parallel-min-viewers=N] [--kernel=auto|scalar|vector]
+     *                   [--aoi-radius=DIST] [--light-horizon=DIST] [--light-budget=N] [--eviction=oldest|type-priority]
+     *                   [--metrics-port=N] [--record=DIR]
+     *                   [--checkpoint=DIR] [--checkpoint-every=TICKS] [--restore]
+     *                   [--udp] [--udp-port=N] [--udp-loss=P] [--udp-delay-ms=N] [--udp-jitter-ms=N]
+     *                   [--gateway=CONTROL_PORT]
+     * Default is the blocking thread-per-client transport. --udp works with
+     * either; the --udp-loss/delay/jitter options impair what the server sends.
+     * --restore picks the matches up from the checkpoints in --checkpoint's
+     * DIR, and keeps checkpointing there; clients get their players back with
+     * RESUME (see ClientProtocol). The vector --kernel needs the JVM started
+     * with --add-modules jdk.incubator.vector; auto uses it when it's there.
+     * --gateway registers with a Gateway on this machine and reports load to
+     * it; give each server behind one its own --port (metrics go to port + 1).
+     */
     public static void main(String[] args) {
-        new ServerMain().startServer();
+        ServerMain server = new ServerMain();
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                server.port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.equals("--nio")) {
+                server.useNio = true;
+            } else if (arg.equals("--blocking")) {
+                server.useNio = false;
+            } else if (arg.startsWith("--io-threads=")) {
+                server.ioThreads = Integer.parseInt(arg.substring("--io-threads=".length()));
+            } else if (arg.startsWith("--outbound-capacity=")) {
+                server.outboundCapacity = Integer.parseInt(arg.substring("--outbound-capacity=".length()));
+            } else if (arg.startsWith("--overflow=")) {
+                String policy = arg.substring("--overflow=".length());
+                server.overflowPolicy = OutboundBuffer.OverflowPolicy.valueOf(policy.toUpperCase().replace('-', '_'));
+            } else if (arg.startsWith("--tick-rate=")) {
+                server.tickRate = Integer.parseInt(arg.substring("--tick-rate=".length()));
+            } else if (arg.startsWith("--max-catch-up=")) {
+                server.maxCatchUp = Integer.parseInt(arg.substring("--max-catch-up=".length()));
+            } else if (arg.startsWith("--arenas=")) {
+                server.arenaCount = Integer.parseInt(arg.substring("--arenas=".length()));
+            } else if (arg.startsWith("--arena-workers=")) {
+                server.arenaWorkers = Integer.parseInt(arg.substring("--arena-workers=".length()));
+            } else if (arg.startsWith("--arena-size=")) {
+                server.arenaSize = Integer.parseInt(arg.substring("--arena-size=".length()));
+            } else if (arg.startsWith("--placement=")) {
+                String policy = arg.substring("--placement=".length());
+                server.placement = Arena.Placement.valueOf(policy.toUpperCase().replace('-', '_'));
+            } else if (arg.startsWith("--visibility-threads=")) {
+                server.visibilityThreads = Integer.parseInt(arg.substring("--visibility-threads=".length()));
+            } else if (arg.startsWith("--parallel-min-viewers=")) {
+                server.parallelMinViewers = Integer.parseInt(arg.substring("--parallel-min-viewers=".length()));
+            } else if (arg.startsWith("--kernel=")) {
+                server.kernel = arg.substring("--kernel=".length());
+            } else if (arg.startsWith("--aoi-radius=")) {
+                server.aoiRadius = Double.parseDouble(arg.substring("--aoi-radius=".length()));
+            } else if (arg.startsWith("--light-horizon=")) {
+                server.lightHorizon = Double.parseDouble(arg.substring("--light-horizon=".length()));
+            } else if (arg.startsWith("--light-budget=")) {
+                server.lightBudget = Integer.parseInt(arg.substring("--light-budget=".length()));
+            } else if (arg.startsWith("--eviction=")) {
+                String policy = arg.substring("--eviction=".length());
+                server.evictionPolicy = LightScheduler.EvictionPolicy.valueOf(policy.toUpperCase().replace('-', '_'));
+            } else if (arg.equals("--udp")) {
+                server.useUdp = true;
+            } else if (arg.startsWith("--udp-port=")) {
+                server.udpPort = Integer.parseInt(arg.substring("--udp-port=".length()));
+            } else if (arg.startsWith("--udp-loss=")) {
+                server.udpLoss = Double.parseDouble(arg.substring("--udp-loss=".length()));
+            } else if (arg.startsWith("--udp-delay-ms=")) {
+                server.udpDelayMs = Integer.parseInt(arg.substring("--udp-delay-ms=".length()));
+            } else if (arg.startsWith("--udp-jitter-ms=")) {
+                server.udpJitterMs = Integer.parseInt(arg.substring("--udp-jitter-ms=".length()));
+            } else if (arg.startsWith("--record=")) {
+                server.recordDir = Paths.get(arg.substring("--record=".length()));
+            } else if (arg.startsWith("--checkpoint=")) {
+                server.checkpointDir = Paths.get(arg.substring("--checkpoint=".length()));
+            } else if (arg.startsWith("--checkpoint-every=")) {
+                server.checkpointEvery = Integer.parseInt(arg.substring("--checkpoint-every=".length()));
+            } else if (arg.equals("--restore")) {
+                server.restore = true;
+            } else if (arg.startsWith("--metrics-port=")) {
+                server.metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--gateway=")) {
+                server.gatewayPort = Integer.parseInt(arg.substring("--gateway=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+            }
+        }
+        if (server.udpPort == 0) server.udpPort = server.port;
+        if (server.metricsPort < 0) server.metricsPort = server.port + 1;
+        server.startServer();
     }
 
-    public ServerMain() {
-        game = new Game();
+    public void startServer() {
+        // One pool shared by every arena; small matches never touch it
+        ForkJoinPool visibilityPool = visibilityThreads > 0 ? new ForkJoinPool(visibilityThreads) : null;
+        if (visibilityPool != null) {
+            System.out.println("Parallel visibility on " + visibilityThreads + " thread(s) from "
+                    + parallelMinViewers + " viewers");
+        }
+        System.out.println("Distance kernel: " + DistanceKernel.use(kernel).describe());
+
+        arenas = new Arena[arenaCount];
+        for (int i = 0; i < arenaCount; i++) {
+            arenas[i] = new Arena(i, (double) BASE_TICK_RATE / tickRate, visibilityPool, parallelMinViewers);
+            arenas[i].getGame().setAreaOfInterest(aoiRadius);
+            arenas[i].getGame().setLightHorizon(lightHorizon);
+            arenas[i].getGame().setLightBudget(lightBudget, evictionPolicy);
+        }
+        if (aoiRadius > 0 || lightHorizon > 0 || lightBudget > 0) {
+            System.out.println("Light events: area of interest " + (aoiRadius > 0 ? aoiRadius : "none")
+                    + ", horizon " + (lightHorizon > 0 ? lightHorizon : "none")
+                    + ", budget " + (lightBudget > 0 ? lightBudget + " per arena, " + evictionPolicy : "none"));
+        }
+
+        long[][] restored = null;
+        if (restore) {
+            restored = restoreArenas();
+        }
+        if (checkpointDir != null) {
+            startCheckpoints(restored);
+        }
+        if (recordDir != null) {
+            if (restore) {
+                System.out.println("Can't --record a restored match: the journal would start halfway through it");
+                System.exit(1);
+            }
+            startRecording();
+        }
+
+        ServerMetrics metrics = new ServerMetrics(arenas, netStats);
+        try {
+            metrics.registerMBean();
+            if (metricsPort > 0) metrics.startHttp(metricsPort);
+        } catch (Exception e) {
+            System.out.println("DEBUG: Metrics unavailable: " + e);
+        }
+
+        int workers = arenaWorkers > 0 ? arenaWorkers : Runtime.getRuntime().availableProcessors();
+        workers = Math.min(workers, arenaCount);
+        for (int w = 0; w < workers; w++) {
+            Thread t = new Thread(new ArenaWorker(w, workers), "arena-worker-" + w);
+            t.start();
+        }
+        System.out.println("Running " + arenaCount + " arena(s) on " + workers + " worker thread(s), "
+                + placement + " placement, " + arenaSize + " players per arena");
+        if (gatewayPort > 0) {
+            new GatewayReporter(gatewayPort, port, arenas, arenaSize, workers).start();
+        }
+
+        try {
+            if (useUdp) {
+                PacketImpairment impairment = new PacketImpairment(udpLoss, udpDelayMs, udpJitterMs, System.nanoTime());
+                udpServer = new UdpServer(udpPort, impairment, netStats);
+                udpServer.start();
+            }
+            if (useNio) {
+                new NioServer(this, port, ioThreads).run();
+            } else {
+                acceptBlocking();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    public void startServer() {
-        Thread gameLoop = new Thread(this::gameLoop);
-        gameLoop.start();
+    // Every arena from its latest checkpoint; returns {tick, sequence} per arena to carry on from
+    private long[][] restoreArenas() {
+        if (checkpointDir == null) {
+            System.out.println("--restore needs --checkpoint=DIR");
+            System.exit(1);
+        }
+        long[][] from = new long[arenas.length][2];
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < arenas.length; i++) {
+            try {
+                long t = System.nanoTime();
+                Checkpointer.Loaded loaded = Checkpointer.load(checkpointDir, i);
+                if (loaded == null) {
+                    System.out.println("No checkpoint for arena " + i + ", starting it empty");
+                    continue;
+                }
+                arenas[i].readCheckpoint(loaded.body);
+                from[i][0] = loaded.tick;
+                from[i][1] = loaded.sequence;
+                found++;
+                Game game = arenas[i].getGame();
+                System.out.println(String.format(Locale.ROOT,
+                        "Restored arena %d from %s (tick %d): %d players, %d bullets, %d light events in %.2f ms",
+                        i, loaded.file.getFileName(), loaded.tick, game.getPlayers().size(), game.getBullets().size(),
+                        game.getLightEventCount(), (System.nanoTime() - t) / 1e6));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Can't restore arena " + i + " from " + checkpointDir + ": " + e);
+                System.exit(1);
+            }
+        }
+        System.out.println(String.format(Locale.ROOT, "Restored %d of %d arena(s) in %.2f ms",
+                found, arenas.length, (System.nanoTime() - start) / 1e6));
+        return from;
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server listening on port " + PORT);
+    // Checkpoint every arena into checkpointDir, carrying on from where restored says
+    private void startCheckpoints(long[][] restored) {
+        int every = checkpointEvery > 0 ? checkpointEvery : tickRate;
+        Checkpointer[] checkpointers = new Checkpointer[arenas.length];
+        try {
+            for (int i = 0; i < arenas.length; i++) {
+                long tick = restored != null ? restored[i][0] : 0;
+                long sequence = restored != null ? restored[i][1] : 0;
+                checkpointers[i] = new Checkpointer(arenas[i], checkpointDir, every, tick, sequence);
+                arenas[i].setCheckpointer(checkpointers[i]);
+            }
+        } catch (IOException e) {
+            System.out.println("Can't checkpoint to " + checkpointDir + ": " + e);
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Checkpointer c : checkpointers) {
+                try {
+                    c.close();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "checkpoint-close"));
+        System.out.println("Checkpointing arenas to " + checkpointDir + " every " + every + " ticks");
+    }
+
+    // Journal every arena to recordDir/arena-N.rfs, closing them cleanly on the way out
+    private void startRecording() {
+        MatchRecorder[] recorders = new MatchRecorder[arenas.length];
+        try {
+            Files.createDirectories(recordDir);
+            for (int i = 0; i < arenas.length; i++) {
+                recorders[i] = new MatchRecorder(recordDir.resolve("arena-" + i + ".rfs"), RECORD_BUFFER);
+                arenas[i].getGame().setRecorder(recorders[i]);
+            }
+        } catch (IOException e) {
+            System.out.println("Can't record to " + recordDir + ": " + e);
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (MatchRecorder r : recorders) {
+                try {
+                    r.close();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "journal-close"));
+        System.out.println("Recording arenas to " + recordDir + " (replay with MatchReplay)");
+    }
+
+    private void acceptBlocking() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Server listening on port " + port);
 
-            int playerCount = 0;
             while (running) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("New client: " + clientSocket);
 
-                Player newPlayer = new Player(playerCount++, 400, 300);
-                game.addPlayer(newPlayer);
+                Arena arena = placeClient();
+                Player newPlayer = arena.createPlayer();
 
-                ClientHandler handler = new ClientHandler(clientSocket, newPlayer, game, this);
-                clients.add(handler);
+                ClientHandler handler = new ClientHandler(clientSocket, newPlayer, arena, this);
+                arena.addClient(handler);
                 handler.start();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private void gameLoop() {
-        final int FPS = 60;
-        long frameMillis = 1000 / FPS;
+    /**
+     * Ticks its share of the arenas (every workers-th one, starting at index)
+     * on its own fixed-rate schedule.
+     */
+    private class ArenaWorker implements Runnable {
+        private final int index;
+        private final int workers;
+        private final TickScheduler scheduler = new TickScheduler(tickRate, maxCatchUp);
+        private long tickCount = 0;
 
-        while (running) {
-            long start = System.currentTimeMillis();
+        ArenaWorker(int index, int workers) {
+            this.index = index;
+            this.workers = workers;
+        }
 
-            game.updateTime();
-            game.updateBullets();
-            game.processLightVisibility();
-            game.updateLoc();
+        @Override
+        public void run() {
+            scheduler.run(this::tick, () -> running);
+        }
 
-            for (ClientHandler ch : clients) {
-                ch.sendUpdates();
+        private void tick() {
+            for (int i = index; i < arenas.length; i += workers) {
+                arenas[i].tick();
             }
 
-            long elapsed = System.currentTimeMillis() - start;
-            long sleepTime = frameMillis - elapsed;
-            if (sleepTime > 0) {
-                try {
-                    Thread.sleep(sleepTime);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            if (++tickCount % (tickRate * 10L) == 0) {
+                System.out.println("DEBUG: Worker " + index + " tick stats: " + scheduler.report());
+                for (int i = index; i < arenas.length; i += workers) {
+                    logOutboundStats(arenas[i]);
+                    Checkpointer c = arenas[i].getCheckpointer();
+                    if (c != null) {
+                        System.out.println("DEBUG: Arena " + i + " checkpoints: " + c.report(arenas[i].getGame().getStats()));
+                    }
                 }
             }
         }
     }
 
-    public void removeClient(ClientHandler handler) {
-        clients.remove(handler);
+    // Only mentions clients whose buffers have had to shed anything
+    private void logOutboundStats(Arena arena) {
+        for (ClientConnection ch : arena.getClients()) {
+            OutboundBuffer ob = ch.getOutbound();
+            if (ob.dropped() > 0 || ob.coalesced() > 0) {
+                System.out.println("DEBUG: Arena " + arena.getId() + " client " + ch.getPlayer().getId()
+                        + " outbound: depth " + ob.depth() + "/" + ob.capacity() + ", max " + ob.maxDepth()
+                        + ", dropped " + ob.dropped() + ", coalesced " + ob.coalesced());
+            }
+        }
+    }
+
+    public NetStats getNetStats() {
+        return netStats;
+    }
+
+    public OutboundBuffer newOutboundBuffer() {
+        return new OutboundBuffer(outboundCapacity, overflowPolicy);
+    }
+
+    /** Any thread; resumes make them too. Null when UDP is off. */
+    public UdpLink newUdpLink(Player player, Game game) {
+        return udpServer != null ? udpServer.newLink(player, game) : null;
+    }
+
+    public void removeUdpLink(UdpLink link) {
+        udpServer.remove(link);
+    }
+
+    /** The arena with that id, or null. */
+    public Arena getArena(int id) {
+        return id >= 0 && id < arenas.length ? arenas[id] : null;
+    }
+
+    /** Accept thread. Picks the arena a new connection joins. */
+    public Arena placeClient() {
+        Arena arena = placement.choose(arenas, arenaSize);
+        System.out.println("DEBUG: Placing new client in arena " + arena.getId()
+                + " (" + arena.getClientCount() + " players)");
+        return arena;
+    }
+
+    public boolean isRunning() {
+        return running;
     }
 }
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Read side of the instrumentation: pulls the arenas' TickStats and the
+ * server's NetStats together for JMX and for a plain-text scrape endpoint
+ * (Prometheus format) at http://127.0.0.1:port/metrics.
+ *
+ * All the work happens here, when somebody asks; the tick and I/O threads
+ * only bump counters.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final Arena[] arenas;
+    private final NetStats net;
+
+    public ServerMetrics(Arena[] arenas, NetStats net) {
+        this.arenas = arenas;
+        this.net = net;
+    }
+
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("RelativisticFightSimulator:type=ServerMetrics"));
+    }
+
+    /** Serve /metrics on the loopback interface only. */
+    public void startHttp(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::serve);
+        http.start();
+        System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "rfs_messages_in_total", "Commands received", getMessagesIn());
+        counter(sb, "rfs_messages_out_total", "Messages sent to clients", getMessagesOut());
+        counter(sb, "rfs_bytes_in_total", "Command bytes received", getBytesIn());
+        counter(sb, "rfs_bytes_out_total", "Bytes written to clients", getBytesOut());
+        counter(sb, "rfs_parse_failures_total", "Commands that failed to parse", getParseFailures());
+
+        sb.append("# HELP rfs_players Players in the game, dead or alive\n# TYPE rfs_players gauge\n");
+        for (Arena a : arenas) {
+            sb.append("rfs_players{arena=\"").append(a.getId()).append("\"} ")
+                    .append(a.getGame().getStats().players()).append('\n');
+        }
+        sb.append("# HELP rfs_light_events Light events still propagating\n# TYPE rfs_light_events gauge\n");
+        for (Arena a : arenas) {
+            sb.append("rfs_light_events{arena=\"").append(a.getId()).append("\"} ")
+                    .append(a.getGame().getStats().lightEvents()).append('\n');
+        }
+        sb.append("# HELP rfs_light_evictions_total Light events dropped before everyone saw them\n# TYPE rfs_light_evictions_total counter\n");
+        for (Arena a : arenas) {
+            TickStats stats = a.getGame().getStats();
+            sb.append("rfs_light_evictions_total{arena=\"").append(a.getId()).append("\",reason=\"age\"} ")
+                    .append(stats.evictedByAge()).append('\n');
+            sb.append("rfs_light_evictions_total{arena=\"").append(a.getId()).append("\",reason=\"budget\"} ")
+                    .append(stats.evictedByBudget()).append('\n');
+        }
+
+        sb.append("# HELP rfs_tick_phase_seconds Time spent in each tick phase\n# TYPE rfs_tick_phase_seconds summary\n");
+        for (TickStats.Phase phase : TickStats.Phase.values()) {
+            String label = "phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"";
+            Histogram[] hs = new Histogram[arenas.length];
+            long sum = 0;
+            for (int i = 0; i < arenas.length; i++) {
+                hs[i] = arenas[i].getGame().getStats().phase(phase);
+                sum += hs[i].sum();
+            }
+            summary(sb, "rfs_tick_phase_seconds", label, HistogramSnapshot.of(hs), sum, 1e-9);
+        }
+
+        sb.append("# HELP rfs_pending_depth Messages waiting per player when collected\n# TYPE rfs_pending_depth summary\n");
+        long sum = 0;
+        for (Arena a : arenas) sum += a.getGame().getStats().pendingDepth.sum();
+        summary(sb, "rfs_pending_depth", null, getPendingDepth(), sum, 1);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String label, HistogramSnapshot s, long sum, double scale) {
+        String prefix = label == null ? "{" : "{" + label + ",";
+        String labels = label == null ? "" : "{" + label + "}";
+        sb.append(name).append(prefix).append("quantile=\"0.5\"} ").append(s.getP50() * scale).append('\n');
+        sb.append(name).append(prefix).append("quantile=\"0.9\"} ").append(s.getP90() * scale).append('\n');
+        sb.append(name).append(prefix).append("quantile=\"0.99\"} ").append(s.getP99() * scale).append('\n');
+        sb.append(name).append(prefix).append("quantile=\"1\"} ").append(s.getMax() * scale).append('\n');
+        sb.append(name).append("_sum").append(labels).append(' ').append(sum * scale).append('\n');
+        sb.append(name).append("_count").append(labels).append(' ').append(s.getCount()).append('\n');
+    }
+
+    @Override public long getMessagesIn()     { return net.messagesIn.sum(); }
+    @Override public long getMessagesOut()    { return net.messagesOut.sum(); }
+    @Override public long getBytesIn()        { return net.bytesIn.sum(); }
+    @Override public long getBytesOut()       { return net.bytesOut.sum(); }
+    @Override public long getParseFailures()  { return net.parseFailures.sum(); }
+
+    @Override
+    public int getPlayers() {
+        int n = 0;
+        for (Arena a : arenas) n += a.getGame().getStats().players();
+        return n;
+    }
+
+    @Override
+    public int getLightEvents() {
+        int n = 0;
+        for (Arena a : arenas) n += a.getGame().getStats().lightEvents();
+        return n;
+    }
+
+    @Override
+    public long getLightEventsEvictedByAge() {
+        long n = 0;
+        for (Arena a : arenas) n += a.getGame().getStats().evictedByAge();
+        return n;
+    }
+
+    @Override
+    public long getLightEventsEvictedByBudget() {
+        long n = 0;
+        for (Arena a : arenas) n += a.getGame().getStats().evictedByBudget();
+        return n;
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getTickPhaseNanos() {
+        Map<String, HistogramSnapshot> phases = new LinkedHashMap<>();
+        for (TickStats.Phase phase : TickStats.Phase.values()) {
+            Histogram[] hs = new Histogram[arenas.length];
+            for (int i = 0; i < arenas.length; i++) {
+                hs[i] = arenas[i].getGame().getStats().phase(phase);
+            }
+            phases.put(phase.name(), HistogramSnapshot.of(hs));
+        }
+        return phases;
+    }
+
+    @Override
+    public HistogramSnapshot getPendingDepth() {
+        Histogram[] hs = new Histogram[arenas.length];
+        for (int i = 0; i < arenas.length; i++) {
+            hs[i] = arenas[i].getGame().getStats().pendingDepth;
+        }
+        return HistogramSnapshot.of(hs);
+    }
+}
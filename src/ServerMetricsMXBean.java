@@ -0,0 +1,69 @@
+import java.util.Map;
+
+/**
+ * What ServerMetrics shows over JMX, under
+ * "RelativisticFightSimulator:type=ServerMetrics". Histograms are merged over
+ * all arenas and cover the whole run.
+ */
+public interface ServerMetricsMXBean {
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    long getParseFailures();
+
+    int getPlayers();
+    int getLightEvents();
+
+    /** Light events dropped past the horizon / to stay within the budget, since start. */
+    long getLightEventsEvictedByAge();
+    long getLightEventsEvictedByBudget();
+
+    /** Per tick phase (COMMANDS, TIME, BULLETS, VISIBILITY, MOVEMENT, SEND, CHECKPOINT), in nanoseconds. */
+    Map<String, HistogramSnapshot> getTickPhaseNanos();
+
+    /** Pending messages per player each time its connection collects them. */
+    HistogramSnapshot getPendingDepth();
+
+    /** Read-side summary of one (or several merged) Histograms. */
+    class HistogramSnapshot {
+        private final long count, p50, p90, p99, max;
+        private final double mean;
+
+        @javax.management.ConstructorParameters({"count", "mean", "p50", "p90", "p99", "max"})
+        public HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        static HistogramSnapshot of(Histogram... merged) {
+            long[] buckets = new long[Histogram.BUCKETS];
+            long count = 0, sum = 0, max = 0;
+            for (Histogram h : merged) {
+                h.addTo(buckets);
+                count += h.count();
+                sum += h.sum();
+                max = Math.max(max, h.max());
+            }
+            // count can run a little ahead of the buckets we read; go by the buckets
+            long total = 0;
+            for (long b : buckets) total += b;
+            return new HistogramSnapshot(count, count == 0 ? 0 : (double) sum / count,
+                    Histogram.quantile(buckets, total, 0.50),
+                    Histogram.quantile(buckets, total, 0.90),
+                    Histogram.quantile(buckets, total, 0.99),
+                    max);
+        }
+
+        public long getCount()   { return count; }
+        public double getMean()  { return mean; }
+        public long getP50()     { return p50; }
+        public long getP90()     { return p90; }
+        public long getP99()     { return p99; }
+        public long getMax()     { return max; }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * LightStore slots in the order they were added, for finding the oldest
+ * events without scanning the store. Entries carry the event's seq, since a
+ * slot may have been freed and handed to a newer event since; stale ones are
+ * skipped at the head and filtered out whenever the ring gets too long.
+ */
+public class SlotFifo {
+    private int[] slots = new int[64];
+    private long[] seqs = new long[64];
+    private int head = 0;
+    private int size = 0;
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    public int headSlot() { return slots[head]; }
+
+    public void add(int slot, long seq) {
+        if (size == slots.length) {
+            grow();
+        }
+        int i = (head + size) & (slots.length - 1);
+        slots[i] = slot;
+        seqs[i] = seq;
+        size++;
+    }
+
+    public void pop() {
+        head = (head + 1) & (slots.length - 1);
+        size--;
+    }
+
+    /** Pop entries off the head until it's an event still live (and not evicted) in store. */
+    public void skipStale(LightStore store) {
+        while (size > 0 && !current(store, slots[head], seqs[head])) {
+            pop();
+        }
+    }
+
+    /** Keep only the entries that still refer to their event, in order. */
+    public void retainCurrent(LightStore store) {
+        int kept = 0;
+        int mask = slots.length - 1;
+        for (int k = 0; k < size; k++) {
+            int i = (head + k) & mask;
+            if (current(store, slots[i], seqs[i])) {
+                int j = (head + kept) & mask;
+                slots[j] = slots[i];
+                seqs[j] = seqs[i];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+
+    /** Rewrite slots moved by LightStore.compact(). Call retainCurrent() before compacting. */
+    public void remap(int[] forward, int movedFrom) {
+        int mask = slots.length - 1;
+        for (int k = 0; k < size; k++) {
+            int i = (head + k) & mask;
+            if (slots[i] >= movedFrom) {
+                slots[i] = forward[slots[i]];
+            }
+        }
+    }
+
+    private static boolean current(LightStore store, int slot, long seq) {
+        return store.isLive(slot) && !store.isEvicted(slot) && store.seq(slot) == seq;
+    }
+
+    // Unroll the ring into a twice-as-big array
+    private void grow() {
+        int n = slots.length;
+        int[] s = new int[n * 2];
+        long[] q = new long[n * 2];
+        for (int k = 0; k < size; k++) {
+            s[k] = slots[(head + k) & (n - 1)];
+            q[k] = seqs[(head + k) & (n - 1)];
+        }
+        slots = s;
+        seqs = q;
+        head = 0;
+    }
+}
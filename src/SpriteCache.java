@@ -0,0 +1,173 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
+
+/**
+ * ClientMain's pre-rendered sprites: one per light type, the local player
+ * alive and dead, and text labels ("P7", "Me (P3)", ...). They live in
+ * VolatileImages so drawing them is a blit the graphics card does; the
+ * catch is the card can throw them away (mode switch, screen lock), so
+ * every get re-validates and repaints whatever was lost.
+ *
+ * Render thread only.
+ */
+public class SpriteCache {
+    private static final LightType[] TYPES = LightType.values();
+
+    private final GraphicsConfiguration gc;
+    private final Font font;
+    private final FontMetrics metrics;
+
+    private final VolatileImage[] lights = new VolatileImage[TYPES.length];
+    private VolatileImage me, meDead;
+
+    // Text labels, "P<id>" by player id, and a few fixed ones by hand. Ids
+    // come off the wire, so only the first MAX_PLAYER_LABELS get an image
+    private static final int MAX_PLAYER_LABELS = 256;
+    private VolatileImage[] playerLabels = new VolatileImage[16];
+    private final String[] fixedText = new String[3];
+    private final Color[] fixedColor = new Color[3];
+    private final VolatileImage[] fixed = new VolatileImage[3];
+    public static final int ME_LABEL = 0;
+    public static final int DEAD_LABEL = 1;
+    public static final int YOU_ARE_DEAD = 2;
+    private int playerId = -1;
+
+    public SpriteCache(GraphicsConfiguration gc, Font font, FontMetrics metrics) {
+        this.gc = gc;
+        this.font = font;
+        this.metrics = metrics;
+        fixedText[ME_LABEL] = "Me (P-1)";
+        fixedColor[ME_LABEL] = Color.WHITE;
+        fixedText[DEAD_LABEL] = "(DEAD)";
+        fixedColor[DEAD_LABEL] = Color.WHITE;
+        fixedText[YOU_ARE_DEAD] = "YOU ARE DEAD";
+        fixedColor[YOU_ARE_DEAD] = Color.ORANGE;
+    }
+
+    /** Our id, for the ME_LABEL; cheap to call every frame. */
+    public void setPlayerId(int playerId) {
+        if (playerId == this.playerId) return;
+        this.playerId = playerId;
+        fixedText[ME_LABEL] = "Me (P" + playerId + ")";
+        fixed[ME_LABEL] = null;
+    }
+
+    /** Diameter of the circle drawn for a light type; sprites are centred on the event. */
+    public static int size(LightType type) {
+        switch (type) {
+            case P:         return 20;
+            case BULLET:    return 6;
+            case SHOT:      return 10;
+            case EXPLOSION: return 30;
+            default:        return 8;
+        }
+    }
+
+    private static Color color(LightType type) {
+        switch (type) {
+            case P:         return Color.BLUE;
+            case BULLET:    return Color.YELLOW;
+            case SHOT:      return Color.MAGENTA;  // muzzle flash
+            case EXPLOSION: return Color.ORANGE;
+            default:        return Color.GRAY;
+        }
+    }
+
+    public VolatileImage light(LightType type) {
+        int i = type.ordinal();
+        lights[i] = circle(lights[i], size(type), color(type));
+        return lights[i];
+    }
+
+    /** The local player, 20 px, green or red. */
+    public VolatileImage me(boolean alive) {
+        if (alive) {
+            me = circle(me, 20, Color.GREEN);
+            return me;
+        }
+        meDead = circle(meDead, 20, Color.RED);
+        return meDead;
+    }
+
+    /** "P<id>" in white, top left at x, y. Ids out of the cached range are drawn as plain text. */
+    public void drawPlayerLabel(Graphics2D g, int id, int x, int y) {
+        if (id < 0 || id >= MAX_PLAYER_LABELS) {
+            g.setFont(font);
+            g.setColor(Color.WHITE);
+            g.drawString("P" + id, x, y + metrics.getAscent());
+            return;
+        }
+        if (id >= playerLabels.length) {
+            playerLabels = Arrays.copyOf(playerLabels, Math.min(MAX_PLAYER_LABELS, Math.max(id + 1, playerLabels.length * 2)));
+        }
+        // Only (re)painting needs the string
+        if (!isReady(playerLabels[id])) {
+            playerLabels[id] = text(playerLabels[id], "P" + id, Color.WHITE);
+        }
+        g.drawImage(playerLabels[id], x, y, null);
+    }
+
+    /** One of ME_LABEL, DEAD_LABEL, YOU_ARE_DEAD. */
+    public VolatileImage label(int which) {
+        fixed[which] = text(fixed[which], fixedText[which], fixedColor[which]);
+        return fixed[which];
+    }
+
+    /** Pixels from the top of a label image down to its text baseline. */
+    public int labelAscent() {
+        return metrics.getAscent();
+    }
+
+    // --- Painting, redone only when the image is new or was lost ---
+
+    private VolatileImage circle(VolatileImage img, int size, Color color) {
+        if (isReady(img)) return img;
+        if (img == null || img.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+            img = gc.createCompatibleVolatileImage(size, size, Transparency.TRANSLUCENT);
+        }
+        Graphics2D g = begin(img);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(color);
+        g.fillOval(0, 0, size, size);
+        g.dispose();
+        return img;
+    }
+
+    private VolatileImage text(VolatileImage img, String text, Color color) {
+        if (isReady(img)) return img;
+        if (img == null || img.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+            int w = Math.max(1, metrics.stringWidth(text));
+            int h = Math.max(1, metrics.getHeight());
+            img = gc.createCompatibleVolatileImage(w, h, Transparency.TRANSLUCENT);
+        }
+        Graphics2D g = begin(img);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(font);
+        g.setColor(color);
+        g.drawString(text, 0, metrics.getAscent());
+        g.dispose();
+        return img;
+    }
+
+    // Exists, still valid and nothing lost: use as is
+    private boolean isReady(VolatileImage img) {
+        return img != null && img.validate(gc) == VolatileImage.IMAGE_OK && !img.contentsLost();
+    }
+
+    // Graphics on img, cleared to transparent
+    private static Graphics2D begin(VolatileImage img) {
+        Graphics2D g = img.createGraphics();
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, img.getWidth(), img.getHeight());
+        g.setComposite(AlphaComposite.SrcOver);
+        return g;
+    }
+}
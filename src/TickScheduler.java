@@ -0,0 +1,106 @@
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Fixed-timestep loop on System.nanoTime().
+ *
+ * Ticks are due every tickNanos from the start. If we fall behind (a slow
+ * tick, a GC pause) the missed ticks are run back to back to catch up, at
+ * most maxCatchUp per wake-up; anything beyond that is skipped so the server
+ * doesn't spiral. As long as it keeps up, simulation time advances exactly
+ * one step per tickNanos of wall time and the two don't drift.
+ *
+ * Stats are for the current reporting window; see report().
+ */
+public class TickScheduler {
+    // Park until this close to the deadline, then spin; parkNanos alone
+    // routinely oversleeps by tens of microseconds
+    private static final long SPIN_NANOS = 100_000;
+
+    private final int tickRate;
+    private final long tickNanos;
+    private final int maxCatchUp;
+
+    // Current window
+    private long ticks = 0;
+    private long jitterSum = 0;
+    private long jitterMax = 0;
+    private long overruns = 0;
+    private long catchUpTicks = 0;
+    private long skippedTicks = 0;
+
+    public TickScheduler(int tickRate, int maxCatchUp) {
+        this.tickRate = tickRate;
+        this.tickNanos = 1_000_000_000L / tickRate;
+        this.maxCatchUp = Math.max(1, maxCatchUp);
+    }
+
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    /** Run tick at the fixed rate until running() says stop. */
+    public void run(Runnable tick, BooleanSupplier running) {
+        long next = System.nanoTime();
+
+        while (running.getAsBoolean()) {
+            waitUntil(next);
+
+            int ran = 0;
+            long now = System.nanoTime();
+            while (now - next >= 0 && ran < maxCatchUp) {
+                long lateness = now - next;
+                jitterSum += lateness;
+                if (lateness > jitterMax) jitterMax = lateness;
+
+                tick.run();
+                ticks++;
+                ran++;
+
+                long end = System.nanoTime();
+                if (end - now > tickNanos) overruns++;
+                next += tickNanos;
+                now = end;
+            }
+            if (ran > 1) catchUpTicks += ran - 1;
+
+            // Still behind after the cap: give up on those ticks and start fresh
+            if (now - next >= 0) {
+                long behind = (now - next) / tickNanos + 1;
+                skippedTicks += behind;
+                next += behind * tickNanos;
+            }
+        }
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * One-line summary of the window since the last call, then reset it.
+     * Call from the loop thread (e.g. from inside tick).
+     */
+    public String report() {
+        String line = "rate " + tickRate + " Hz, ticks " + ticks
+                + ", jitter avg " + (ticks == 0 ? 0 : jitterSum / ticks / 1000) + " us"
+                + " max " + jitterMax / 1000 + " us"
+                + ", overruns " + overruns
+                + ", catch-up ticks " + catchUpTicks
+                + ", skipped " + skippedTicks;
+        ticks = 0;
+        jitterSum = 0;
+        jitterMax = 0;
+        overruns = 0;
+        catchUpTicks = 0;
+        skippedTicks = 0;
+        return line;
+    }
+}
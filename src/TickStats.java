@@ -0,0 +1,49 @@
+/**
+ * Per-Game instrumentation: how long each part of a tick took, and a few
+ * gauges. Recorded by the arena worker that ticks the game, read by
+ * ServerMetrics from whatever thread is asking.
+ */
+public class TickStats {
+    // CHECKPOINT is only recorded on the ticks that take one (see Checkpointer)
+    public enum Phase { COMMANDS, TIME, BULLETS, VISIBILITY, MOVEMENT, SEND, CHECKPOINT }
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+
+    /** Messages waiting for a player when their connection collected them, one sample per player per tick. */
+    public final Histogram pendingDepth = new Histogram();
+
+    private volatile int lightEvents;
+    private volatile int players;
+    private volatile long evictedByAge;
+    private volatile long evictedByBudget;
+
+    public TickStats() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    public Histogram phase(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /** Tick thread: phase took the nanos since start; returns now, for the next phase. */
+    public long endPhase(Phase phase, long start) {
+        long now = System.nanoTime();
+        phases[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    public int lightEvents() { return lightEvents; }
+    public int players()     { return players; }
+    /** Light events dropped before everyone saw them, past the horizon / over the budget. */
+    public long evictedByAge()    { return evictedByAge; }
+    public long evictedByBudget() { return evictedByBudget; }
+
+    void setGauges(int lightEvents, int players, long evictedByAge, long evictedByBudget) {
+        this.lightEvents = lightEvents;
+        this.players = players;
+        this.evictedByAge = evictedByAge;
+        this.evictedByBudget = evictedByBudget;
+    }
+}
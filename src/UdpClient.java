@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The client end of the UDP transport (see UdpProtocol), for ClientMain and
+ * LoadGenerator. It doesn't own a thread: the owner feeds it whatever
+ * arrives on the channel and calls poll() every few tens of ms so HELLOs
+ * and unacked frames get resent.
+ *
+ * Sending is thread-safe (ClientMain sends from the UI thread); onPacket and
+ * the counters belong to whoever reads the channel.
+ */
+public class UdpClient {
+    /** Receives each frame body, from the opcode to the buffer's limit. */
+    public interface FrameHandler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    private static final long HELLO_EVERY_NANOS = 200_000_000L;
+
+    private final DatagramChannel channel; // connected to the server's UDP port
+    private final long token;
+    private final PacketImpairment impairment;
+    private final ReliableChannel reliable = new ReliableChannel();
+    private volatile boolean welcomed = false;
+    private long lastHello = 0;
+
+    // Guarded by itself
+    private final ByteBuffer out = ByteBuffer.allocate(UdpProtocol.MAX_PACKET);
+
+    // Reader only
+    private boolean anyLights = false;
+    private int lastLightSeq;
+    long lightPackets, stalePackets, missingPackets;
+
+    public UdpClient(DatagramChannel channel, long token, PacketImpairment impairment) {
+        this.channel = channel;
+        this.token = token;
+        this.impairment = impairment;
+    }
+
+    /** The server has our address, so MOVE/SHOOT can go this way. */
+    public boolean isWelcomed() {
+        return welcomed;
+    }
+
+    public long resends() {
+        return reliable.resends();
+    }
+
+    /** HELLO until welcomed, then any reliable frames that are due. */
+    public void poll(long now) throws IOException {
+        synchronized (out) {
+            if (!welcomed) {
+                if (now - lastHello < HELLO_EVERY_NANOS && lastHello != 0) return;
+                lastHello = now;
+                out.clear();
+                UdpProtocol.writeHello(out, token);
+                out.flip();
+                impairment.send(channel, out, channel.getRemoteAddress());
+                return;
+            }
+            if (reliable.nextDue(out, now)) {
+                impairment.send(channel, out, channel.getRemoteAddress());
+            }
+        }
+    }
+
+    /**
+     * Send frame[0, position) reliably. False if the window is full, i.e.
+     * the server has stopped acking.
+     */
+    public boolean sendReliable(ByteBuffer frame) throws IOException {
+        if (!reliable.queue(frame)) return false;
+        poll(System.nanoTime());
+        return true;
+    }
+
+    /** One received datagram, flipped. Frames in it go to handler. */
+    public void onPacket(ByteBuffer packet, FrameHandler handler) throws IOException {
+        if (!packet.hasRemaining()) return;
+        byte kind = packet.get();
+        if (kind == UdpProtocol.PKT_WELCOME) {
+            welcomed = true;
+        } else if (kind == UdpProtocol.PKT_LIGHTS && packet.remaining() >= 4) {
+            int seq = packet.getInt();
+            if (anyLights && !UdpProtocol.newer(seq, lastLightSeq)) {
+                stalePackets++; // overtaken by a newer one, it's old news
+                return;
+            }
+            if (anyLights) missingPackets += seq - lastLightSeq - 1;
+            anyLights = true;
+            lastLightSeq = seq;
+            lightPackets++;
+            while (nextFrame(packet, handler)) {
+                // all of them
+            }
+        } else if (kind == UdpProtocol.PKT_RELIABLE && packet.remaining() >= 8) {
+            int seq = packet.getInt();
+            reliable.onAck(packet.getInt());
+            // Frames we've already had come round again until our ack gets through
+            for (; packet.hasRemaining(); seq++) {
+                if (!nextFrame(packet, reliable.accept(seq) ? handler : null)) break;
+            }
+            synchronized (out) {
+                out.clear();
+                UdpProtocol.writeAck(out, reliable.lastReceived());
+                out.flip();
+                impairment.send(channel, out, channel.getRemoteAddress());
+            }
+        } else if (kind == UdpProtocol.PKT_ACK && packet.remaining() >= 4) {
+            reliable.onAck(packet.getInt());
+        }
+    }
+
+    // Hand the next length-prefixed frame to handler (null = skip it); false at the end of the packet
+    private boolean nextFrame(ByteBuffer packet, FrameHandler handler) throws IOException {
+        if (packet.remaining() < 2) return false;
+        int len = packet.getShort() & 0xFFFF;
+        if (len == 0 || len > packet.remaining()) return false;
+        int end = packet.position() + len;
+        int limit = packet.limit();
+        if (handler != null) {
+            packet.limit(end);
+            handler.onFrame(packet);
+            packet.limit(limit);
+        }
+        packet.position(end);
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * One client's half of the UDP transport, hanging off its TCP connection.
+ * Until the client's HELLO arrives it isn't bound and the connection keeps
+ * using TCP; after that, the connection hands each tick's messages to send().
+ */
+public class UdpLink {
+    private final UdpServer server;
+    private final long token;
+    private final Player player;
+    private final Game game;
+    private final NetStats net;
+    private volatile SocketAddress address;
+
+    private final ReliableChannel reliable = new ReliableChannel();
+
+    // Tick thread only
+    private final ByteBuffer packet = ByteBuffer.allocate(UdpProtocol.MAX_PACKET);
+    private final ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME + 2);
+    private int lightSeq = 0;
+
+    UdpLink(UdpServer server, long token, Player player, Game game, NetStats net) {
+        this.server = server;
+        this.token = token;
+        this.player = player;
+        this.game = game;
+        this.net = net;
+    }
+
+    public long getToken()            { return token; }
+    public Player getPlayer()         { return player; }
+    public SocketAddress getAddress() { return address; }
+    public boolean isBound()          { return address != null; }
+
+    /** The "UDP <port> <token>" line the connection sends after the ID. */
+    public String offer() {
+        return UdpProtocol.OFFER + " " + server.getPort() + " " + token;
+    }
+
+    void bind(SocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Tick thread: LIGHTs in as few LIGHTS packets as fit, YOU_DEAD on the
+     * reliable channel. False if the reliable window is full, i.e. the
+     * client has stopped acking and should be dropped.
+     */
+    public boolean send(MessageQueue msgs) throws IOException {
+        SocketAddress target = address;
+        packet.clear();
+        for (int i = 0; i < msgs.size(); i++) {
+            if (msgs.kind(i) == MessageQueue.LIGHT) {
+                if (packet.position() == 0 || packet.remaining() < BinaryProtocol.MAX_FRAME + 2) {
+                    flushLights(target);
+                    UdpProtocol.startLights(packet, ++lightSeq);
+                }
+                ClientProtocol.writeFrame(packet, msgs, i);
+            } else {
+                frame.clear();
+                ClientProtocol.writeFrame(frame, msgs, i);
+                if (!reliable.queue(frame)) return false;
+            }
+        }
+        flushLights(target);
+        net.messagesOut.add(msgs.size());
+
+        sendReliable(packet, System.nanoTime());
+        return true;
+    }
+
+    private void flushLights(SocketAddress target) throws IOException {
+        if (packet.position() == 0) return;
+        packet.flip();
+        server.send(packet, target);
+        packet.clear();
+    }
+
+    /** Send a RELIABLE packet if one is due, using scratch as the packet buffer. */
+    void sendReliable(ByteBuffer scratch, long now) throws IOException {
+        SocketAddress target = address;
+        if (reliable.nextDue(scratch, now)) {
+            server.send(scratch, target);
+        }
+    }
+
+    /** Receive thread: a packet from our address, kind already read. */
+    void onPacket(byte kind, ByteBuffer in, ByteBuffer reply) throws IOException {
+        if (kind == UdpProtocol.PKT_ACK && in.remaining() >= 4) {
+            reliable.onAck(in.getInt());
+        } else if (kind == UdpProtocol.PKT_RELIABLE && in.remaining() >= 8) {
+            int seq = in.getInt();
+            reliable.onAck(in.getInt());
+            int limit = in.limit();
+            for (; in.remaining() >= 2; seq++) {
+                int len = in.getShort() & 0xFFFF;
+                if (len == 0 || len > in.remaining()) break;
+                int end = in.position() + len;
+                if (reliable.accept(seq)) {
+                    in.limit(end);
+                    ClientProtocol.applyFrame(game, player, in, net);
+                    in.limit(limit);
+                }
+                in.position(end);
+            }
+            // Ack everything, duplicates included: it's our ack they're missing
+            reply.clear();
+            UdpProtocol.writeAck(reply, reliable.lastReceived());
+            reply.flip();
+            server.send(reply, address);
+        }
+    }
+}
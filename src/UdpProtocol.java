@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram side channel, for clients that would rather lose a LIGHT than
+ * wait for one.
+ *
+ * The TCP connection is still made first and still carries the ID. A server
+ * started with UDP on follows the ID line with "UDP <port> <token>"; clients
+ * that don't know it ignore it. One that wants it sends HELLO with the token
+ * from its own datagram socket (again until WELCOME comes back), and from
+ * then on the server sends it nothing more over TCP:
+ *
+ *  - LIGHTs go out once per tick as LIGHTS packets, as many as the tick
+ *    needs, each with the next sequence number. Nothing is resent; a
+ *    client drops any packet older than the newest it has seen.
+ *  - YOU_DEAD (server to client) and MOVE / SHOOT (client to server) go as
+ *    RELIABLE packets: numbered, acked, resent until acked, applied in
+ *    order (see ReliableChannel). MOVE is cumulative, so it needs this as
+ *    much as SHOOT does. A RELIABLE packet repeats every frame not yet
+ *    acked; seq is the first one's, the rest follow on from it.
+ *
+ * Packet layout (big endian), the payloads being BinaryProtocol frames:
+ *
+ *     u8 kind
+ *     HELLO     i64 token
+ *     WELCOME   (empty)
+ *     LIGHTS    i32 seq, frames...
+ *     RELIABLE  i32 seq, i32 ack, frames...
+ *     ACK       i32 ack       (highest seq received in order)
+ */
+public final class UdpProtocol {
+    public static final String OFFER = "UDP";
+
+    public static final byte PKT_HELLO = 1;
+    public static final byte PKT_WELCOME = 2;
+    public static final byte PKT_LIGHTS = 3;
+    public static final byte PKT_RELIABLE = 4;
+    public static final byte PKT_ACK = 5;
+
+    /** Stays under a typical path MTU, so nothing gets fragmented. */
+    public static final int MAX_PACKET = 1200;
+
+    private UdpProtocol() {}
+
+    public static void writeHello(ByteBuffer buf, long token) {
+        buf.put(PKT_HELLO);
+        buf.putLong(token);
+    }
+
+    public static void writeWelcome(ByteBuffer buf) {
+        buf.put(PKT_WELCOME);
+    }
+
+    /** Header of a LIGHTS packet; frames follow. */
+    public static void startLights(ByteBuffer buf, int seq) {
+        buf.put(PKT_LIGHTS);
+        buf.putInt(seq);
+    }
+
+    /** Header of a RELIABLE packet; frames follow. */
+    public static void startReliable(ByteBuffer buf, int seq, int ack) {
+        buf.put(PKT_RELIABLE);
+        buf.putInt(seq);
+        buf.putInt(ack);
+    }
+
+    public static void writeAck(ByteBuffer buf, int ack) {
+        buf.put(PKT_ACK);
+        buf.putInt(ack);
+    }
+
+    /** a is later than b, allowing for wrap-around. */
+    public static boolean newer(int a, int b) {
+        return a - b > 0;
+    }
+
+    /** Parse "UDP <port> <token>"; null if line isn't one. */
+    public static long[] parseOffer(String line) {
+        if (!line.startsWith(OFFER + " ")) return null;
+        String[] parts = line.split(" ");
+        if (parts.length != 3) return null;
+        return new long[] { Integer.parseInt(parts[1]), Long.parseLong(parts[2]) };
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The server end of the UDP transport (see UdpProtocol). One socket for
+ * everyone: a thread reading it and handing packets to whichever UdpLink the
+ * sender is bound to, and a thread resending unacked reliable messages.
+ * Links send their own LIGHTS straight from the tick thread.
+ */
+public class UdpServer {
+    private static final long RESEND_CHECK_MS = 20;
+
+    private final DatagramChannel channel;
+    private final int port;
+    private final PacketImpairment impairment;
+    private final NetStats net;
+
+    private final SecureRandom tokens = new SecureRandom();
+    private final ConcurrentHashMap<Long, UdpLink> byToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketAddress, UdpLink> byAddress = new ConcurrentHashMap<>();
+
+    // Receive thread only
+    private final ByteBuffer in = ByteBuffer.allocate(UdpProtocol.MAX_PACKET);
+    private final ByteBuffer reply = ByteBuffer.allocate(16);
+
+    public UdpServer(int port, PacketImpairment impairment, NetStats net) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(port));
+        this.port = port;
+        this.impairment = impairment;
+        this.net = net;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void start() {
+        Thread receiver = new Thread(this::receiveLoop, "udp-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread resender = new Thread(this::resendLoop, "udp-resend");
+        resender.setDaemon(true);
+        resender.start();
+        System.out.println("UDP transport on port " + port
+                + (impairment.isNone() ? "" : ", sends impaired: " + impairment));
+    }
+
+    /**
+     * Any thread (the accept thread, or a reader or I/O thread handling a
+     * RESUME): a link for a new connection, waiting for its HELLO.
+     */
+    public UdpLink newLink(Player player, Game game) {
+        while (true) {
+            long token = tokens.nextLong();
+            if (token == 0) continue;
+            UdpLink link = new UdpLink(this, token, player, game, net);
+            if (byToken.putIfAbsent(token, link) == null) return link;
+        }
+    }
+
+    public void remove(UdpLink link) {
+        byToken.remove(link.getToken());
+        SocketAddress address = link.getAddress();
+        if (address != null) byAddress.remove(address, link);
+    }
+
+    /** Any thread. */
+    void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        net.bytesOut.add(packet.remaining());
+        impairment.send(channel, packet, target);
+    }
+
+    private void receiveLoop() {
+        try {
+            while (channel.isOpen()) {
+                in.clear();
+                SocketAddress from = channel.receive(in);
+                in.flip();
+                if (!in.hasRemaining()) continue;
+
+                byte kind = in.get();
+                if (kind == UdpProtocol.PKT_HELLO) {
+                    if (in.remaining() >= 8) hello(in.getLong(), from);
+                } else {
+                    UdpLink link = byAddress.get(from);
+                    if (link != null) link.onPacket(kind, in, reply);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // shutting down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Client proved it holds the token; everything from that address is theirs now
+    private void hello(long token, SocketAddress from) throws IOException {
+        UdpLink link = byToken.get(token);
+        if (link == null) return;
+        SocketAddress old = link.getAddress();
+        if (!from.equals(old)) {
+            if (old != null) byAddress.remove(old, link);
+            byAddress.put(from, link);
+            link.bind(from);
+            System.out.println("DEBUG: Client " + link.getPlayer().getId() + " switched to UDP from " + from);
+        }
+        // Every HELLO gets one, in case the last WELCOME was lost
+        reply.clear();
+        UdpProtocol.writeWelcome(reply);
+        reply.flip();
+        send(reply, from);
+    }
+
+    private void resendLoop() {
+        ByteBuffer packet = ByteBuffer.allocate(UdpProtocol.MAX_PACKET);
+        while (channel.isOpen()) {
+            try {
+                Thread.sleep(RESEND_CHECK_MS);
+                long now = System.nanoTime();
+                for (UdpLink link : byAddress.values()) {
+                    link.sendReliable(packet, now);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("DEBUG: UDP resend failed: " + e);
+            }
+        }
+    }
+}